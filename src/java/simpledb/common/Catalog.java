@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.PageStore;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -169,6 +170,11 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line is of the form {@code name (field type [pk], ...) [fixed|slotted|pax] [compressed]};
+     * the optional trailing word picks the page format of the table's heap file
+     * (see {@link HeapFile.Layout}), and defaults to fixed. "compressed" stores the
+     * file through {@link PageStore.Kind#COMPRESSED}.
      *
      * @param catalogFile
      */
@@ -186,6 +192,20 @@ public class Catalog {
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
+                HeapFile.Layout layout = HeapFile.Layout.FIXED;
+                PageStore.Kind backend = PageStore.Kind.CHANNEL;
+                for (String format : line.substring(line.indexOf(")") + 1).trim().split("\\s+"))
+                {
+                    if (format.isEmpty() || format.equalsIgnoreCase("fixed")) continue;
+                    if (format.equalsIgnoreCase("slotted")) layout = HeapFile.Layout.SLOTTED;
+                    else if (format.equalsIgnoreCase("pax")) layout = HeapFile.Layout.PAX;
+                    else if (format.equalsIgnoreCase("compressed")) backend = PageStore.Kind.COMPRESSED;
+                    else
+                    {
+                        System.out.println("Unknown page format " + format);
+                        System.exit(0);
+                    }
+                }
                 ArrayList<String> names = new ArrayList<>();
                 ArrayList<Type> types = new ArrayList<>();
                 String primaryKey = "";
@@ -213,7 +233,7 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t, backend, layout);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.ReplacementPolicy;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -58,11 +59,34 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, BufferPool.DEFAULT_REPLACEMENT);
+    }
+
+    /**
+     * Create a new instance of the buffer pool with the given page
+     * replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind replacement) {
+        return resetBufferPool(pages, replacement, false);
+    }
+
+    /**
+     * Create a new instance of the buffer pool with the given page
+     * replacement policy, optionally keeping page bytes off-heap, and
+     * return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind replacement, boolean offHeap) {
         java.lang.reflect.Field bufferPoolF=null;
+        try {
+            // committed pages may still be waiting for the page cleaner
+            _instance.get()._bufferpool.flushCommittedPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, replacement, offHeap));
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -1,10 +1,12 @@
 package simpledb.common;
 
+import simpledb.execution.Predicate;
 import simpledb.storage.DoubleField;
 import simpledb.storage.StringField;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.io.*;
 
@@ -29,6 +31,16 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            return IntField.compare(op, buf.getInt(offset), ((IntField) operand).getValue());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -47,6 +59,31 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = Math.max(0, Math.min(STRING_LEN, buf.getInt(offset)));
+            byte[] bs = new byte[strLen];
+            buf.get(offset + 4, bs);
+            return new StringField(new String(bs), STRING_LEN);
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            if (op != Predicate.Op.EQUALS && op != Predicate.Op.NOT_EQUALS)
+                return super.compare(buf, offset, op, operand);
+            // equality on ASCII bytes needs no decoding; anything else goes through parse
+            int strLen = Math.max(0, Math.min(STRING_LEN, buf.getInt(offset)));
+            for (int i = 0; i < strLen; i++) {
+                if (buf.get(offset + 4 + i) < 0)
+                    return super.compare(buf, offset, op, operand);
+            }
+            String s = ((StringField) operand).getValue();
+            boolean equal = strLen == s.length();
+            for (int i = 0; equal && i < strLen; i++)
+                equal = buf.get(offset + 4 + i) == s.charAt(i);
+            return equal == (op == Predicate.Op.EQUALS);
+        }
     },DOUBLE_TYPE() {
         @Override
         public int getLen() {
@@ -61,6 +98,11 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new DoubleField(buf.getDouble(offset));
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -79,4 +121,24 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer at an absolute offset, without changing
+   *   the buffer's position.
+   * @param buf The buffer holding the serialized field (big-endian)
+   * @param offset The offset of the field within the buffer
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
+  /**
+   * Compares the field serialized at an absolute offset in the buffer to
+   * operand, with the semantics of {@link Field#compare}. Types that can
+   * compare their serialized form directly avoid creating the Field.
+   * @param buf The buffer holding the serialized field (big-endian)
+   * @param offset The offset of the field within the buffer
+   */
+    public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+        return parse(buf, offset).compare(op, operand);
+    }
+
 }
@@ -7,6 +7,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.Locks.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -47,10 +48,26 @@ public class Delete extends Operator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         super.open();
+        // 删除的元组来自子节点扫描的表, 先在这些表上声明 IX, 扫描就只加页上的 S, 不会合成 SIX
+        declareWrites(child);
         child.open();
         count = 0;
     }
 
+    private void declareWrites(OpIterator it) throws TransactionAbortedException {
+        if (it instanceof SeqScan)
+        {
+            Database.getBufferPool().lockTable(t, ((SeqScan) it).getTableId(), LockMode.IX);
+        }
+        else if (it instanceof Operator)
+        {
+            for (var c : ((Operator) it).getChildren())
+            {
+                if (c != null) declareWrites(c);
+            }
+        }
+    }
+
     public void close() {
         // some code goes here
         super.close();
@@ -7,10 +7,13 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.Locks.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -25,6 +28,11 @@ public class Insert extends Operator {
     private int count = 0;
     private boolean isDone = false;
 
+    /**
+     * 每批插入的元组数
+     */
+    private static final int BATCH_SIZE = 1024;
+
     /**
      * Constructor.
      *
@@ -53,6 +61,8 @@ public class Insert extends Operator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         super.open();
+        // 先声明要写, 子节点再扫描同一张表时逐页加读锁, 不会合成 SIX
+        Database.getBufferPool().lockTable(t, tableid, LockMode.IX);
         child.open();
         count = 0;
     }
@@ -81,38 +91,37 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        var td = getTupleDesc();
-        var tt = new Tuple(td);
-        if (!child.hasNext())
-        {
-            if (!isDone)
-            {
-                tt.setField(0, new IntField(count));
-                isDone = true;
-                return tt;
-            }
-            else return null;
-        }
-        var tup = child.next();
+        if (isDone) return null;
+        isDone = true;
+        // 攒够一批再交给 BufferPool, 每个页面每批只加一次锁
+        var batch = new ArrayList<Tuple>(BATCH_SIZE);
         try
         {
-            Database.getBufferPool().insertTuple(t, tableid, tup);
-            tt.setField(0, new IntField(++count));
-            if (!child.hasNext())
+            while (child.hasNext())
             {
-                isDone = true;
-                return tt;
+                batch.add(child.next());
+                if (batch.size() == BATCH_SIZE) flush(batch);
             }
-            else return fetchNext();
+            flush(batch);
         } catch (IOException e)
         {
             e.printStackTrace();
+            return null;
         }
-        return null;
+        var tt = new Tuple(getTupleDesc());
+        tt.setField(0, new IntField(count));
+        return tt;
+    }
+
+    private void flush(List<Tuple> batch) throws DbException, IOException, TransactionAbortedException {
+        if (batch.isEmpty()) return;
+        Database.getBufferPool().insertTuples(t, tableid, batch);
+        count += batch.size();
+        batch.clear();
     }
 
     @Override
@@ -1,6 +1,9 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleView;
 
 import java.io.Serializable;
 
@@ -49,6 +52,11 @@ public class JoinPredicate implements Serializable {
 
         if (t1 != null && t2 != null)
         {
+            // 两边都是页面上读出的元组时, 整数连接键直接从字节中取, 不解码字段
+            if (t1 instanceof TupleView v1 && t2 instanceof TupleView v2
+                    && t1.getTupleDesc().getFieldType(field1) == Type.INT_TYPE
+                    && t2.getTupleDesc().getFieldType(field2) == Type.INT_TYPE)
+                return IntField.compare(op, v1.getInt(field1), v2.getInt(field2));
             var f1 = t1.getField(field1);
             var f2 = t2.getField(field2);
             if (f1 != null && f2 != null)
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleView;
 
 import java.io.Serializable;
 
@@ -103,6 +104,8 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
+        // 页面上读出的元组直接比较字节, 不解码字段
+        if (t instanceof TupleView v) return v.compare(field, op, operand);
         return t.getField(field).compare(op, operand);
         //        return false;
     }
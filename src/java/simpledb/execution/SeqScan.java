@@ -9,12 +9,16 @@ import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk). A scan may read only some of the table's columns, and may be given
+ * predicates that let the file skip pages, see
+ * {@link DbFile#iterator(TransactionId, int[], List)}.
  */
 public class SeqScan implements OpIterator {
 
@@ -27,6 +31,14 @@ public class SeqScan implements OpIterator {
 
     private DbFile f;
     private DbFileIterator tablefileIterator;
+    /**
+     * 输出的列在表中的下标, null 表示所有列
+     */
+    private int[] columns;
+    /**
+     * 用来跳过页面的谓词, 字段是表中的下标
+     */
+    private final List<Predicate> pageFilters = new ArrayList<>();
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -53,6 +65,39 @@ public class SeqScan implements OpIterator {
         this.open=false;
     }
 
+    /**
+     * Creates a sequential scan that only outputs some of the table's
+     * columns. Files that store columns separately only read those columns.
+     *
+     * @param columns
+     *            the indices of the table's columns to output, in output
+     *            order, or null for all columns
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
+        this(tid, tableid, tableAlias);
+        this.columns = columns;
+    }
+
+    /**
+     * @return the indices of the table's columns this scan outputs, or null
+     *         if it outputs all of them
+     */
+    public int[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Lets the scan skip pages whose statistics show that no tuple on them
+     * satisfies p. Tuples on the other pages are still returned whether or
+     * not they satisfy p, so p must also be applied by a Filter above the scan.
+     *
+     * @param p a predicate on the fields of this scan's output
+     */
+    public void addPageFilter(Predicate p) {
+        int field = columns == null ? p.getField() : columns[p.getField()];
+        pageFilters.add(new Predicate(field, p.getOp(), p.getOperand()));
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -62,6 +107,13 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableid);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -90,6 +142,8 @@ public class SeqScan implements OpIterator {
         this.f = Database.getCatalog().getDatabaseFile(tableid);
         this.open = false;
         this.tablefileIterator = null;
+        this.columns = null;
+        this.pageFilters.clear();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -99,7 +153,7 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         if (open) throw new IllegalStateException("Scan has open");
         // some code goes here
-        tablefileIterator = f.iterator(tid);
+        tablefileIterator = f.iterator(tid, columns, pageFilters);
         tablefileIterator.open();
         open = true;
     }
@@ -117,7 +171,7 @@ public class SeqScan implements OpIterator {
     public TupleDesc getTupleDesc() {
         //        if (!open) throw new IllegalStateException("Scan not open");
         // some code goes here
-        var td = f.getTupleDesc();
+        var td = columns == null ? f.getTupleDesc() : f.getTupleDesc().project(columns);
         var types = td.getTypes();
         var names = td.getNames();
         for (int i = 0; i < names.size(); i++)
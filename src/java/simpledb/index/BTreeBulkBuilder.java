@@ -0,0 +1,211 @@
+package simpledb.index;
+
+import simpledb.storage.BufferPool;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 自底向上建 B+ 树: 按键的顺序逐条接收记录, 顺序写出叶子页, 最后写出各层内部页.
+ * <p>
+ * 记录总数事先知道, 每层的页数就能先算出来: 按填充因子确定每页的目标记录 (孩子) 数, 记录在同层的页之间平均分配,
+ * 除根以外每页至少半满. 文件里先是根指针页, 然后是按顺序编号的叶子页, 再逐层往上是内部页, 根在最后,
+ * 所以父指针和兄弟指针在写页面时就能确定, 每个页面只写一次.
+ * <p>
+ * 记录的格式和页面中的元组相同 (td.getSize() 字节). 内存里只保留每个叶子页的第一个键.
+ * 没有记录时写出和 BTreeFile 新建时相同的空树.
+ *
+ * @see simpledb.storage.BulkLoader
+ */
+public class BTreeBulkBuilder {
+    private final OutputStream out;
+    private final int recordSize;
+    private final int keyOffset;
+    private final int keyLen;
+    private final long numRecords;
+
+    private final int maxTuples;
+    private final int leafHeaderSize;
+    private final int maxEntries;
+    private final int internalHeaderSize;
+
+    // levels[0] 是叶子层的页数, 最后一层是根, 只有一页
+    private final int[] levels;
+    // 每层第一页的页号
+    private final int[] levelStart;
+    // 每个叶子页的第一个键
+    private final byte[][] leafKeys;
+
+    private final byte[] page = new byte[BufferPool.getPageSize()];
+    private long added;
+    private int leaf;
+    private int inLeaf;
+
+    /**
+     * 写出根指针页, 准备接收记录
+     *
+     * @param fillFactor 叶子页和内部页的目标填充率, 限制在 [0.5, 1] 之间
+     * @param numRecords 之后 {@link #add} 的记录总数
+     * @param out        B+ 树文件的输出流, 从文件开头写
+     */
+    public BTreeBulkBuilder(TupleDesc td, int keyField, double fillFactor, long numRecords, OutputStream out) throws IOException {
+        this.out = out;
+        this.recordSize = td.getSize();
+        int offset = 0;
+        for (int i = 0; i < keyField; i++)
+        {
+            offset += td.getFieldType(i).getLen();
+        }
+        this.keyOffset = offset;
+        this.keyLen = td.getFieldType(keyField).getLen();
+        this.numRecords = numRecords;
+        double fill = Math.max(0.5, Math.min(1.0, fillFactor));
+
+        int pageSize = BufferPool.getPageSize();
+        // 和 BTreeLeafPage.getMaxTuples / BTreeInternalPage.getMaxEntries 相同
+        this.maxTuples = (pageSize * 8 - 3 * BTreePage.INDEX_SIZE * 8) / (recordSize * 8 + 1);
+        this.leafHeaderSize = (maxTuples + 7) / 8;
+        this.maxEntries = (pageSize * 8 - (2 * BTreePage.INDEX_SIZE * 8 + 8 + 1)) / (keyLen * 8 + BTreePage.INDEX_SIZE * 8 + 1);
+        this.internalHeaderSize = (maxEntries + 1 + 7) / 8;
+        if (maxTuples < 2 || maxEntries < 2) throw new IllegalArgumentException("records too large for a B+ tree page");
+
+        if (numRecords == 0)
+        {
+            levels = new int[0];
+            levelStart = new int[0];
+            leafKeys = new byte[0][];
+            // 和 BTreeFile 初始化空文件时一样
+            out.write(BTreeRootPtrPage.createEmptyPageData());
+            out.write(BTreeLeafPage.createEmptyPageData());
+            return;
+        }
+        // 每页的目标数不少于半满, 页数既要装得下, 又不能让平均数低于目标
+        int leaves = pages(numRecords, maxTuples, Math.max((maxTuples + 1) / 2, (int) (maxTuples * fill)));
+        int entries = Math.max((maxEntries + 1) / 2, (int) (maxEntries * fill));
+        int height = 1;
+        int[] sizes = new int[32];
+        sizes[0] = leaves;
+        while (sizes[height - 1] > 1)
+        {
+            sizes[height] = pages(sizes[height - 1], maxEntries + 1, entries + 1);
+            height++;
+        }
+        levels = Arrays.copyOf(sizes, height);
+        levelStart = new int[height];
+        int next = 1;
+        for (int i = 0; i < height; i++)
+        {
+            levelStart[i] = next;
+            next += levels[i];
+        }
+        leafKeys = new byte[leaves][];
+
+        int root = next - 1;
+        out.write(BTreeFileEncoder.convertToRootPtrPage(root, height == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL, 0));
+    }
+
+    /**
+     * @return n 个项分成的页数: 每页不超过 capacity, 在装得下的前提下平均每页不少于 target
+     */
+    private static int pages(long n, int capacity, int target) {
+        return (int) Math.max(1, Math.max((n + capacity - 1) / capacity, n / target));
+    }
+
+    /**
+     * @return 同层 n 个项平均分到 pages 页时, 第 i 页的第一个项
+     */
+    private static long start(long i, long n, int pages) {
+        return i * n / pages;
+    }
+
+    /**
+     * @return 第 i 项所在的页
+     */
+    private static int pageOf(long i, long n, int pages) {
+        return (int) (((i + 1) * pages - 1) / n);
+    }
+
+    /**
+     * 加入下一条记录, 记录必须按键的顺序到来
+     */
+    public void add(byte[] record) throws IOException {
+        if (added == numRecords) throw new IllegalStateException("more records than announced");
+        if (added == start(leaf + 1, numRecords, levels[0]))
+        {
+            writeLeaf();
+            leaf++;
+        }
+        if (inLeaf == 0) leafKeys[leaf] = Arrays.copyOfRange(record, keyOffset, keyOffset + keyLen);
+        page[3 * BTreePage.INDEX_SIZE + inLeaf / 8] |= (byte) (1 << (inLeaf % 8));
+        System.arraycopy(record, 0, page, 3 * BTreePage.INDEX_SIZE + leafHeaderSize + inLeaf * recordSize, recordSize);
+        inLeaf++;
+        added++;
+    }
+
+    /**
+     * 写出最后一个叶子页和所有内部页
+     */
+    public void finish() throws IOException {
+        if (added != numRecords) throw new IllegalStateException("expected " + numRecords + " records, got " + added);
+        if (numRecords == 0) return;
+        writeLeaf();
+        // firstLeaf[i]: 当前层第 i 页下面最左边的叶子
+        int[] firstLeaf = new int[levels[0]];
+        for (int i = 0; i < firstLeaf.length; i++)
+        {
+            firstLeaf[i] = i;
+        }
+        for (int level = 1; level < levels.length; level++)
+        {
+            int children = levels[level - 1];
+            int[] upper = new int[levels[level]];
+            for (int i = 0; i < levels[level]; i++)
+            {
+                int from = (int) start(i, children, levels[level]);
+                int to = (int) start(i + 1, children, levels[level]);
+                upper[i] = firstLeaf[from];
+                writeInternal(level, i, from, to, firstLeaf);
+            }
+            firstLeaf = upper;
+        }
+    }
+
+    private int parent(int level, int i) {
+        if (level + 1 == levels.length) return 0;
+        return levelStart[level + 1] + pageOf(i, levels[level], levels[level + 1]);
+    }
+
+    private void writeLeaf() throws IOException {
+        var buf = ByteBuffer.wrap(page);
+        buf.putInt(0, parent(0, leaf));
+        buf.putInt(4, leaf == 0 ? 0 : levelStart[0] + leaf - 1);
+        buf.putInt(8, leaf == levels[0] - 1 ? 0 : levelStart[0] + leaf + 1);
+        out.write(page);
+        Arrays.fill(page, (byte) 0);
+        inLeaf = 0;
+    }
+
+    /**
+     * 写第 level 层的第 i 页, 它的孩子是下一层的第 from 到 to - 1 页
+     */
+    private void writeInternal(int level, int i, int from, int to, int[] firstLeaf) throws IOException {
+        var buf = ByteBuffer.wrap(page);
+        buf.putInt(0, parent(level, i));
+        page[4] = (byte) (level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+        int header = 5;
+        int keys = header + internalHeaderSize;
+        int childPtrs = keys + maxEntries * keyLen;
+        // 槽 0 只有孩子指针, 槽 s (s >= 1) 的键是第 s 个孩子的最小键
+        for (int s = 0; s < to - from; s++)
+        {
+            page[header + s / 8] |= (byte) (1 << (s % 8));
+            if (s > 0) System.arraycopy(leafKeys[firstLeaf[from + s]], 0, page, keys + (s - 1) * keyLen, keyLen);
+            buf.putInt(childPtrs + s * BTreePage.INDEX_SIZE, levelStart[level - 1] + from + s);
+        }
+        out.write(page);
+        Arrays.fill(page, (byte) 0);
+    }
+}
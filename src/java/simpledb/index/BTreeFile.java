@@ -11,6 +11,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 
@@ -33,6 +34,7 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    private final PageStore store;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -43,10 +45,31 @@ public class BTreeFile implements DbFile {
      * @param td  - the tuple descriptor of tuples in the file
      */
     public BTreeFile(File f, int key, TupleDesc td) {
+        this(f, key, td, PageStore.Kind.CHANNEL);
+    }
+
+    /**
+     * Constructs a B+ tree file backed by the specified file, read and written
+     * through the given storage backend.
+     *
+     * @param f       - the file that stores the on-disk backing store for this B+ tree
+     *                file.
+     * @param key     - the field which index is keyed on
+     * @param td      - the tuple descriptor of tuples in the file
+     * @param backend - the storage backend used for page I/O
+     */
+    public BTreeFile(File f, int key, TupleDesc td, PageStore.Kind backend) {
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        try
+        {
+            this.store = backend.open(f, BTreeRootPtrPage.getPageSize());
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -88,12 +111,12 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f)))
+        try
         {
             if (id.pgcateg() == BTreePageId.ROOT_PTR)
             {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = store.read(0, ByteBuffer.wrap(pageBuf));
                 if (retval == -1)
                 {
                     throw new IllegalArgumentException("Read past end of table");
@@ -108,11 +131,7 @@ public class BTreeFile implements DbFile {
             else
             {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) != BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize())
-                {
-                    throw new IllegalArgumentException("Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = store.read(pageOffset(id.getPageNumber()), ByteBuffer.wrap(pageBuf));
                 if (retval == -1)
                 {
                     throw new IllegalArgumentException("Read past end of table");
@@ -139,8 +158,13 @@ public class BTreeFile implements DbFile {
         {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+    }
+
+    /**
+     * Returns the offset in the file of the non-root-pointer page pageNo
+     */
+    private static long pageOffset(int pageNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
     }
 
     /**
@@ -153,26 +177,39 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR)
         {
-            rf.write(data);
-            rf.close();
+            store.write(0, data);
         }
         else
         {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            store.write(pageOffset(page.getId().getPageNumber()), data);
         }
     }
 
+    /**
+     * Write a batch of pages to disk, merging pages that are adjacent in the
+     * file into a single write.
+     *
+     * @param pages - the pages to write to disk
+     */
+    @Override
+    public void writePages(List<? extends Page> pages) throws IOException {
+        store.writePages(pages, pid -> ((BTreePageId) pid).pgcateg() == BTreePageId.ROOT_PTR ? 0 : pageOffset(pid.getPageNumber()));
+    }
+
     /**
      * Returns the number of pages in this BTreeFile.
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        try
+        {
+            return (int) ((store.size() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -1107,15 +1144,13 @@ public class BTreeFile implements DbFile {
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
         synchronized (this)
         {
-            if (f.length() == 0)
+            if (store.size() == 0)
             {
                 // 创建根指针页和根页
-                BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                store.write(0, emptyRootPtrData);
+                store.write(emptyRootPtrData.length, emptyLeafData);
             }
         }
 
@@ -1175,10 +1210,8 @@ public class BTreeFile implements DbFile {
             synchronized (this)
             {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                store.write(store.size(), emptyData);
                 emptyPageNo = numPages();
             }
         }
@@ -1186,6 +1219,17 @@ public class BTreeFile implements DbFile {
         return emptyPageNo;
     }
 
+    /**
+     * Discard every buffer pool copy of the given page number. A reused page
+     * may still be cached under its previous category.
+     */
+    private void discardPageNo(int pageNo) {
+        for (int categ : new int[]{BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER})
+        {
+            Database.getBufferPool().discardPage(new BTreePageId(tableid, pageNo, categ));
+        }
+    }
+
     /**
      * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
      * and creates a new page if none are available.  It wipes the page on disk and in the cache and
@@ -1206,14 +1250,15 @@ public class BTreeFile implements DbFile {
         int emptyPageNo = getEmptyPageNo(tid, dirtypages);
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
+        // make sure no copy of the page, under any category, is still in the buffer pool
+        // waiting to be written back over the empty page
+        discardPageNo(emptyPageNo);
+
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        store.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 
         // make sure the page is not in the buffer pool	or in the local cache
-        Database.getBufferPool().discardPage(newPageId);
+        discardPageNo(emptyPageNo);
         dirtypages.remove(newPageId);
 
         return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
@@ -1336,6 +1381,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
     final BTreeFile f;
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    ReadAhead.Chained readAhead;
 
     /**
      * Constructor for this iterator
@@ -1355,6 +1401,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
         curp = f.findLeafPage(tid, root, null);
+        readAhead = Database.getBufferPool().getReadAhead().chained(p -> ((BTreeLeafPage) p).getRightSiblingId());
+        readAhead.access(curp);
         it = curp.iterator();
     }
 
@@ -1378,6 +1426,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
             else
             {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+                readAhead.access(curp);
                 it = curp.iterator();
                 if (!it.hasNext()) it = null;
             }
@@ -1416,6 +1465,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     final IndexPredicate ipred;
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    ReadAhead.Chained readAhead;
 
     /**
      * Constructor for this iterator
@@ -1445,6 +1495,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         {
             curp = f.findLeafPage(tid, root, null);
         }
+        readAhead = Database.getBufferPool().getReadAhead().chained(this::nextLeaf);
+        readAhead.access(curp);
         it = curp.iterator();
     }
 
@@ -1489,6 +1541,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             else
             {
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY);
+                readAhead.access(curp);
                 it = curp.iterator();
             }
         }
@@ -1496,6 +1549,34 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         return null;
     }
 
+    /**
+     * Returns the leaf this scan will visit after the given one, used for
+     * read-ahead: null if the last tuple of the page already ends the scan.
+     */
+    private BTreePageId nextLeaf(Page page) {
+        BTreeLeafPage leaf = (BTreeLeafPage) page;
+        Iterator<Tuple> last = leaf.reverseIterator();
+        if (last.hasNext())
+        {
+            Field key = last.next().getField(f.keyField());
+            switch (ipred.getOp())
+            {
+                case LESS_THAN, LESS_THAN_OR_EQ ->
+                {
+                    if (!key.compare(ipred.getOp(), ipred.getField())) return null;
+                }
+                case EQUALS ->
+                {
+                    if (key.compare(Op.GREATER_THAN, ipred.getField())) return null;
+                }
+                default ->
+                {
+                }
+            }
+        }
+        return leaf.getRightSiblingId();
+    }
+
     /**
      * rewind this iterator back to the beginning of the tuples
      */
@@ -3,6 +3,7 @@ package simpledb.index;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Type;
+import simpledb.storage.BeforeImage;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
@@ -33,8 +34,7 @@ public class BTreeHeaderPage implements Page {
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
-	byte[] oldData;
-	private final Byte oldDataLock= (byte) 0;
+	private final BeforeImage beforeImage = new BeforeImage();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -70,8 +70,6 @@ public class BTreeHeaderPage implements Page {
 			header[i] = dis.readByte();
 
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/**
@@ -101,12 +99,7 @@ public class BTreeHeaderPage implements Page {
         -- used by recovery */
 	public BTreeHeaderPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeHeaderPage(pid,oldDataRef);
+			return new BTreeHeaderPage(pid,beforeImage.copy(this::getPageData));
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -116,10 +109,15 @@ public class BTreeHeaderPage implements Page {
 	}
 
 	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
+		beforeImage.release();
+	}
+
+	public boolean captureBeforeImage() {
+		return beforeImage.capture(this::getPageData);
+	}
+
+	public int getBeforeImageSize() {
+		return beforeImage.size();
 	}
 
 	/**
@@ -4,6 +4,7 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.BeforeImage;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
@@ -28,8 +29,7 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
-	protected byte[] oldData;
-	protected final Byte oldDataLock= (byte) 0;
+	protected final BeforeImage beforeImage = new BeforeImage();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -134,6 +134,18 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public void setBeforeImage() {
+		beforeImage.release();
+	}
+
+	public boolean captureBeforeImage() {
+		return beforeImage.capture(this::getPageData);
+	}
+
+	public int getBeforeImageSize() {
+		return beforeImage.size();
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
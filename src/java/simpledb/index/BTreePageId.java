@@ -3,7 +3,6 @@ package simpledb.index;
 import simpledb.storage.BufferPool;
 import simpledb.storage.PageId;
 
-import java.util.Objects;
 
 /** Unique identifier for BTreeInternalPage, BTreeLeafPage, BTreeHeaderPage
  *  and BTreeRootPtrPage objects. 
@@ -75,7 +74,8 @@ public class BTreePageId implements PageId {
 	 * @see BufferPool
 	 */
 	public int hashCode() {
-	    return Objects.hash(tableId, pgNo, pgcateg);
+	    // same value as Objects.hash(tableId, pgNo, pgcateg), without boxing
+	    return 31 * (31 * (31 + tableId) + pgNo) + pgcateg;
 	}
 
 	/**
@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import simpledb.common.DbException;
+import simpledb.storage.BeforeImage;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
@@ -26,7 +27,7 @@ public class BTreeRootPtrPage implements Page {
 	private int rootCategory;
 	private int header;
 
-	private byte[] oldData;
+	private final BeforeImage beforeImage = new BeforeImage();
 
 	/**
 	 * Constructor.
@@ -47,12 +48,18 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the header pointer
 		header = dis.readInt();
-		
-		setBeforeImage();
 	}
 
 	public void setBeforeImage() {
-		oldData = getPageData().clone();
+		beforeImage.release();
+	}
+
+	public boolean captureBeforeImage() {
+		return beforeImage.capture(this::getPageData);
+	}
+
+	public int getBeforeImageSize() {
+		return beforeImage.size();
 	}
 
 	/**
@@ -144,7 +151,7 @@ public class BTreeRootPtrPage implements Page {
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			return new BTreeRootPtrPage(pid,beforeImage.copy(this::getPageData));
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -10,6 +10,7 @@ import simpledb.transaction.TransactionId;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -62,7 +63,8 @@ public class TableStats {
         int numbers = td.numFields();
         Map<Integer, Field> min = new HashMap<>();
         Map<Integer, Field> max = new HashMap<>();
-        var it = file.iterator(new TransactionId());
+        var tid = new TransactionId();
+        var it = file.iterator(tid);
         try
         {
             it.open();
@@ -135,10 +137,31 @@ public class TableStats {
         } catch (TransactionAbortedException | DbException ex)
         {
             ex.printStackTrace();
+        } finally
+        {
+            // 扫描拿的表锁不放掉会一直挡住写这张表的事务
+            Database.getBufferPool().transactionComplete(tid);
         }
     }
 
 
+    /**
+     * 用已经算好的统计信息构造, 不再扫描表; 批量导入时在写文件的同一遍里统计
+     *
+     * @param file        the table the statistics describe
+     * @param tupleNumber the number of tuples in the table
+     * @param histograms  one histogram per field, null for fields without one
+     * @see simpledb.storage.BulkLoader
+     */
+    public TableStats(DbFile file, int tupleNumber, List<Histogram<?>> histograms) {
+        this.ioCostPerPage = IOCOSTPERPAGE;
+        this.file = file;
+        this.pageNumber = file.numPages();
+        this.tupleNumber = tupleNumber;
+        this.listsInfo = new ArrayList<>(histograms);
+    }
+
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -0,0 +1,360 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * HeapFile 各种数据页 ({@link HeapPage}, {@link SlottedHeapPage}, {@link PaxHeapPage}) 共用的部分:
+ * 页面字节, 页帧, before image 和脏标记. 子类只负责页内的布局.
+ * <p>
+ * 页面内容只保存在 {@link #data} 中, 元组在访问时才从这里解码. 它可能是堆内数组, 也可能是 BufferPool
+ * 堆外 arena 中的一个页帧; 页面离开缓冲池时 {@link #detachFrame()} 把它换成堆内拷贝, 之后页帧会被其他页面复用.
+ * 修改操作在页面上同步, 与换页帧互斥; 读取不加锁, 通过 {@link #read} 在换页帧之后重读.
+ * <p>
+ * 支持元组锁的格式 ({@link #tupleLocks()}) 上, 多个事务可以同时持有页上的 IX, 各自修改不同的行.
+ * 页面记下每个被修改的槽属于哪个事务 ({@link #owners}), before image 是所有事务都没提交时的内容:
+ * 提交时把提交者的行合并到 before image 上发布 ({@link #commit}), 回滚时只把回滚者的行恢复成 before image 中的值
+ * ({@link #rollback}), 其他事务的修改不受影响. 其他事务删除后还没提交的槽不会被插入复用.
+ */
+public abstract class AbstractTuplePage implements TuplePage {
+
+    final HeapPageId pid;
+    final TupleDesc td;
+
+    /**
+     * 页面的原始字节, 见类的说明. 只在持有页面的锁时修改内容或者替换
+     */
+    volatile ByteBuffer data;
+
+    private final BeforeImage beforeImage = new BeforeImage();
+    private volatile TransactionId transactionId;
+    /**
+     * 按行修改的槽 -> 修改它的未提交事务, 只在页面的监视器内修改
+     */
+    private final ConcurrentHashMap<Integer, TransactionId> owners = new ConcurrentHashMap<>();
+    // 正在按行插入的事务, 它自己删除的槽可以复用; 由页面的监视器保护
+    private TransactionId inserting;
+    // 按行修改的内容已经写盘, 之后没有再修改
+    private volatile boolean rowsWritten;
+
+    /**
+     * 直接使用 data 作为页面内容, 不拷贝: 可以是堆内缓冲区, 也可以是 BufferPool 的页帧
+     */
+    protected AbstractTuplePage(HeapPageId id, ByteBuffer data) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = data;
+    }
+
+    /**
+     * @return 以 data 为内容的同一格式的页面, 用来构造 before image
+     */
+    protected abstract AbstractTuplePage newPage(ByteBuffer data);
+
+    /**
+     * @return 是否支持元组锁. 支持的格式实现 {@link #numSlots()}, {@link #record} 和 {@link #setRecord},
+     * 提交, 回滚和日志的 undo 用它们按行合并页面
+     */
+    protected boolean tupleLocks() {
+        return false;
+    }
+
+    protected int numSlots() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return 槽中记录的字节, 空槽返回 null
+     */
+    protected byte[] record(int slot) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 把槽设置成 record, record 为 null 时清空. 调用者持有页面的监视器, 或者页面还没有发布给其他线程
+     */
+    protected void setRecord(int slot, byte[] record) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return 空槽是否被其他事务删除了还没提交, 这样的槽要留给回滚, 不能被插入复用. 调用者持有页面的监视器
+     */
+    protected final boolean isReserved(int slot) {
+        var owner = owners.get(slot);
+        return owner != null && !owner.equals(inserting);
+    }
+
+    /**
+     * 在页面当前的缓冲区上执行 read. 读之前和读之后 {@link #data} 没有变化才返回结果:
+     * 如果期间页帧被换成了堆内拷贝, 读到的可能是页帧被复用后的内容, 在新缓冲区上重读.
+     * 同样, read 抛出的异常只在缓冲区没有变化时才传出.
+     */
+    protected final <T> T read(Function<ByteBuffer, T> read) {
+        while (true)
+        {
+            var buf = data;
+            T result = null;
+            try
+            {
+                result = read.apply(buf);
+            } catch (RuntimeException e)
+            {
+                if (buf == data) throw e;
+            }
+            if (buf == data) return result;
+        }
+    }
+
+    @Override
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the page constructor and
+     * have it produce an identical page object.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    @Override
+    public byte[] getPageData() {
+        return read(buf -> {
+            byte[] bytes = new byte[BufferPool.getPageSize()];
+            buf.duplicate().clear().get(bytes, 0, Math.min(bytes.length, buf.capacity()));
+            return bytes;
+        });
+    }
+
+    @Override
+    public ByteBuffer getFrame() {
+        var buf = data;
+        return buf.isDirect() ? buf : null;
+    }
+
+    /**
+     * 把页面内容从 BufferPool 的页帧拷回堆内存, 之后页帧可以被其他页面复用.
+     * 与修改操作互斥; 并发的读操作会发现 {@link #data} 已经改变并重新读取.
+     */
+    @Override
+    public synchronized void detachFrame() {
+        var buf = data;
+        if (!buf.isDirect()) return;
+        var copy = ByteBuffer.allocate(buf.capacity());
+        copy.put(buf.duplicate().clear());
+        data = copy.clear();
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    @Override
+    public AbstractTuplePage getBeforeImage() {
+        return newPage(ByteBuffer.wrap(beforeImage.copy(this::getPageData)));
+    }
+
+    /**
+     * 没有事务按行修改这个页面时才丢掉副本; 否则副本还是那些事务提交和回滚要用的已提交内容
+     */
+    @Override
+    public synchronized void setBeforeImage() {
+        if (owners.isEmpty()) beforeImage.release();
+    }
+
+    @Override
+    public boolean captureBeforeImage() {
+        return beforeImage.capture(this::getPageData);
+    }
+
+    @Override
+    public int getBeforeImageSize() {
+        return beforeImage.size();
+    }
+
+    @Override
+    public synchronized int insertTuples(TransactionId tid, List<Tuple> tuples, int from) throws DbException {
+        boolean captured = captureBeforeImage();
+        int n;
+        inserting = tid;
+        try
+        {
+            n = insertTuples(tuples, from);
+        } finally
+        {
+            inserting = null;
+        }
+        if (captured)
+        {
+            // 一个也没插入, 页面没有修改, 不留副本
+            if (n == 0) beforeImage.release();
+            else Database.getBufferPool().beforeImageCaptured();
+        }
+        for (int i = from; i < from + n; i++)
+        {
+            owners.put(tuples.get(i).getRecordId().getTupleNumber(), tid);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        boolean captured = captureBeforeImage();
+        try
+        {
+            deleteTuple(t);
+        } catch (DbException e)
+        {
+            if (captured) beforeImage.release();
+            throw e;
+        }
+        if (captured) Database.getBufferPool().beforeImageCaptured();
+        owners.put(t.getRecordId().getTupleNumber(), tid);
+    }
+
+    /**
+     * 只有 tid 修改了页面时和整页加锁一样, 当前内容就是 after image; 否则 after image 是 before image
+     * 加上 tid 修改的行, 它成为新的 before image, 其他事务的行仍然未提交.
+     * 写日志和发布在页面的监视器内完成, 同一页面上的提交按日志的顺序发布.
+     */
+    @Override
+    public synchronized long commit(TransactionId tid, LogFile log) throws IOException {
+        var before = getBeforeImage();
+        if (soleOwner(tid))
+        {
+            long seq = log.logWrite(tid, before, this);
+            owners.clear();
+            beforeImage.release();
+            return seq;
+        }
+        var after = withRows(before, tid);
+        long seq = log.logWrite(tid, before, after);
+        owners.values().removeIf(tid::equals);
+        beforeImage.replace(after.getPageData());
+        return seq;
+    }
+
+    /**
+     * 回滚 tid 在这个页面上按行做的修改: 只有 tid 修改了页面时整页恢复成 before image, 否则只恢复 tid 的行.
+     * tid 持有页上的 X 时由 BufferPool 直接换成 before image, 不调用这里.
+     *
+     * @return 页面上是否有 tid 的修改
+     */
+    synchronized boolean rollback(TransactionId tid) {
+        if (!owners.containsValue(tid)) return false;
+        var before = getBeforeImage();
+        if (soleOwner(tid))
+        {
+            var bytes = before.getPageData();
+            data.duplicate().clear().put(bytes, 0, Math.min(bytes.length, data.capacity()));
+            owners.clear();
+            beforeImage.release();
+            transactionId = null;
+            return true;
+        }
+        owners.forEach((slot, owner) -> {
+            if (owner.equals(tid)) setRecord(slot, before.record(slot));
+        });
+        owners.values().removeIf(tid::equals);
+        if (tid.equals(transactionId)) transactionId = null;
+        rowsWritten = false;
+        return true;
+    }
+
+    /**
+     * 有多个事务按行修改时每个事务写一条日志, after image 是 before image 加上它自己的行,
+     * 这样回滚其中一个事务只撤销它自己的行
+     */
+    @Override
+    public synchronized long logUncommitted(LogFile log) throws IOException {
+        var tids = new HashSet<>(owners.values());
+        var before = getBeforeImage();
+        if (tids.size() <= 1) return log.logWrite(tids.isEmpty() ? transactionId : tids.iterator().next(), before, this);
+        long seq = 0;
+        for (var tid : tids)
+        {
+            seq = log.logWrite(tid, before, withRows(before, tid));
+        }
+        return seq;
+    }
+
+    /**
+     * 日志的行级 undo: this 是一条更新记录的 before image. 在 base (页面现在的已提交内容) 上
+     * 把这条更新修改过的槽 (和 after 中不同的槽) 恢复成 this 中的值, 同一页面上其他事务的修改不受影响
+     */
+    AbstractTuplePage undo(AbstractTuplePage after, byte[] base) {
+        var page = newPage(ByteBuffer.wrap(base));
+        for (int slot = 0; slot < numSlots(); slot++)
+        {
+            var record = record(slot);
+            if (!Arrays.equals(record, after.record(slot))) page.setRecord(slot, record);
+        }
+        return page;
+    }
+
+    private boolean soleOwner(TransactionId tid) {
+        for (var owner : owners.values())
+        {
+            if (!owner.equals(tid)) return false;
+        }
+        return true;
+    }
+
+    // base 的一份拷贝加上 tid 在这个页面上修改的行
+    private AbstractTuplePage withRows(AbstractTuplePage base, TransactionId tid) {
+        var page = newPage(ByteBuffer.wrap(base.getPageData()));
+        owners.forEach((slot, owner) -> {
+            if (owner.equals(tid)) page.setRecord(slot, record(slot));
+        });
+        return page;
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    @Override
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.transactionId = dirty ? tid : null;
+        rowsWritten = !dirty;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty.
+     * A page with uncommitted row changes stays dirty until all of them commit or roll back.
+     */
+    @Override
+    public TransactionId isDirty() {
+        var tid = transactionId;
+        if (tid != null) return tid;
+        for (var owner : owners.values())
+        {
+            return owner;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean needsFlush() {
+        return transactionId != null || !owners.isEmpty() && !rowsWritten;
+    }
+
+    @Override
+    public boolean isDirtiedBy(TransactionId tid) {
+        if (owners.isEmpty()) return transactionId != null;
+        return tid.equals(transactionId) || owners.containsValue(tid);
+    }
+}
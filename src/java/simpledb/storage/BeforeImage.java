@@ -0,0 +1,57 @@
+package simpledb.storage;
+
+import java.util.function.Supplier;
+
+/**
+ * 页面的 before image (最近一次提交时的内容), 写时复制.
+ * <p>
+ * 页面读进来和提交之后不保存副本, 这时页面的当前内容就是 before image. 事务拿到写权限,
+ * 修改页面之前调用 {@link #capture} 保存一份; 提交时 {@link #release} 丢掉它,
+ * 修改后的内容成为新的 before image. 只被读的页面从不复制.
+ * <p>
+ * 各种 Page 用它实现 {@link Page#captureBeforeImage}, {@link Page#getBeforeImage} 和 {@link Page#setBeforeImage}.
+ */
+public final class BeforeImage {
+    private byte[] data;
+
+    /**
+     * 还没有保存时保存 current 的结果
+     *
+     * @param current 页面当前内容的序列化, 返回的数组归这里所有
+     * @return 这次调用是否保存了新的副本
+     */
+    public synchronized boolean capture(Supplier<byte[]> current) {
+        if (data != null) return false;
+        data = current.get();
+        return true;
+    }
+
+    /**
+     * @param current 页面当前内容的序列化, 没有保存副本时用它
+     * @return before image 的一份拷贝, 调用者可以随意使用
+     */
+    public synchronized byte[] copy(Supplier<byte[]> current) {
+        return data != null ? data.clone() : current.get();
+    }
+
+    /**
+     * 丢掉保存的副本, 页面的当前内容成为 before image
+     */
+    public synchronized void release() {
+        data = null;
+    }
+
+    /**
+     * 用 data 代替保存的副本: 页面上只有一部分修改提交时, 提交后的已提交内容, 见 {@link AbstractTuplePage#commit}
+     */
+    public synchronized void replace(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @return 保存的副本占用的字节数, 没有时为 0
+     */
+    public synchronized int size() {
+        return data == null ? 0 : data.length;
+    }
+}
@@ -1,18 +1,20 @@
 package simpledb.storage;
 
 
-import java.util.concurrent.ConcurrentLinkedDeque;
-import org.w3c.dom.Node;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
 import simpledb.transaction.Locks.LockManager;
+import simpledb.transaction.Locks.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.utils.LogPrint;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
@@ -33,6 +35,10 @@ public class BufferPool {
      * constructor instead.
      */
     public static final int DEFAULT_PAGES = 50;
+    /**
+     * Default page replacement policy.
+     */
+    public static final ReplacementPolicy.Kind DEFAULT_REPLACEMENT = ReplacementPolicy.Kind.CLOCK;
     /**
      * Bytes per page, including header.
      */
@@ -40,7 +46,22 @@ public class BufferPool {
     private static int pageSize = DEFAULT_PAGE_SIZE;
     private LockManager lockManager;
     private PagesManager pagesManager;
-    ;
+    private final PageFrameArena frames;
+    private final ReadAhead readAhead;
+    private final PageCleaner cleaner;
+    private final VersionStore versions = new VersionStore();
+    /**
+     * discardPage 的次数; 预读在读盘期间如果有页面被 discard, 读到的内容可能已经过期, 放弃装入
+     */
+    private final AtomicLong discards = new AtomicLong();
+    /**
+     * 保存 before image 的次数
+     */
+    private final AtomicLong beforeImageCaptures = new AtomicLong();
+    /**
+     * 正在从磁盘读入的页面; 同一页面同时只有一个线程(事务或预读)读盘, 其他线程等它读完
+     */
+    private final ConcurrentHashMap<PageId, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -48,8 +69,54 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_REPLACEMENT);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * given page replacement policy.
+     *
+     * @param numPages    maximum number of pages in this buffer pool.
+     * @param replacement the page replacement policy
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind replacement) {
+        this(numPages, replacement, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     * <p>
+     * In off-heap mode the raw bytes of cached pages live in a preallocated
+     * arena of direct buffers (see {@link PageFrameArena}) instead of on the
+     * Java heap; pages that support it read their tuples straight from the
+     * frame.
+     *
+     * @param numPages    maximum number of pages in this buffer pool.
+     * @param replacement the page replacement policy
+     * @param offHeap     whether to keep page bytes in off-heap frames
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind replacement, boolean offHeap) {
         lockManager = new LockManager();
-        pagesManager = new PagesManager(numPages);
+        pagesManager = new PagesManager(numPages, replacement.create(numPages));
+        // 多一个页帧: 缺页时先读入新页面, 再淘汰旧页面
+        frames = offHeap ? new PageFrameArena(numPages + 1, pageSize) : null;
+        readAhead = new ReadAhead(this, numPages / 4);
+        cleaner = new PageCleaner(this);
+    }
+
+    /**
+     * @return the read-ahead subsystem of this buffer pool, used by access
+     * methods to report sequential access and to configure the prefetch window
+     */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @return the background writer that writes committed pages back to disk
+     */
+    public PageCleaner getPageCleaner() {
+        return cleaner;
     }
 
     public static int getPageSize() {
@@ -82,6 +149,11 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid))
+        {
+            if (perm == Permissions.READ_WRITE) throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+            return versions.read(tid, pid, this::justGetPage);
+        }
 
         try
         {
@@ -102,25 +174,198 @@ public class BufferPool {
             throw e;
         }
 
+        var page = justGetPage(pid);
+        // 第一次拿到写权限时保存 before image, 之后才会被修改; 只读的页面不复制
+        if (perm == Permissions.READ_WRITE && page != null && page.captureBeforeImage())
+        {
+            beforeImageCaptures.incrementAndGet();
+        }
+        return page;
+    }
+
+    /**
+     * 按行修改页面: 在表和页上加 IX, 不加页上的 X, 其他事务可以同时修改这一页的其他行.
+     * 要修改的行由调用者用 {@link #lockTuple} 加 X; before image 由页面在第一次修改时自己保存,
+     * 见 {@link TuplePage#insertTuples(TransactionId, List, int)}.
+     */
+    public Page getPageForTuples(TransactionId tid, PageId pid) throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+        lockManager.getPageIntentionLock(pid, tid, LockMode.X);
         return justGetPage(pid);
     }
 
+    /**
+     * 在元组上加锁, 事务结束时释放
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        if (versions.isSnapshot(tid)) return;
+        lockManager.getTupleLock(rid, tid, perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S);
+    }
+
+    public boolean holdsTupleLock(TransactionId tid, RecordId rid, Permissions perm) {
+        return lockManager.holdsTupleLock(rid, tid, perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S);
+    }
+
+    /**
+     * @return 事务在页上持有的锁, 包括意向锁; {@link #whichLock} 只报告 S/X
+     */
+    public LockMode pageLock(TransactionId tid, PageId pid) {
+        return lockManager.whichPageLock(pid, tid);
+    }
+
+    /**
+     * 不加锁读取页面, 只能读提示性的信息 (比如空槽数), 拿到锁之后要重新检查
+     */
+    public Page getPageWithoutLock(PageId pid) throws DbException {
+        return justGetPage(pid);
+    }
+
+    /**
+     * 开始一个只读的快照事务: 之后 tid 读到的是开始时已经提交的内容, 不加锁, 不会和写事务互相阻塞.
+     * 快照事务不能修改页面, 用 {@link #transactionComplete(TransactionId, boolean)} 结束.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /**
+     * @return 为快照保存的旧页面版本数
+     */
+    public int getNumPageVersions() {
+        return versions.numVersions();
+    }
+
+    /**
+     * @return 缓存中的页面为 before image 保存的副本一共占用的字节数; 只有未提交的修改持有副本
+     */
+    public long getBeforeImageBytes() {
+        var bytes = new AtomicLong();
+        pagesManager.forEachPageId(pid -> {
+            var p = pagesManager.peek(pid);
+            if (p != null) bytes.addAndGet(p.getBeforeImageSize());
+        });
+        return bytes.get();
+    }
+
+    /**
+     * @return 保存 before image 的累计次数
+     */
+    public long getNumBeforeImageCaptures() {
+        return beforeImageCaptures.get();
+    }
+
+    // 按行修改的页面自己保存 before image 时调用
+    void beforeImageCaptured() {
+        beforeImageCaptures.incrementAndGet();
+    }
+
+    /**
+     * @return 堆外模式下页帧的总数, 不是堆外模式时为 0
+     */
+    public int getNumFrames() {
+        return frames == null ? 0 : frames.getNumFrames();
+    }
+
+    /**
+     * @return 堆外模式下空闲的页帧数; 每个驻留的页面最多占一个页帧, 离开缓冲池时归还
+     */
+    public int getNumFreeFrames() {
+        return frames == null ? 0 : frames.available();
+    }
+
+    /**
+     * 在表上加锁. 扫描整张表时加 S, 之后读这张表的页不再加页锁; 修改前加 IX.
+     * 表锁在事务结束时释放.
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode) throws TransactionAbortedException {
+        if (versions.isSnapshot(tid)) return;
+        lockManager.getTableLock(tableId, tid, mode);
+    }
+
+    public LockMode tableLock(TransactionId tid, int tableId) {
+        return lockManager.whichTableLock(tableId, tid);
+    }
+
     private Page justGetPage(PageId pid) throws DbException {
         var page = pagesManager.get(pid);
-        if (page != null) return page;
+        if (page != null)
+        {
+            readAhead.onHit(pid);
+            return page;
+        }
+        var done = new CompletableFuture<Void>();
+        var other = loading.putIfAbsent(pid, done);
+        if (other != null)
+        {
+            other.join();
+            return justGetPage(pid);
+        }
         try
         {
-            var f = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            var p = f.readPage(pid);
-            if (p != null) pagesManager.put(p);
-            return p;
+            page = pagesManager.get(pid);
+            if (page != null) return page;
+            var p = readFromDisk(pid);
+            var resident = pagesManager.putIfAbsent(p);
+            if (resident != p) releaseFrame(p);
+            return resident;
         } catch (NoSuchElementException | IndexOutOfBoundsException e)
         {
             e.printStackTrace();
             return null;
+        } finally
+        {
+            loading.remove(pid);
+            done.complete(null);
+        }
+    }
+
+    private Page readFromDisk(PageId pid) {
+        var f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        var frame = frames != null && frames.getPageSize() == pageSize ? frames.acquire() : null;
+        var p = frame == null ? f.readPage(pid) : f.readPage(pid, frame);
+        if (frame != null && (p == null || p.getFrame() != frame)) frames.release(frame);
+        return p;
+    }
+
+    /**
+     * 预读: 不加锁地把页面装入缓冲池.
+     * <p>
+     * 页面不在缓冲池中时磁盘上就是它最新的已提交内容 (NO STEAL, 提交时刷盘);
+     * 唯一的例外是读盘期间有人直接改写了磁盘并 discard 了页面 (回滚, B+ 树复用空页), 这时放弃装入.
+     *
+     * @return 是否装入了页面
+     */
+    boolean prefetchPage(PageId pid) {
+        var done = new CompletableFuture<Void>();
+        var other = loading.putIfAbsent(pid, done);
+        if (other != null)
+        {
+            other.join();
+            return false;
+        }
+        try
+        {
+            if (pagesManager.contains(pid)) return false;
+            long epoch = discards.get();
+            var p = readFromDisk(pid);
+            if (p == null) return false;
+            if (pagesManager.putPrefetched(p, epoch)) return true;
+            releaseFrame(p);
+            return false;
+        } finally
+        {
+            loading.remove(pid);
+            done.complete(null);
         }
     }
 
+    /**
+     * @return 驻留的页面, 不影响置换策略; 不在缓冲池中时返回 null
+     */
+    Page peekPage(PageId pid) {
+        return pagesManager.peek(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -140,9 +385,14 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) {
+        if (versions.isSnapshot(tid))
+        {
+            versions.end(tid);
+            return;
+        }
         try
         {
-            flushPages(tid);
+            commitPages(tid);
         } catch (IOException e)
         {
             e.printStackTrace();
@@ -154,6 +404,7 @@ public class BufferPool {
             else p.setBeforeImage();
             unsafeReleasePage(tid, pid);
         });
+        lockManager.releaseAll(tid);
 
     }
 
@@ -176,6 +427,11 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
+        if (versions.isSnapshot(tid))
+        {
+            versions.end(tid);
+            return;
+        }
         if (commit)
         {
             transactionComplete(tid);
@@ -189,7 +445,7 @@ public class BufferPool {
             //放锁
             LogPrint.print("[" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":开始回滚事务");
             var lists = lockManager.getPagesByTid(tid);
-            for (PageId pid : lists)
+            if (!lists.isEmpty())
             {
                 try
                 {
@@ -198,12 +454,26 @@ public class BufferPool {
                 {
                     throw new RuntimeException(e);
                 }
-                //                LogPrint.print("[" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":releaseLock PID" + pid.getPageNumber());
+            }
+            for (PageId pid : lists)
+            {
+                // 磁盘上不一定是最新的已提交内容 (可能还没写回), 不能直接丢弃页面, 用 before image 恢复;
+                // 只持有页上的 IX 时其他事务可能也修改了这一页, 只恢复自己的行
+                boolean restored = false;
+                if (lockManager.whichLock(pid, tid) == Permissions.READ_WRITE)
+                {
+                    pagesManager.restore(pid);
+                    restored = true;
+                }
+                else if (pagesManager.peek(pid) instanceof AbstractTuplePage p) restored = p.rollback(tid);
+                if (restored && Database.getCatalog().getDatabaseFile(pid.getTableId()) instanceof HeapFile hf)
+                {
+                    hf.pageRestored(pid);
+                }
                 unsafeReleasePage(tid, pid);
                 LogPrint.print("[" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":releaseLock PID" + pid.getPageNumber() + " OK");
-                discardPage(pid);
-                //                LogPrint.print("[" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":pageManager.delete PID" + pid.getPageNumber());
             }
+            lockManager.releaseAll(tid);
         }
     }
 
@@ -230,6 +500,21 @@ public class BufferPool {
         pagesManager.putAll(list);
     }
 
+    /**
+     * 批量插入元组, 见 {@link DbFile#insertTuples}. 只查一次 Catalog, 每个被修改的页面只标记一次脏.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples) throws DbException, IOException, TransactionAbortedException {
+        var list = Database.getCatalog().getDatabaseFile(tableId).insertTuples(tid, tuples);
+        list.forEach(page -> {
+            page.markDirty(true, tid);
+        });
+        pagesManager.putAll(list);
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -260,7 +545,8 @@ public class BufferPool {
         pagesManager.forEachPageId(pid -> {
             try
             {
-                if (pagesManager.get(pid).isDirty() != null)
+                var p = pagesManager.get(pid);
+                if (p != null && p.isDirty() != null)
                 {
                     flushPage(pid);
                 }
@@ -282,6 +568,16 @@ public class BufferPool {
      */
     public void discardPage(PageId pid) {
         pagesManager.delete(pid);
+        cleaner.forget(pid);
+        discards.incrementAndGet();
+    }
+
+    /**
+     * Write every committed page that the page cleaner has not written back
+     * yet. Called before a buffer pool is thrown away.
+     */
+    public void flushCommittedPages() throws IOException {
+        cleaner.flush();
     }
 
     /**
@@ -290,17 +586,57 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private void flushPage(PageId pid) throws IOException {
-        var page = pagesManager.get(pid);
-        if (page != null)
+        var page = pagesManager.peek(pid);
+        if (page == null) return;
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null)
         {
-            TransactionId dirtier = page.isDirty();
-            if (dirtier != null)
-            {
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
-            }
-            page.markDirty(false, null);
+            // 已提交还没写回的页面
+            cleaner.writeBack(pid);
+            return;
+        }
+        // 按行修改的页面写盘之后仍然是脏的, 没有新的修改时不再写
+        if (!page.needsFlush()) return;
+        var log = Database.getLogFile();
+        long seq = page.logUncommitted(log);
+        log.force();
+        cleaner.lockWrites();
+        try
+        {
+            // 先写盘再清除脏标记: 写盘期间页面不能被淘汰, 预读不会读到写了一半的旧内容
             Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            page.markDirty(false, null);
+            cleaner.forget(pid);
+            log.pageWritten(pid, seq);
+        } finally
+        {
+            cleaner.unlockWrites();
+        }
+    }
+
+    /**
+     * 提交: 为事务的每个脏页写一条更新日志, 只强制写一次日志, 页面本身交给 {@link PageCleaner} 在后台写回.
+     * <p>
+     * 顺序很重要: 先写日志并发布新的 before image (由 {@link Page#commit} 原子地完成, 同一页上按行修改的其他事务
+     * 不会插在中间; {@link VersionStore#commit} 同时保存快照还要读的旧版本), 再交给 cleaner (cleaner 写的是
+     * before image, 写之前强制写到它对应的日志), 交给 cleaner 之后才清除脏标记 (清除之后页面就可以被淘汰, 淘汰时由 cleaner 写回).
+     */
+    private void commitPages(TransactionId tid) throws IOException {
+        var dirty = new ArrayList<Page>();
+        for (PageId pid : lockManager.getPagesByTid(tid))
+        {
+            var p = pagesManager.peek(pid);
+            if (p != null && p.isDirtiedBy(tid)) dirty.add(p);
+        }
+        if (dirty.isEmpty()) return;
+        var log = Database.getLogFile();
+        var seqs = versions.commit(dirty, p -> p.commit(tid, log));
+        log.force();
+        for (int i = 0; i < seqs.length; i++)
+        {
+            var p = dirty.get(i);
+            cleaner.committed(p.getId(), seqs[i]);
+            p.markDirty(false, null);
         }
     }
 
@@ -344,128 +680,188 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized void evictPage() throws DbException {
-        PageId pid = pagesManager.getNotDirtyLRUPage();
+    private void evictPage() throws DbException {
+        PageId pid = pagesManager.getNotDirtyPage();
         if (pid == null) return;
+        //已提交还没写回的页面先写回, 其他页面磁盘上已是最新内容, 直接丢弃
         try
         {
-            //不脏
-            flushPage(pid);
-            discardPage(pid);
+            cleaner.writeBack(pid);
         } catch (IOException e)
         {
-            e.printStackTrace();
+            throw new DbException("write back page " + pid.getPageNumber() + " failed: " + e.getMessage());
         }
+        pagesManager.delete(pid);
     }
 
+    /**
+     * 页面离开缓冲池时把它的页帧还给 arena
+     */
+    private void releaseFrame(Page page) {
+        if (page == null || frames == null) return;
+        var frame = page.getFrame();
+        if (frame == null) return;
+        page.detachFrame();
+        frames.release(frame);
+    }
+
+    /**
+     * 页表: PageId -> 页帧.
+     * <p>
+     * 页表本身是一个 {@link ConcurrentHashMap}, 命中路径 ({@link #get}) 不加任何全局锁,
+     * 只调用置换策略的 {@link ReplacementPolicy#touch}, 因此并发扫描不同页面时不会在同一个 monitor 上串行.
+     * 装入新页面、淘汰和删除页面时持有 {@link #evictionLock}, 置换策略的其他方法都在这把锁内调用.
+     */
     private class PagesManager {
 
-        private volatile Map<PageId, PageNode> pages;
-        private volatile PageNode head,tail;
+        private final ConcurrentHashMap<PageId, PageNode> pages;
+        private final ReplacementPolicy policy;
+        private final Object evictionLock = new Object();
         private final int numPages;
 
-        public PagesManager(int numPages) {
+        public PagesManager(int numPages, ReplacementPolicy policy) {
             this.numPages = numPages;
-            pages = new HashMap<>(numPages);
-
-            head=new PageNode();
-            tail=new PageNode();
-            head.next=tail;
-            tail.prev=head;
+            this.policy = policy;
+            pages = new ConcurrentHashMap<>(numPages);
         }
 
-        public synchronized Page get(PageId pid) {
+        public Page get(PageId pid) {
             if (pid == null) return null;
-            if(!pages.containsKey(pid))return null;
-            var pa = pages.get(pid);
-            removeNode(pa);
-            addFirst(pa);
-            return pa.page;
+            var node = pages.get(pid);
+            if (node == null) return null;
+            policy.touch(node.entry);
+            return node.page;
+        }
+
+        public Page peek(PageId pid) {
+            var node = pages.get(pid);
+            return node == null ? null : node.page;
         }
 
-        public synchronized void put(Page page) throws DbException {
+        public boolean contains(PageId pid) {
+            return pages.containsKey(pid);
+        }
+
+        public void put(Page page) throws DbException {
             if (page == null) return;
-            PageNode node;
-            if(pages.containsKey(page.getId())){
-              node=pages.get(page.getId());
-              node.page=page;
-              removeNode(node);
-            }else{
-              if (pages.size() == numPages)
-                evictPage();
-              node=new PageNode(page,page.getId());
-              pages.put(page.getId(),node);
+            synchronized (evictionLock)
+            {
+                var node = pages.get(page.getId());
+                if (node != null)
+                {
+                    var old = node.page;
+                    node.page = page;
+                    policy.touch(node.entry);
+                    if (old != page) releaseFrame(old);
+                }
+                else install(page);
             }
-            addFirst(node);
         }
 
-      private synchronized void addFirst(PageNode node) {
-          node.next=head.next;
-          node.prev=head;
-          head.next.prev=node;
-          head.next=node;
-      }
+        /**
+         * 装入从磁盘读到的页面; 如果其他线程已经先一步装入了同一页面, 返回已驻留的那一份.
+         */
+        public Page putIfAbsent(Page page) throws DbException {
+            if (page == null) return null;
+            synchronized (evictionLock)
+            {
+                var node = pages.get(page.getId());
+                if (node == null) node = install(page);
+                else policy.touch(node.entry);
+                return node.page;
+            }
+        }
 
-      private synchronized void removeNode(PageNode node) {
-          node.prev.next=node.next;
-          node.next.prev=node.prev;
-      }
+        /**
+         * 装入预读的页面. 页面已驻留、读盘期间有页面被 discard 或者腾不出空间时不装入.
+         */
+        public boolean putPrefetched(Page page, long epoch) {
+            synchronized (evictionLock)
+            {
+                if (discards.get() != epoch || pages.containsKey(page.getId())) return false;
+                try
+                {
+                    install(page);
+                    return true;
+                } catch (DbException e)
+                {
+                    return false;
+                }
+            }
+        }
+
+        private PageNode install(Page page) throws DbException {
+            if (pages.size() >= numPages)
+                evictPage();
+            var node = new PageNode(page, policy.admit(page.getId()));
+            pages.put(page.getId(), node);
+            return node;
+        }
 
-      public synchronized void putAll(Collection<? extends Page> p) throws DbException {
+        public void putAll(Collection<? extends Page> p) throws DbException {
             for (Page page : p)
             {
                 put(page);
             }
         }
 
-        public synchronized void delete(PageId pageId) {
-          if(pageId==null)return;
-          var pa = pages.get(pageId);
-          if (pa == null) return;
-          removeNode(pa);
-          pages.remove(pageId);
+        public void delete(PageId pageId) {
+            if (pageId == null) return;
+            synchronized (evictionLock)
+            {
+                var node = pages.remove(pageId);
+                if (node == null) return;
+                policy.remove(node.entry);
+                releaseFrame(node.page);
+                readAhead.onEvict(pageId);
+            }
+        }
+
+        /**
+         * 用 before image (最近一次提交时的内容) 替换页面, 丢弃未提交的修改
+         */
+        public void restore(PageId pid) {
+            synchronized (evictionLock)
+            {
+                var node = pages.get(pid);
+                if (node == null) return;
+                var old = node.page;
+                node.page = old.getBeforeImage();
+                releaseFrame(old);
+            }
         }
 
-        public synchronized void forEachPageId(Consumer<PageId> action) {
+        public void forEachPageId(Consumer<PageId> action) {
             if (action == null) return;
             pages.keySet().forEach(action);
         }
 
-        public synchronized PageId getNotDirtyLRUPage() throws DbException {
-            boolean allDirty = false;
-            PageNode currentNode=tail.prev;
-            while (currentNode!=head)
-            {
-                var value = currentNode.page;
-                if (value != null){
-                    if (value.isDirty() == null){
-                      return currentNode.id;
-                    }else {
-                      currentNode=currentNode.prev;
-                    }
-                }
-                allDirty = true;
-            }
-            if (allDirty)
+        public PageId getNotDirtyPage() throws DbException {
+            synchronized (evictionLock)
             {
-                throw new DbException("all page is dirty");
+                if (pages.isEmpty()) return null;
+                // 优先淘汰已经写回的页面, 没有时再淘汰需要先写回的已提交页面
+                var pid = policy.victim(id -> {
+                    var node = pages.get(id);
+                    return node != null && node.page.isDirty() == null && !cleaner.isPending(id);
+                });
+                if (pid == null) pid = policy.victim(id -> {
+                    var node = pages.get(id);
+                    return node != null && node.page.isDirty() == null;
+                });
+                if (pid == null) throw new DbException("all page is dirty");
+                return pid;
             }
-            return null;
-
         }
 
         private class PageNode {
-            Page page;
-            PageId id;
-            PageNode prev,next;
+            final ReplacementPolicy.Entry entry;
+            volatile Page page;
 
-            public PageNode(Page page, PageId id) {
-                this.id = id;
+            public PageNode(Page page, ReplacementPolicy.Entry entry) {
+                this.entry = entry;
                 this.page = page;
             }
-
-            public PageNode() {
-            }
         }
     }
 
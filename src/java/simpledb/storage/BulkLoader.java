@@ -0,0 +1,452 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.index.BTreeBulkBuilder;
+import simpledb.index.BTreeFile;
+import simpledb.optimizer.Histogram;
+import simpledb.optimizer.IntHistogram;
+import simpledb.optimizer.StringHistogram;
+import simpledb.optimizer.TableStats;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 批量导入: 把 CSV 或二进制的记录流直接编码成页面, 顺序写到文件, 不经过缓冲池, 也不写日志.
+ * <p>
+ * 输入只读一遍, 记录在内存里只以页面中的字节格式存在, 不构造 Tuple.
+ * 堆文件按输入顺序填满页面; B+ 树先做外部排序 (内存放不下时排好的段写到临时文件, 再多路归并),
+ * 再用 {@link BTreeBulkBuilder} 按填充因子自底向上建树. 读输入的同时统计 {@link TableStats},
+ * 最后把表登记到 Catalog, 统计信息按表名登记.
+ * <p>
+ * 输出文件会被覆盖, 不能是正在使用的表 (缓冲池中不能有它的页面).
+ *
+ * @see HeapFileEncoder
+ * @see simpledb.index.BTreeFileEncoder
+ */
+public class BulkLoader {
+    /**
+     * 外部排序默认使用的内存
+     */
+    public static final long DEFAULT_SORT_MEMORY = 64L << 20;
+    private static final int IO_BUFFER = 1 << 20;
+    private static final int RUN_BUFFER = 256 << 10;
+    // 每条记录在排序缓冲中除了数据本身的大约开销 (数组头和引用)
+    private static final int RECORD_OVERHEAD = 24;
+    // 直方图用的样本行数
+    private static final int STATS_SAMPLE = 10_000;
+    private static final int NUM_HIST_BINS = 10;
+
+    /**
+     * 导入的记录来源
+     */
+    public interface Source extends Closeable {
+        TupleDesc getTupleDesc();
+
+        /**
+         * 读下一条记录, 按页面中的格式写进 record
+         *
+         * @param record td.getSize() 字节, 会被整个覆盖
+         * @return 输入结束时返回 false
+         */
+        boolean next(byte[] record) throws IOException;
+    }
+
+    /**
+     * 每行一条记录, 字段用 separator 分隔, 格式和 {@link HeapFileEncoder} 相同; 空行被跳过,
+     * 字符串超过 {@link Type#STRING_LEN} 时截断
+     */
+    public static Source csv(File in, TupleDesc td, char separator) throws IOException {
+        var reader = new BufferedReader(new FileReader(in), IO_BUFFER);
+        return new Source() {
+            int line;
+
+            @Override
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            @Override
+            public boolean next(byte[] record) throws IOException {
+                String s;
+                do
+                {
+                    s = reader.readLine();
+                    line++;
+                    if (s == null) return false;
+                } while (s.isBlank());
+                var buf = ByteBuffer.wrap(record);
+                int from = 0;
+                for (int i = 0; i < td.numFields(); i++)
+                {
+                    int to = i == td.numFields() - 1 ? s.length() : s.indexOf(separator, from);
+                    if (to < 0) throw new IOException(in + ":" + line + ": expected " + td.numFields() + " fields");
+                    try
+                    {
+                        encode(td.getFieldType(i), s.substring(from, to).trim(), buf);
+                    } catch (NumberFormatException e)
+                    {
+                        throw new IOException(in + ":" + line + ": bad field " + i + ": " + e.getMessage());
+                    }
+                    from = to + 1;
+                }
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    /**
+     * 文件是首尾相接的定长记录, 每条的格式和页面中的元组相同 (字段按 {@link Field#serialize} 的格式)
+     */
+    public static Source binary(File in, TupleDesc td) throws IOException {
+        var input = new BufferedInputStream(new FileInputStream(in), IO_BUFFER);
+        return new Source() {
+            @Override
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            @Override
+            public boolean next(byte[] record) throws IOException {
+                int n = input.readNBytes(record, 0, record.length);
+                if (n == 0) return false;
+                if (n < record.length) throw new IOException(in + ": truncated record at the end");
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        };
+    }
+
+    private static void encode(Type type, String s, ByteBuffer buf) {
+        switch (type)
+        {
+            case INT_TYPE -> buf.putInt(Integer.parseInt(s));
+            case DOUBLE_TYPE -> buf.putDouble(Double.parseDouble(s));
+            case STRING_TYPE -> {
+                // 和 StringField.serialize 一样, 每个字符只写低 8 位
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                buf.putInt(len);
+                for (int i = 0; i < len; i++)
+                    buf.put((byte) s.charAt(i));
+                for (int i = len; i < Type.STRING_LEN; i++)
+                    buf.put((byte) 0);
+            }
+        }
+    }
+
+    /**
+     * 导入一个堆文件
+     *
+     * @param out  输出文件, 会被覆盖
+     * @param name 登记到 Catalog 的表名
+     */
+    public static HeapFile loadHeapFile(Source in, File out, String name) throws IOException {
+        var td = in.getTupleDesc();
+        int recordSize = td.getSize();
+        int slots = HeapPage.numSlots(td);
+        int headerSize = (slots + 7) / 8;
+        var stats = new StatsCollector(td);
+        var page = new byte[BufferPool.getPageSize()];
+        var record = new byte[recordSize];
+        int pages = 0;
+        int n = 0;
+        try (in; var os = new BufferedOutputStream(new FileOutputStream(out), IO_BUFFER))
+        {
+            while (in.next(record))
+            {
+                stats.add(record);
+                page[n / 8] |= (byte) (1 << (n % 8));
+                System.arraycopy(record, 0, page, headerSize + n * recordSize, recordSize);
+                if (++n == slots)
+                {
+                    os.write(page);
+                    Arrays.fill(page, (byte) 0);
+                    pages++;
+                    n = 0;
+                }
+            }
+            // 和 HeapFileEncoder 一样, 空表也有一个空页
+            if (n > 0 || pages == 0) os.write(page);
+        }
+        var file = new HeapFile(out, td);
+        register(file, name, "", stats);
+        return file;
+    }
+
+    public static BTreeFile loadBTreeFile(Source in, File out, String name, int keyField, double fillFactor) throws IOException {
+        return loadBTreeFile(in, out, name, keyField, fillFactor, DEFAULT_SORT_MEMORY);
+    }
+
+    /**
+     * 导入一个 B+ 树文件
+     *
+     * @param out        输出文件, 会被覆盖
+     * @param name       登记到 Catalog 的表名, 主键是 keyField
+     * @param fillFactor 页面的目标填充率, 见 {@link BTreeBulkBuilder}
+     * @param sortMemory 外部排序在内存中排序的数据量, 超过时分段写到临时文件
+     */
+    public static BTreeFile loadBTreeFile(Source in, File out, String name, int keyField, double fillFactor, long sortMemory) throws IOException {
+        var td = in.getTupleDesc();
+        var stats = new StatsCollector(td);
+        try (var sorter = new ExternalSort(td.getSize(), keyOrder(td, keyField), sortMemory))
+        {
+            try (in)
+            {
+                var record = new byte[td.getSize()];
+                while (in.next(record))
+                {
+                    stats.add(record);
+                    sorter.add(record);
+                }
+            }
+            try (var os = new BufferedOutputStream(new FileOutputStream(out), IO_BUFFER))
+            {
+                var builder = new BTreeBulkBuilder(td, keyField, fillFactor, sorter.size(), os);
+                for (var r = sorter.next(); r != null; r = sorter.next())
+                {
+                    builder.add(r);
+                }
+                builder.finish();
+            }
+        }
+        var file = new BTreeFile(out, keyField, td);
+        register(file, name, td.getFieldName(keyField), stats);
+        return file;
+    }
+
+    private static void register(DbFile file, String name, String pkeyField, StatsCollector stats) {
+        Database.getCatalog().addTable(file, name, pkeyField);
+        TableStats.setTableStats(name, stats.build(file));
+    }
+
+    /**
+     * 按键字段比较两条记录, 和对应 Field 的 compare 一致 (字符串按字节比较, 对 ASCII 和 String.compareTo 相同)
+     */
+    static Comparator<byte[]> keyOrder(TupleDesc td, int keyField) {
+        int offset = 0;
+        for (int i = 0; i < keyField; i++)
+        {
+            offset += td.getFieldType(i).getLen();
+        }
+        final int off = offset;
+        return switch (td.getFieldType(keyField))
+        {
+            case INT_TYPE -> (a, b) -> Integer.compare(ByteBuffer.wrap(a).getInt(off), ByteBuffer.wrap(b).getInt(off));
+            case DOUBLE_TYPE -> (a, b) -> Double.compare(ByteBuffer.wrap(a).getDouble(off), ByteBuffer.wrap(b).getDouble(off));
+            case STRING_TYPE -> (a, b) -> {
+                int la = ByteBuffer.wrap(a).getInt(off), lb = ByteBuffer.wrap(b).getInt(off);
+                return Arrays.compareUnsigned(a, off + 4, off + 4 + la, b, off + 4, off + 4 + lb);
+            };
+        };
+    }
+
+    /**
+     * 外部排序: 数据量不超过 memory 时在内存里排序, 否则把排好的段写到临时文件, 输出时多路归并
+     */
+    private static final class ExternalSort implements Closeable {
+        private final int recordSize;
+        private final Comparator<byte[]> order;
+        private final int runRecords;
+        private final List<byte[]> buffer = new ArrayList<>();
+        private final List<File> runs = new ArrayList<>();
+        private final List<DataInputStream> readers = new ArrayList<>();
+        private long size;
+        private boolean sorted;
+        private int index;
+        private PriorityQueue<Run> merge;
+
+        ExternalSort(int recordSize, Comparator<byte[]> order, long memory) {
+            this.recordSize = recordSize;
+            this.order = order;
+            this.runRecords = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, memory / (recordSize + RECORD_OVERHEAD)));
+        }
+
+        void add(byte[] record) throws IOException {
+            if (buffer.size() == runRecords) spill();
+            buffer.add(record.clone());
+            size++;
+        }
+
+        long size() {
+            return size;
+        }
+
+        private void spill() throws IOException {
+            buffer.sort(order);
+            var run = File.createTempFile("bulkload", ".run");
+            run.deleteOnExit();
+            runs.add(run);
+            try (var os = new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER))
+            {
+                for (var r : buffer)
+                    os.write(r);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * @return 按顺序的下一条记录, 没有时返回 null. 第一次调用后不能再 add
+         */
+        byte[] next() throws IOException {
+            if (!sorted)
+            {
+                sorted = true;
+                if (runs.isEmpty()) buffer.sort(order);
+                else
+                {
+                    if (!buffer.isEmpty()) spill();
+                    merge = new PriorityQueue<>(runs.size(), (a, b) -> order.compare(a.head, b.head));
+                    for (var f : runs)
+                    {
+                        var run = new Run(new DataInputStream(new BufferedInputStream(new FileInputStream(f), RUN_BUFFER)));
+                        readers.add(run.in);
+                        if (run.advance()) merge.add(run);
+                    }
+                }
+            }
+            if (merge == null)
+            {
+                if (index == buffer.size()) return null;
+                // 交出去之后不再需要, 让它尽早被回收
+                return buffer.set(index++, null);
+            }
+            var run = merge.poll();
+            if (run == null) return null;
+            var r = run.head;
+            if (run.advance()) merge.add(run);
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var in : readers)
+                in.close();
+            for (var f : runs)
+                f.delete();
+        }
+
+        private final class Run {
+            final DataInputStream in;
+            byte[] head;
+
+            Run(DataInputStream in) {
+                this.in = in;
+            }
+
+            boolean advance() throws IOException {
+                var r = new byte[recordSize];
+                if (in.readNBytes(r, 0, recordSize) < recordSize) return false;
+                head = r;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 读输入时统计: 精确的行数和每个字段的最小最大值, 直方图用蓄水池抽样的样本行
+     */
+    private static final class StatsCollector {
+        private final TupleDesc td;
+        private final int[] offsets;
+        private final int[] minInt, maxInt;
+        private final String[] minString, maxString;
+        private final byte[][] sample = new byte[STATS_SAMPLE][];
+        private long count;
+
+        StatsCollector(TupleDesc td) {
+            this.td = td;
+            int n = td.numFields();
+            offsets = new int[n];
+            for (int i = 1; i < n; i++)
+            {
+                offsets[i] = offsets[i - 1] + td.getFieldType(i - 1).getLen();
+            }
+            minInt = new int[n];
+            maxInt = new int[n];
+            Arrays.fill(minInt, Integer.MAX_VALUE);
+            Arrays.fill(maxInt, Integer.MIN_VALUE);
+            minString = new String[n];
+            maxString = new String[n];
+        }
+
+        void add(byte[] record) {
+            count++;
+            var buf = ByteBuffer.wrap(record);
+            for (int i = 0; i < offsets.length; i++)
+            {
+                switch (td.getFieldType(i))
+                {
+                    case INT_TYPE -> {
+                        int v = buf.getInt(offsets[i]);
+                        minInt[i] = Math.min(minInt[i], v);
+                        maxInt[i] = Math.max(maxInt[i], v);
+                    }
+                    case STRING_TYPE -> {
+                        var v = string(buf, offsets[i]);
+                        if (minString[i] == null || v.compareTo(minString[i]) < 0) minString[i] = v;
+                        if (maxString[i] == null || v.compareTo(maxString[i]) > 0) maxString[i] = v;
+                    }
+                    default -> {
+                    }
+                }
+            }
+            if (count <= STATS_SAMPLE) sample[(int) count - 1] = record.clone();
+            else
+            {
+                long j = ThreadLocalRandom.current().nextLong(count);
+                if (j < STATS_SAMPLE) sample[(int) j] = record.clone();
+            }
+        }
+
+        private static String string(ByteBuffer buf, int offset) {
+            int len = Math.max(0, Math.min(Type.STRING_LEN, buf.getInt(offset)));
+            return new String(buf.array(), offset + 4, len, StandardCharsets.ISO_8859_1);
+        }
+
+        TableStats build(DbFile file) {
+            List<Histogram<?>> histograms = new ArrayList<>(offsets.length);
+            for (int i = 0; i < offsets.length; i++)
+            {
+                histograms.add(switch (td.getFieldType(i))
+                {
+                    case INT_TYPE -> new IntHistogram(NUM_HIST_BINS, minInt[i], maxInt[i]);
+                    case STRING_TYPE -> new StringHistogram(NUM_HIST_BINS,
+                            minString[i] == null ? "" : minString[i], maxString[i] == null ? "" : maxString[i]);
+                    default -> null;
+                });
+            }
+            for (int k = 0; k < Math.min(count, STATS_SAMPLE); k++)
+            {
+                var buf = ByteBuffer.wrap(sample[k]);
+                for (int i = 0; i < offsets.length; i++)
+                {
+                    switch (td.getFieldType(i))
+                    {
+                        case INT_TYPE -> ((IntHistogram) histograms.get(i)).addValue(buf.getInt(offsets[i]));
+                        case STRING_TYPE -> ((StringHistogram) histograms.get(i)).addValue(string(buf, offsets[i]));
+                        default -> {
+                        }
+                    }
+                }
+            }
+            return new TableStats(file, (int) Math.min(Integer.MAX_VALUE, count), histograms);
+        }
+    }
+}
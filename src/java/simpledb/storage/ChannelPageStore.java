@@ -0,0 +1,66 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于 FileChannel 定位读写的存储后端
+ */
+public class ChannelPageStore implements PageStore {
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    public ChannelPageStore(File f) throws IOException {
+        raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining())
+        {
+            int n = channel.read(dst, position + total);
+            if (n == -1) break;
+            total += n;
+        }
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining())
+        {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * FileChannel 没有定位的 gathering write, 只能先设置 channel 的位置;
+     * 其他读写都是定位的, 不受影响
+     */
+    @Override
+    public synchronized void write(long position, ByteBuffer[] srcs) throws IOException {
+        channel.position(position);
+        long remaining = 0;
+        for (ByteBuffer src : srcs)
+            remaining += src.remaining();
+        while (remaining > 0)
+        {
+            remaining -= channel.write(srcs);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * 二次机会(CLOCK)置换策略.
+ * <p>
+ * 页帧组成一个环, 命中时只设置访问位; 淘汰时指针沿环前进, 清除遇到的访问位,
+ * 停在第一个访问位为 0 且允许淘汰的页面上. 每个访问位最多被清一次, 所以淘汰是 O(1) 均摊的.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private ClockEntry hand;
+    private int size;
+
+    @Override
+    public Entry admit(PageId pid) {
+        var e = new ClockEntry(pid);
+        if (hand == null)
+        {
+            e.prev = e;
+            e.next = e;
+            hand = e;
+        }
+        else
+        {
+            // 插在指针之前, 新页面是一圈中最后被检查的
+            e.next = hand;
+            e.prev = hand.prev;
+            hand.prev.next = e;
+            hand.prev = e;
+        }
+        size++;
+        return e;
+    }
+
+    @Override
+    public void touch(Entry entry) {
+        var e = (ClockEntry) entry;
+        if (!e.referenced) e.referenced = true;
+    }
+
+    @Override
+    public void remove(Entry entry) {
+        var e = (ClockEntry) entry;
+        if (e.next == null) return;
+        if (e.next == e) hand = null;
+        else
+        {
+            if (hand == e) hand = e.next;
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+        }
+        e.next = null;
+        e.prev = null;
+        size--;
+    }
+
+    @Override
+    public PageId victim(Predicate<PageId> evictable) {
+        // 两圈之内所有访问位都会被清掉, 仍找不到说明没有可淘汰的页面
+        for (int i = 0; hand != null && i < 2 * size; i++)
+        {
+            var e = hand;
+            hand = hand.next;
+            if (!evictable.test(e.pid)) continue;
+            if (e.referenced)
+            {
+                e.referenced = false;
+                continue;
+            }
+            return e.pid;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static class ClockEntry extends Entry {
+        volatile boolean referenced;
+        ClockEntry prev, next;
+
+        ClockEntry(PageId pid) {
+            super(pid);
+        }
+    }
+}
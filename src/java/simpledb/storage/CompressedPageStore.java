@@ -0,0 +1,415 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 按页压缩的存储后端.
+ * <p>
+ * 对 DbFile 来说它和其他后端一样是一个按字节偏移读写的文件 (逻辑文件). 逻辑文件被切成块:
+ * origin 为 0 时每块一个页面 ({@link BufferPool#getPageSize()} 字节); 否则 [0, origin) 单独一块,
+ * 之后每块一个页面, 例如 BTreeFile 开头的根指针页. 每块用 {@link Lz4Codec} 单独压缩, 存在数据文件中,
+ * 块号到数据文件位置的对应关系 (页面映射) 存在旁边的 {@code .map} 文件:
+ *
+ * <pre>
+ * magic        int
+ * block size   int     页面大小, 打开时必须和 BufferPool 一致
+ * origin       long
+ * logical size long    逻辑文件的字节数
+ * entries      (offset long, length int) * 块数
+ * </pre>
+ * <p>
+ * length 为 0 表示全零的块, 不占数据文件的空间, 所以预留的空页是免费的; 等于块大小表示不可压缩, 原样存放;
+ * 否则是压缩后的字节数. 数据文件中的空间按 {@link #SECTOR} 字节为单位分配.
+ * <p>
+ * 块从不原地改写: 新内容总是写到新分配的空间, 写完之后才改映射项, 改完映射项才释放旧空间.
+ * 进程在任何时候中断, 映射指向的都是一份完整的内容 (旧的或新的); 打开时映射之外的空间都当作空闲.
+ * <p>
+ * 读取时把块直接解压到调用者的缓冲区 (BufferPool 装入页面的页帧), 页帧不在堆上时经过每个线程一块的暂存区,
+ * 所以扫描读盘的字节数和磁盘占用都按压缩比减少. 读写用读写锁互斥, 多个读可以并发.
+ * <p>
+ * 打开一个有数据但没有 {@code .map} 文件的文件时, 把它当作未压缩的文件 (例如 {@link HeapFileEncoder} 的输出) 整个转换一遍.
+ */
+public class CompressedPageStore implements PageStore {
+    /**
+     * 数据文件分配空间的单位
+     */
+    public static final int SECTOR = 512;
+    private static final int MAGIC = 0x53444a5a;
+    private static final int HEADER = 24;
+    private static final int ENTRY = 12;
+
+    private final FileChannel data;
+    private final FileChannel map;
+    private final RandomAccessFile dataFile;
+    private final RandomAccessFile mapFile;
+    private final int blockSize;
+    private final long origin;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile long logicalSize;
+    private long[] offsets = new long[0];
+    private int[] lengths = new int[0];
+    /**
+     * 空闲空间, 相邻的合并: 位置 -> 大小, 以及按大小查找用的 大小 -> 位置
+     */
+    private final TreeMap<Long, Integer> freeByOffset = new TreeMap<>();
+    private final TreeMap<Integer, TreeSet<Long>> freeBySize = new TreeMap<>();
+    private long dataEnd;
+
+    /**
+     * 读压缩数据的暂存区, 每个线程一块; 页帧不在堆上时也用来放解压的结果
+     */
+    private final ThreadLocal<byte[]> input;
+    private final ThreadLocal<byte[]> output;
+    /**
+     * 写用的暂存区, 写持有写锁, 共用一份
+     */
+    private final byte[] block;
+    private final byte[] packed;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * @param origin 第一个页面块在逻辑文件中的起点, 之前的部分单独成一块
+     */
+    public CompressedPageStore(File f, long origin) throws IOException {
+        File m = mapFile(f);
+        if (!m.exists()) convert(f, origin);
+        this.blockSize = BufferPool.getPageSize();
+        this.origin = origin;
+        int max = (int) Math.max(blockSize, origin);
+        input = ThreadLocal.withInitial(() -> new byte[max]);
+        output = ThreadLocal.withInitial(() -> new byte[max]);
+        block = new byte[max];
+        packed = new byte[Lz4Codec.maxCompressedLength(max)];
+        dataFile = new RandomAccessFile(f, "rw");
+        mapFile = new RandomAccessFile(m, "rw");
+        data = dataFile.getChannel();
+        map = mapFile.getChannel();
+        if (map.size() == 0) writeHeader();
+        else load();
+    }
+
+    private static File mapFile(File f) {
+        return new File(f.getPath() + ".map");
+    }
+
+    /**
+     * 把未压缩的文件 f 转换成压缩格式: 先写到临时文件, 完成后替换 f 和它的映射文件
+     */
+    private static void convert(File f, long origin) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        File tmpMap = mapFile(tmp);
+        if (!tmp.exists() && tmpMap.exists())
+        {
+            // 上次转换换掉了数据文件之后中断, 补上映射文件
+            Files.move(tmpMap.toPath(), mapFile(f).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        if (f.length() == 0) return;
+        Files.deleteIfExists(tmp.toPath());
+        Files.deleteIfExists(tmpMap.toPath());
+        var raw = new ChannelPageStore(f);
+        var out = new CompressedPageStore(tmp, origin);
+        try
+        {
+            var buf = ByteBuffer.allocate(BufferPool.getPageSize() * 64);
+            long pos = 0;
+            int n;
+            while ((n = raw.read(pos, buf.clear())) > 0)
+            {
+                out.write(pos, buf.flip());
+                pos += n;
+            }
+        } finally
+        {
+            raw.close();
+            out.close();
+        }
+        // 先换数据文件: 映射文件还不存在时中断, 下次打开由上面补上
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpMap.toPath(), mapFile(f).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeHeader() throws IOException {
+        var h = ByteBuffer.allocate(HEADER);
+        h.putInt(MAGIC).putInt(blockSize).putLong(origin).putLong(logicalSize).flip();
+        writeFully(map, 0, h);
+    }
+
+    private void load() throws IOException {
+        var h = ByteBuffer.allocate(HEADER);
+        readFully(map, 0, h);
+        h.flip();
+        if (h.getInt() != MAGIC) throw new IOException("not a page map");
+        if (h.getInt() != blockSize) throw new IOException("page map was written with another page size");
+        if (h.getLong() != origin) throw new IOException("page map was written with another origin");
+        logicalSize = h.getLong();
+        int blocks = blockOf(logicalSize - 1) + 1;
+        offsets = new long[blocks];
+        lengths = new int[blocks];
+        var entries = ByteBuffer.allocate(blocks * ENTRY);
+        readFully(map, HEADER, entries);
+        entries.flip();
+        for (int b = 0; b < blocks; b++)
+        {
+            offsets[b] = entries.getLong();
+            lengths[b] = entries.getInt();
+        }
+        // 映射项指向的区间之间的空隙就是空闲空间, 包括中断的写入写了一半的空间
+        Integer[] order = new Integer[blocks];
+        for (int b = 0; b < blocks; b++)
+            order[b] = b;
+        Arrays.sort(order, (x, y) -> Long.compare(offsets[x], offsets[y]));
+        for (int b : order)
+        {
+            if (lengths[b] == 0) continue;
+            if (offsets[b] > dataEnd) release(dataEnd, (int) (offsets[b] - dataEnd));
+            dataEnd = Math.max(dataEnd, offsets[b] + capacity(lengths[b]));
+        }
+    }
+
+    private static void readFully(FileChannel ch, long pos, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining())
+        {
+            int n = ch.read(dst, pos);
+            if (n < 0) throw new IOException("unexpected end of file");
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, long pos, ByteBuffer src) throws IOException {
+        while (src.hasRemaining())
+        {
+            pos += ch.write(src, pos);
+        }
+    }
+
+    private static int capacity(int length) {
+        return (length + SECTOR - 1) / SECTOR * SECTOR;
+    }
+
+    private int blockOf(long pos) {
+        if (pos < 0) return -1;
+        if (origin == 0) return (int) (pos / blockSize);
+        return pos < origin ? 0 : (int) ((pos - origin) / blockSize) + 1;
+    }
+
+    private long blockStart(int b) {
+        if (origin == 0) return (long) b * blockSize;
+        return b == 0 ? 0 : origin + (long) (b - 1) * blockSize;
+    }
+
+    private int blockLength(int b) {
+        return origin != 0 && b == 0 ? (int) origin : blockSize;
+    }
+
+    /**
+     * @return 逻辑文件的字节数
+     */
+    @Override
+    public long size() {
+        return logicalSize;
+    }
+
+    /**
+     * @return 数据文件的字节数, 也就是压缩后的大小
+     */
+    public long physicalSize() throws IOException {
+        return data.size();
+    }
+
+    /**
+     * @return 读取时从数据文件读过的字节数
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    // 把块 b 的内容放到 out[at, at + blockLength(b)), 调用者持有锁
+    private void readBlock(int b, byte[] out, int at) throws IOException {
+        int n = blockLength(b);
+        if (b >= lengths.length || lengths[b] == 0)
+        {
+            Arrays.fill(out, at, at + n, (byte) 0);
+            return;
+        }
+        int len = lengths[b];
+        bytesRead.addAndGet(len);
+        if (len == n)
+        {
+            readFully(data, offsets[b], ByteBuffer.wrap(out, at, n));
+            return;
+        }
+        var in = input.get();
+        readFully(data, offsets[b], ByteBuffer.wrap(in, 0, len));
+        Lz4Codec.decompress(in, 0, len, out, at, n);
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        lock.readLock().lock();
+        try
+        {
+            long end = Math.min(logicalSize, position + dst.remaining());
+            if (position >= end) return dst.hasRemaining() ? -1 : 0;
+            int total = 0;
+            while (position < end)
+            {
+                int b = blockOf(position);
+                int n = blockLength(b);
+                int off = (int) (position - blockStart(b));
+                int len = (int) Math.min(end - position, n - off);
+                if (off == 0 && len == n && dst.hasArray())
+                {
+                    // 整块读到堆上的缓冲区: 直接解压到它的数组里
+                    readBlock(b, dst.array(), dst.arrayOffset() + dst.position());
+                    dst.position(dst.position() + n);
+                }
+                else
+                {
+                    var out = output.get();
+                    readBlock(b, out, 0);
+                    dst.put(out, off, len);
+                }
+                position += len;
+                total += len;
+            }
+            return total;
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        lock.writeLock().lock();
+        try
+        {
+            long end = position + src.remaining();
+            while (position < end)
+            {
+                int b = blockOf(position);
+                int n = blockLength(b);
+                int off = (int) (position - blockStart(b));
+                int len = (int) Math.min(end - position, n - off);
+                // 只覆盖块的一部分时先读出原来的内容
+                if (off != 0 || len != n) readBlock(b, block, 0);
+                src.get(block, off, len);
+                writeBlock(b, n);
+                position += len;
+            }
+            if (end > logicalSize)
+            {
+                logicalSize = end;
+                writeHeader();
+            }
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 把 block[0, n) 写成块 b
+    private void writeBlock(int b, int n) throws IOException {
+        if (b >= lengths.length)
+        {
+            int size = Math.max(b + 1, lengths.length * 2);
+            offsets = Arrays.copyOf(offsets, size);
+            lengths = Arrays.copyOf(lengths, size);
+        }
+        byte[] stored = null;
+        int len = 0;
+        if (!isZero(block, n))
+        {
+            stored = packed;
+            len = Lz4Codec.compress(block, n, packed);
+            if (len >= n)
+            {
+                stored = block;
+                len = n;
+            }
+        }
+        long offset = 0;
+        if (len > 0)
+        {
+            offset = allocate(capacity(len));
+            writeFully(data, offset, ByteBuffer.wrap(stored, 0, len));
+        }
+        long oldOffset = offsets[b];
+        int oldLength = lengths[b];
+        offsets[b] = offset;
+        lengths[b] = len;
+        var entry = ByteBuffer.allocate(ENTRY);
+        entry.putLong(offset).putInt(len).flip();
+        writeFully(map, HEADER + (long) b * ENTRY, entry);
+        if (oldLength > 0) release(oldOffset, capacity(oldLength));
+    }
+
+    private static boolean isZero(byte[] block, int n) {
+        for (int i = 0; i < n; i++)
+        {
+            if (block[i] != 0) return false;
+        }
+        return true;
+    }
+
+    // 优先用最小的够大的空闲区间, 同样大小时用最靠前的; 没有时追加到文件末尾
+    private long allocate(int cap) {
+        Map.Entry<Integer, TreeSet<Long>> e = freeBySize.ceilingEntry(cap);
+        if (e == null)
+        {
+            long offset = dataEnd;
+            dataEnd += cap;
+            return offset;
+        }
+        long offset = e.getValue().first();
+        removeFree(offset, e.getKey());
+        if (e.getKey() > cap) release(offset + cap, e.getKey() - cap);
+        return offset;
+    }
+
+    private void release(long offset, int cap) {
+        var before = freeByOffset.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset)
+        {
+            removeFree(before.getKey(), before.getValue());
+            offset = before.getKey();
+            cap += before.getValue();
+        }
+        var after = freeByOffset.get(offset + cap);
+        if (after != null)
+        {
+            removeFree(offset + cap, after);
+            cap += after;
+        }
+        freeByOffset.put(offset, cap);
+        freeBySize.computeIfAbsent(cap, k -> new TreeSet<>()).add(offset);
+    }
+
+    private void removeFree(long offset, int cap) {
+        freeByOffset.remove(offset);
+        var set = freeBySize.get(cap);
+        set.remove(offset);
+        if (set.isEmpty()) freeBySize.remove(cap);
+    }
+
+    @Override
+    public void close() throws IOException {
+        dataFile.close();
+        mapFile.close();
+    }
+}
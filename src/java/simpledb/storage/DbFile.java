@@ -2,10 +2,14 @@ package simpledb.storage;
 
 import simpledb.common.Catalog;
 import simpledb.common.DbException;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
@@ -28,6 +32,18 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into a BufferPool frame. The
+     * returned page may adopt the frame as its backing store (see
+     * {@link Page#getFrame}); files that cannot use frames just fall back
+     * to {@link #readPage(PageId)}.
+     *
+     * @param frame a direct buffer of {@link BufferPool#getPageSize()} bytes
+     */
+    default Page readPage(PageId id, ByteBuffer frame) {
+        return readPage(id);
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -37,6 +53,18 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Push a batch of pages of this file to disk. Files may sort the pages
+     * and merge contiguous ones into larger writes.
+     *
+     * @param pages the pages to write, in any order
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<? extends Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -52,6 +80,29 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples on behalf of transaction. Files that can
+     * fill pages sequentially should override this to lock and modify each
+     * page once per batch; the default inserts the tuples one by one.
+     *
+     * @param tid    The transaction performing the update
+     * @param tuples The tuples to add, in order. Each tuple is updated to
+     *               reflect where it is now stored.
+     * @return The pages that were modified, each listed once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        var dirty = new LinkedHashMap<PageId, Page>();
+        for (Tuple t : tuples)
+        {
+            for (Page p : insertTuple(tid, t))
+                dirty.put(p.getId(), p);
+        }
+        return new ArrayList<>(dirty.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -77,6 +128,49 @@ public interface DbFile {
      */
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the given columns of the tuples stored in this
+     * DbFile. The returned tuples have the TupleDesc
+     * {@code getTupleDesc().project(columns)} and are only meant for reading.
+     * Files that store columns separately only read the requested ones; the
+     * default reads whole tuples and projects them.
+     * @param columns the indices of the columns to return, in output order,
+     *                or null for all columns
+     * @param pageFilters predicates on the columns of the table (not of the
+     *                    projection). Pages that cannot hold a tuple matching
+     *                    all of them may be skipped; tuples on the other pages
+     *                    are returned unfiltered, so callers still apply the
+     *                    predicates. The default ignores them.
+     */
+    default DbFileIterator iterator(TransactionId tid, int[] columns, List<Predicate> pageFilters) {
+        var it = iterator(tid);
+        if (columns == null) return it;
+        var projected = getTupleDesc().project(columns);
+        return new AbstractDbFileIterator() {
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                it.open();
+            }
+
+            @Override
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                return it.hasNext() ? it.next().project(projected, columns) : null;
+            }
+
+            @Override
+            public void rewind() throws DbException, TransactionAbortedException {
+                super.close();
+                it.rewind();
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                it.close();
+            }
+        };
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -0,0 +1,84 @@
+package simpledb.storage;
+
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * HeapFile 的空闲空间表: 每页一位, 置位表示这个页可能还有空槽.
+ * <p>
+ * 只是提示, 不需要和页面严格一致: 插入拿到页面写锁后会再检查一次, 发现满了就清掉这一位.
+ * 插入后页面满了清位, 删除或回滚后置位. 表第一次用到时从页面头部的位图建立,
+ * 文件被其他途径加长时也会补上新增的页.
+ * <p>
+ * 另外记录最小的可能置位的页号, 往文件末尾追加的插入不需要每次从第 0 页开始找.
+ */
+class FreeSpaceMap {
+    private final BitSet free = new BitSet();
+    // 已经登记的页数
+    private int pages;
+    // 页号小于 first 的页都没有置位
+    private int first;
+
+    /**
+     * 登记文件新增的页
+     *
+     * @param numPages 文件当前的页数
+     * @param hasRoom  检查页面是否有空槽
+     */
+    synchronized void grow(int numPages, IntPredicate hasRoom) {
+        for (; pages < numPages; pages++)
+        {
+            if (hasRoom.test(pages)) set(pages);
+        }
+    }
+
+    /**
+     * @return 一个可能有空槽的页号, 没有时返回 -1
+     */
+    synchronized int find() {
+        first = free.nextSetBit(first);
+        if (first < 0)
+        {
+            first = pages;
+            return -1;
+        }
+        return first;
+    }
+
+    /**
+     * @return 页号 page 之后下一个可能有空槽的页号, 没有时返回 -1
+     */
+    synchronized int findAfter(int page) {
+        return free.nextSetBit(page + 1);
+    }
+
+    synchronized void update(int page, boolean hasRoom) {
+        if (page >= pages) return;
+        if (hasRoom) set(page);
+        else free.clear(page);
+    }
+
+    /**
+     * 预留文件末尾的 n 个新页, 它们不会被 {@link #find()} 返回, 直到调用者用 {@link #update} 登记
+     *
+     * @return 第一个新页的页号
+     */
+    synchronized int reserve(int n) {
+        int start = pages;
+        pages += n;
+        return start;
+    }
+
+    synchronized int numPages() {
+        return pages;
+    }
+
+    synchronized int numFreePages() {
+        return free.cardinality();
+    }
+
+    private void set(int page) {
+        free.set(page);
+        if (page < first) first = page;
+    }
+}
@@ -3,14 +3,16 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
+import simpledb.transaction.Locks.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -19,15 +21,148 @@ import java.util.List;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor. A HeapFile may instead use the slotted page format of
+ * SlottedHeapPage or the column-wise format of PaxHeapPage, chosen per table
+ * with {@link Layout}.
  *
  * @author Sam Madden
  * @see HeapPage#HeapPage
+ * @see SlottedHeapPage
+ * @see PaxHeapPage
  */
 public class HeapFile implements DbFile {
+    /**
+     * 数据页的格式, 由建表时决定, 文件本身不记录
+     */
+    public enum Layout {
+        /**
+         * 定长槽位和头部位图, 见 {@link HeapPage}
+         */
+        FIXED {
+            @Override
+            TuplePage page(HeapPageId pid, ByteBuffer data) {
+                return new HeapPage(pid, data);
+            }
+
+            @Override
+            boolean tupleLocks() {
+                return true;
+            }
+
+            @Override
+            int probeSize(TupleDesc td) {
+                return (HeapPage.numSlots(td) + 7) / 8;
+            }
+
+            @Override
+            boolean hasRoom(ByteBuffer probe, TupleDesc td) {
+                return HeapPage.hasEmptySlot(probe, HeapPage.numSlots(td));
+            }
+
+            @Override
+            int pagesFor(TupleDesc td, List<Tuple> tuples, int from) throws DbException {
+                int perPage = HeapPage.numSlots(td);
+                if (perPage == 0) throw new DbException("tuple does not fit in a page");
+                return (tuples.size() - from + perPage - 1) / perPage;
+            }
+        },
+        /**
+         * 槽目录和变长记录, 见 {@link SlottedHeapPage}
+         */
+        SLOTTED {
+            @Override
+            TuplePage page(HeapPageId pid, ByteBuffer data) {
+                return new SlottedHeapPage(pid, data);
+            }
+
+            @Override
+            int probeSize(TupleDesc td) {
+                return SlottedHeapPage.HEADER_SIZE;
+            }
+
+            @Override
+            boolean hasRoom(ByteBuffer probe, TupleDesc td) {
+                return SlottedHeapPage.hasRoom(probe, td);
+            }
+
+            @Override
+            int pagesFor(TupleDesc td, List<Tuple> tuples, int from) throws DbException {
+                long bytes = 0;
+                for (int i = from; i < tuples.size(); i++)
+                {
+                    int size = SlottedHeapPage.recordSize(td, tuples.get(i));
+                    if (size > SlottedHeapPage.capacity()) throw new DbException("tuple does not fit in a page");
+                    bytes += size + SlottedHeapPage.SLOT_SIZE;
+                }
+                int perPage = SlottedHeapPage.capacity() + SlottedHeapPage.SLOT_SIZE;
+                return (int) ((bytes + perPage - 1) / perPage);
+            }
+        },
+        /**
+         * 定长槽位, 页内按列存放, 见 {@link PaxHeapPage}
+         */
+        PAX {
+            @Override
+            TuplePage page(HeapPageId pid, ByteBuffer data) {
+                return new PaxHeapPage(pid, data);
+            }
+
+            @Override
+            boolean tupleLocks() {
+                return true;
+            }
+
+            @Override
+            int probeSize(TupleDesc td) {
+                return (PaxHeapPage.numSlots(td) + 7) / 8;
+            }
+
+            @Override
+            boolean hasRoom(ByteBuffer probe, TupleDesc td) {
+                return HeapPage.hasEmptySlot(probe, PaxHeapPage.numSlots(td));
+            }
+
+            @Override
+            int pagesFor(TupleDesc td, List<Tuple> tuples, int from) throws DbException {
+                int perPage = PaxHeapPage.numSlots(td);
+                if (perPage == 0) throw new DbException("tuple does not fit in a page");
+                return (tuples.size() - from + perPage - 1) / perPage;
+            }
+        };
+
+        abstract TuplePage page(HeapPageId pid, ByteBuffer data);
+
+        /**
+         * @return 插入和删除是否只在页上加 IX, 在行上加 X. 变长记录的页面删除后空出的空间会被其他事务的插入占用,
+         * 回滚时不一定放得回去, 仍然整页加 X
+         */
+        boolean tupleLocks() {
+            return false;
+        }
+
+        /**
+         * @return 判断页面有没有空间需要读的页面开头的字节数
+         */
+        abstract int probeSize(TupleDesc td);
+
+        /**
+         * @param probe 页面开头的 {@link #probeSize} 个字节
+         */
+        abstract boolean hasRoom(ByteBuffer probe, TupleDesc td);
+
+        /**
+         * 放下 tuples.get(from) 之后所有元组至少需要的新页数; 变长记录可能还需要更多
+         *
+         * @throws DbException 有元组一个空页也放不下
+         */
+        abstract int pagesFor(TupleDesc td, List<Tuple> tuples, int from) throws DbException;
+    }
+
     private File file;
     private TupleDesc td;
-    private RandomAccessFile raf;
+    private PageStore store;
+    private final Layout layout;
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -36,12 +171,41 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, PageStore.Kind.CHANNEL);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, read and written
+     * through the given storage backend.
+     *
+     * @param f       the file that stores the on-disk backing store for this heap
+     *                file.
+     * @param backend the storage backend used for page I/O
+     */
+    public HeapFile(File f, TupleDesc td, PageStore.Kind backend) {
+        this(f, td, backend, Layout.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages use
+     * the given format.
+     */
+    public HeapFile(File f, TupleDesc td, Layout layout) {
+        this(f, td, PageStore.Kind.CHANNEL, layout);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, read and written
+     * through the given storage backend, whose pages use the given format.
+     */
+    public HeapFile(File f, TupleDesc td, PageStore.Kind backend, Layout layout) {
         this.file = f;
         this.td = td;
+        this.layout = layout;
         try
         {
-            this.raf = new RandomAccessFile(file, "rw");
-        } catch (FileNotFoundException e)
+            this.store = backend.open(file);
+        } catch (IOException e)
         {
             e.printStackTrace();
         }
@@ -56,6 +220,13 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * @return the format of this file's pages
+     */
+    public Layout getLayout() {
+        return layout;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -80,23 +251,22 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
+        return readPage(pid, ByteBuffer.allocate(BufferPool.getPageSize()));
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid, ByteBuffer frame) {
         int id = pid.getTableId();
         int pagenum = pid.getPageNumber();
         if (pagenum >= numPages()) return null;
         try
         {
-            byte[] bytes = new byte[BufferPool.getPageSize()];
-            HeapPage page;
-            //            int off = 0;
-            int off = pagenum * BufferPool.getPageSize();
-            raf.seek(off);
-            var result = raf.read(bytes);
-            if (result != -1)
-            {
-                page = new HeapPage(new HeapPageId(id, pagenum), bytes);
-            }
-            else page = null;
-            return page;
+            frame.clear();
+            if (store.read((long) pagenum * BufferPool.getPageSize(), frame) == -1) return null;
+            while (frame.hasRemaining()) frame.put((byte) 0);
+            frame.clear();
+            return layout.page(new HeapPageId(id, pagenum), frame);
         } catch (IOException e)
         {
             e.printStackTrace();
@@ -108,8 +278,13 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         if (page == null) return;
-        raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
-        raf.write(page.getPageData());
+        store.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(), page.getPageData());
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public void writePages(List<? extends Page> pages) throws IOException {
+        store.writePages(pages, pid -> (long) pid.getPageNumber() * BufferPool.getPageSize());
     }
 
     /**
@@ -119,7 +294,7 @@ public class HeapFile implements DbFile {
         int number = 0;
         try
         {
-            number = (int) (raf.length() / BufferPool.getPageSize());
+            number = (int) (store.size() / BufferPool.getPageSize());
         } catch (IOException e)
         {
             e.printStackTrace();
@@ -130,30 +305,143 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        for (int i = 0; i < numPages(); i++)
+        return insertTuples(tid, List.of(t));
+    }
+
+    /**
+     * 先按空闲空间表依次填有空间的页, 每页加一次锁, 一次填满; 剩下的元组放进一次预留的一批新页.
+     * 变长记录在页尾可能放不满, 新页不够时再预留.
+     * 定长格式的已有页只加 IX, 插入的行加 X, 多个事务可以同时往同一页插入.
+     */
+    @Override
+    public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples) throws DbException, IOException, TransactionAbortedException {
+        var bp = Database.getBufferPool();
+        bp.lockTable(tid, getId(), LockMode.IX);
+        growFreeSpace();
+        var dirty = new ArrayList<Page>();
+        int done = 0;
+        for (int i = freeSpace.find(); i >= 0 && done < tuples.size(); i = freeSpace.findAfter(i))
         {
-            try
+            var pid = new HeapPageId(getId(), i);
+            // 不加锁看有没有空间, 满的页不留锁; 拿到写锁后再检查一次
+            if (!((TuplePage) bp.getPageWithoutLock(pid)).hasRoom())
             {
-                var page = Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_ONLY);
-                if (((HeapPage) page).getNumEmptySlots() != 0)
-                {
-                    page = Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
-                    ((HeapPage) page).insertTuple(t);
-                    return new ArrayList<>(List.of(page));
-                }
-                else
-                {
-                    if (Database.getBufferPool().whichLock(tid, page.getId()) == Permissions.READ_ONLY)
-                        Database.getBufferPool().unsafeReleasePage(tid, page.getId());
-                }
-
-            } catch (Exception e)
+                freeSpace.update(i, false);
+                continue;
+            }
+            boolean held = bp.pageLock(tid, pid) != null;
+            var page = pageForUpdate(tid, pid);
+            int n = page.insertTuples(tid, tuples, done);
+            freeSpace.update(i, page.hasRoom());
+            if (n != 0)
+            {
+                lockTuples(tid, tuples, done, n);
+                done += n;
+                dirty.add(page);
+            }
+            // 等锁的时候被别的事务插满了: 没有修改, 丢掉整页加锁时 getPage 保存的 before image 再放锁
+            else if (!held)
+            {
+                page.setBeforeImage();
+                bp.unsafeReleasePage(tid, pid);
+            }
+        }
+        while (done < tuples.size())
+        {
+            var fresh = reservePages(tid, layout.pagesFor(td, tuples, done));
+            for (var page : fresh)
             {
-                e.printStackTrace();
+                done += page.insertTuples(tid, tuples, done);
             }
+            registerPages(fresh);
+            dirty.addAll(fresh);
+        }
+        return dirty;
+    }
+
+    // 支持元组锁的格式在页上加 IX, 否则加 X
+    private TuplePage pageForUpdate(TransactionId tid, PageId pid) throws DbException, TransactionAbortedException {
+        var bp = Database.getBufferPool();
+        return (TuplePage) (layout.tupleLocks() ? bp.getPageForTuples(tid, pid) : bp.getPage(tid, pid, Permissions.READ_WRITE));
+    }
+
+    // 插入后再锁新行: 空槽上没有其他事务的修改, 只会短暂等待刚提交还没放锁的删除者
+    private void lockTuples(TransactionId tid, List<Tuple> tuples, int from, int n) throws TransactionAbortedException {
+        for (int i = from; i < from + n; i++)
+        {
+            Database.getBufferPool().lockTuple(tid, tuples.get(i).getRecordId(), Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * 在文件末尾一次追加 n 个空页, 给批量插入用. 新页已经加了写锁, 在调用者用
+     * {@link #registerPages} 登记之前, 其他事务的插入不会选中它们; 事务回滚时自动登记.
+     *
+     * @return 新页, 按页号排列
+     */
+    public List<TuplePage> reservePages(TransactionId tid, int n) throws DbException, IOException, TransactionAbortedException {
+        var bp = Database.getBufferPool();
+        bp.lockTable(tid, getId(), LockMode.IX);
+        int start;
+        synchronized (freeSpace)
+        {
+            growFreeSpace();
+            start = freeSpace.reserve(n);
+        }
+        // 各自写自己预留的范围, 并发预留不会互相覆盖
+        store.write((long) start * BufferPool.getPageSize(), new byte[n * BufferPool.getPageSize()]);
+        var pages = new ArrayList<TuplePage>(n);
+        for (int i = start; i < start + n; i++)
+        {
+            pages.add((TuplePage) bp.getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE));
         }
-        writePage(new HeapPage(new HeapPageId(getId(), numPages()), new byte[BufferPool.getPageSize()]));
-        return insertTuple(tid, t);
+        return pages;
+    }
+
+    /**
+     * 把页面当前的空闲情况登记到空闲空间表
+     */
+    public void registerPages(List<TuplePage> pages) {
+        for (var page : pages)
+        {
+            freeSpace.update(page.getId().getPageNumber(), page.hasRoom());
+        }
+    }
+
+    /**
+     * 页面的修改被回滚, 可能多出了空槽
+     */
+    void pageRestored(PageId pid) {
+        freeSpace.update(pid.getPageNumber(), true);
+    }
+
+    /**
+     * @return 空闲空间表中可能有空槽的页数
+     */
+    public int numFreePages() {
+        growFreeSpace();
+        return freeSpace.numFreePages();
+    }
+
+    // 登记文件新增的页, 第一次调用时建立整张表
+    private void growFreeSpace() {
+        freeSpace.grow(numPages(), this::hasRoom);
+    }
+
+    // 缓冲池里的页面可能比磁盘上的新, 优先看缓冲池; 否则只读页面头部
+    private boolean hasRoom(int pageNo) {
+        var page = Database.getBufferPool().peekPage(new HeapPageId(getId(), pageNo));
+        if (page != null) return ((TuplePage) page).hasRoom();
+        var header = ByteBuffer.allocate(layout.probeSize(td));
+        try
+        {
+            store.read((long) pageNo * BufferPool.getPageSize(), header);
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            return true;
+        }
+        return layout.hasRoom(header, td);
     }
 
     // see DbFile.java for javadocs
@@ -161,8 +449,10 @@ public class HeapFile implements DbFile {
         // some code goes here
         try
         {
-            var page = Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-            ((HeapPage) page).deleteTuple(t);
+            var page = pageForUpdate(tid, t.getRecordId().getPageId());
+            Database.getBufferPool().lockTuple(tid, t.getRecordId(), Permissions.READ_WRITE);
+            page.deleteTuple(tid, t);
+            freeSpace.update(page.getId().getPageNumber(), true);
             return new ArrayList<>(List.of(page));
         } catch (DbException e)
         {
@@ -173,11 +463,23 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null, List.of());
+    }
+
+    /**
+     * 页面只读取 columns 对应的列 (PAX 页面不访问其他列的字节), 按页面的统计信息跳过不可能满足 pageFilters 的页
+     *
+     * @see DbFile#iterator(TransactionId, int[], List)
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, int[] columns, List<Predicate> pageFilters) {
+        var projected = columns == null ? null : td.project(columns);
         return new AbstractDbFileIterator() {
             boolean open = false;
             int pages;
             int currentPage;
             Iterator<Tuple> it = null;
+            ReadAhead.Sequential readAhead;
 
             @Override
             public void close() {
@@ -193,20 +495,26 @@ public class HeapFile implements DbFile {
                     updateIt(currentPage);
                     if (it == null) return null;
                 }
-                if (it.hasNext())
+                // 被跳过的页可能连续很多, 用循环而不是递归
+                while (!it.hasNext())
                 {
-                    return it.next();
+                    currentPage++;
+                    updateIt(currentPage);
+                    if (it == null) return null;
                 }
-                currentPage++;
-                updateIt(currentPage);
-                return readNext();
+                return it.next();
             }
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 if (open) return;
+                // 整张表一个 S 锁, 之后读页面不再加页锁. 事务已经声明要写这张表 (持有 IX) 时改为逐页加 S,
+                // 否则 S 和 IX 合成 SIX, 其他事务在提交前都不能写这张表
+                var bp = Database.getBufferPool();
+                if (bp.tableLock(tid, getId()) != LockMode.IX) bp.lockTable(tid, getId(), LockMode.S);
                 pages = numPages();
                 currentPage = 0;
+                readAhead = Database.getBufferPool().getReadAhead().sequential(n -> new HeapPageId(getId(), n), pages);
                 open = true;
             }
 
@@ -226,9 +534,19 @@ public class HeapFile implements DbFile {
                     return;
                 }
                 PageId pid = new HeapPageId(getId(), currentPage);
-                HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                if (p != null) it = p.iterator();
-                else it = null;
+                var p = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                readAhead.access(currentPage);
+                if (p == null) it = null;
+                else if (!mayMatch(p)) it = Collections.emptyIterator();
+                else it = columns == null ? p.iterator() : p.iterator(columns, projected);
+            }
+
+            private boolean mayMatch(TuplePage p) {
+                for (var f : pageFilters)
+                {
+                    if (!p.mayMatch(f.getField(), f.getOp(), f.getOperand())) return false;
+                }
+                return true;
             }
         };
     }
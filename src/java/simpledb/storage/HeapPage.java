@@ -3,11 +3,12 @@ package simpledb.storage;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
-import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.List;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -16,17 +17,11 @@ import java.util.NoSuchElementException;
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage extends AbstractTuplePage {
 
-    final HeapPageId pid;
-    final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
-
-    byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
-    private TransactionId transactionId;
+    final int headerSize;
+    final int tupleSize;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -46,29 +41,50 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
-        this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Create a HeapPage directly on top of a buffer holding the page's bytes.
+     * The buffer is adopted, not copied: it may be a heap buffer or a direct
+     * frame owned by the BufferPool.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) {
+        super(id, data);
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+    }
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+    @Override
+    protected HeapPage newPage(ByteBuffer data) {
+        return new HeapPage(pid, data);
+    }
 
-        tuples = new Tuple[numSlots];
-        try
-        {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e)
-        {
-            e.printStackTrace();
-        }
-        dis.close();
+    @Override
+    protected boolean tupleLocks() {
+        return true;
+    }
+
+    @Override
+    protected int numSlots() {
+        return numSlots;
+    }
+
+    @Override
+    protected byte[] record(int slot) {
+        return read(buf -> {
+            if (!isSlotUsed(buf, slot)) return null;
+            var record = new byte[tupleSize];
+            buf.get(slotOffset(slot), record);
+            return record;
+        });
+    }
 
-        setBeforeImage();
+    @Override
+    protected void setRecord(int slot, byte[] record) {
+        data.put(slotOffset(slot), record == null ? new byte[tupleSize] : record);
+        markSlotUsed(slot, record != null);
     }
 
     /**
@@ -83,182 +99,53 @@ public class HeapPage implements Page {
         //1 位。因此，可以容纳在单个页面中的元组数为：
         //
         //_tuples per page_ = floor((_page size_ * 8) / (_tuple size_ * 8 + 1))
-        return BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        return numSlots(td);
     }
 
     /**
-     * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
-     *
-     * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
+     * @return 元组描述为 td 的页面的槽数
      */
-    private int getHeaderSize() {
-        // some code goes here
-        return (int) Math.ceil((double) numSlots / 8);
+    static int numSlots(TupleDesc td) {
+        return BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
     }
 
     /**
-     * Return a view of this page before it was modified
-     * -- used by recovery
+     * 只看页面头部的位图判断有没有空槽, 不需要构造页面
+     *
+     * @param header 页面开头的 ceiling(numSlots / 8) 个字节
      */
-    public HeapPage getBeforeImage() {
-        try
+    static boolean hasEmptySlot(ByteBuffer header, int numSlots) {
+        for (int i = 0; i < numSlots; i++)
         {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid, oldDataRef);
-        } catch (IOException e)
-        {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
-        }
-        return null;
-    }
-
-    public void setBeforeImage() {
-        synchronized (oldDataLock)
-        {
-            oldData = getPageData().clone();
+            if (!isSlotUsed(header, i)) return true;
         }
+        return false;
     }
 
     /**
-     * @return the PageId associated with this page.
+     * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
+     *
+     * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
-    public HeapPageId getId() {
+    private int getHeaderSize() {
         // some code goes here
-        return pid;
+        return (int) Math.ceil((double) numSlots / 8);
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId))
-        {
-            for (int i = 0; i < td.getSize(); i++)
-            {
-                try
-                {
-                    dis.readByte();
-                } catch (IOException e)
-                {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try
-        {
-            for (int j = 0; j < td.numFields(); j++)
-            {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e)
-        {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return t;
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
     }
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
-     *
-     * @return A byte array correspond to the bytes of this page.
-     * @see #HeapPage
+     * 读一个槽位, 槽位为空时返回 null. 只拷出这条记录的字节, 字段在被访问时才解码, 见 {@link TupleView}.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header)
-        {
-            try
-            {
-                dos.writeByte(b);
-            } catch (IOException e)
-            {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++)
-        {
-
-            // empty slot
-            if (!isSlotUsed(i))
-            {
-                for (int j = 0; j < td.getSize(); j++)
-                {
-                    try
-                    {
-                        dos.writeByte(0);
-                    } catch (IOException e)
-                    {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++)
-            {
-                Field f = tuples[i].getField(j);
-                try
-                {
-                    f.serialize(dos);
-
-                } catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try
-        {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e)
-        {
-            e.printStackTrace();
-        }
-
-        try
-        {
-            dos.flush();
-        } catch (IOException e)
-        {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    private Tuple readTuple(int slotId) {
+        return read(buf -> {
+            if (!isSlotUsed(buf, slotId)) return null;
+            var record = new byte[tupleSize];
+            buf.get(slotOffset(slotId), record);
+            return new TupleView(td, record, new RecordId(pid, slotId));
+        });
     }
 
     /**
@@ -283,19 +170,13 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
-        if (!t.getTupleDesc().equals(td) || !t.getRecordId().getPageId().equals(pid))
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td) || t.getRecordId() == null || !t.getRecordId().getPageId().equals(pid))
             throw new DbException("tuple not on this page");
-        for (int i = 0; i < tuples.length; i++)
-        {
-            if (t.equals(tuples[i]))
-            {
-                markSlotUsed(i, false);
-                tuples[i] = null;
-                return;
-            }
-        }
-        throw new DbException("tuple slot is already empty");
+        int slot = t.getRecordId().getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        setRecord(slot, null);
     }
 
     /**
@@ -306,44 +187,66 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         if (getNumEmptySlots() == 0 || !t.getTupleDesc().equals(td))
             throw new DbException("Page is full or tuple desc is mismatch");
-        for (int j = 0; j < tuples.length; j++)
+        for (int j = 0; j < numSlots; j++)
         {
-            if (tuples[j] == null)
+            if (!isSlotUsed(j) && !isReserved(j))
             {
+                var baos = new ByteArrayOutputStream(td.getSize());
+                var dos = new DataOutputStream(baos);
+                try
+                {
+                    for (int i = 0; i < td.numFields(); i++)
+                        t.getField(i).serialize(dos);
+                    dos.flush();
+                } catch (IOException e)
+                {
+                    throw new DbException("can't serialize tuple: " + e.getMessage());
+                }
+                data.put(slotOffset(j), baos.toByteArray());
                 markSlotUsed(j, true);
                 t.setRecordId(new RecordId(pid, j));
-                tuples[j] = t;
                 return;
             }
         }
+        throw new DbException("Page is full");
     }
 
     /**
-     * Marks this page as dirty/not dirty and record that transaction
-     * that did the dirtying
+     * Adds tuples.get(from), tuples.get(from + 1), ... to the empty slots of
+     * this page in slot order, until the page is full or the list runs out.
+     * The slots are scanned once for the whole batch.
+     *
+     * @return the number of tuples added
+     * @throws DbException if a tuple's tupledesc is mismatch
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
-        // some code goes here
-        // not necessary for lab1
-        if (dirty)
-        {
-            this.transactionId = tid;
-        }
-        else
+    public synchronized int insertTuples(List<Tuple> tuples, int from) throws DbException {
+        var baos = new ByteArrayOutputStream(td.getSize());
+        var dos = new DataOutputStream(baos);
+        int n = from;
+        for (int j = 0; j < numSlots && n < tuples.size(); j++)
         {
-            this.transactionId = null;
+            if (isSlotUsed(j) || isReserved(j)) continue;
+            var t = tuples.get(n);
+            if (!t.getTupleDesc().equals(td)) throw new DbException("tuple desc is mismatch");
+            baos.reset();
+            try
+            {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.getField(i).serialize(dos);
+                dos.flush();
+            } catch (IOException e)
+            {
+                throw new DbException("can't serialize tuple: " + e.getMessage());
+            }
+            data.put(slotOffset(j), baos.toByteArray());
+            markSlotUsed(j, true);
+            t.setRecordId(new RecordId(pid, j));
+            n++;
         }
-    }
-
-    /**
-     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
-     */
-    public TransactionId isDirty() {
-        // some code goes here
-        return transactionId;
+        return n - from;
     }
 
     /**
@@ -351,24 +254,29 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int sum = header.length * 8;
-        //        int sum = 0;
-        for (byte b : header)
+        int sum = 0;
+        for (int i = 0; i < numSlots; i++)
         {
-            for (int j = 0; j < 8; j++)
-            {
-                if (((b >>> j) & 1) == 1) sum--;
-            }
+            if (!isSlotUsed(i)) sum++;
         }
         return sum;
     }
 
+    @Override
+    public boolean hasRoom() {
+        return getNumEmptySlots() != 0;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        byte b = header[i / 8];
+        return read(buf -> isSlotUsed(buf, i));
+    }
+
+    static boolean isSlotUsed(ByteBuffer buf, int i) {
+        byte b = buf.get(i / 8);
         return b != 0 && ((b >>> (i % 8)) & 1) == 1;
     }
 
@@ -377,7 +285,7 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
-        int b = header[i / 8];
+        int b = data.get(i / 8);
         if (value)
         {
             b = ((1 << (i % 8))) | b;
@@ -386,7 +294,7 @@ public class HeapPage implements Page {
         {
             b = ~(1 << (i % 8)) & b;
         }
-        header[i / 8] = (byte) b;
+        data.put(i / 8, (byte) b);
     }
 
     /**
@@ -401,23 +309,23 @@ public class HeapPage implements Page {
 
             @Override
             public boolean hasNext() {
-                for (int i = index; i < tuples.length; i++)
+                for (int i = index; i < numSlots; i++)
                 {
-                    if (tuples[i] != null)
+                    if (isSlotUsed(i))
                     {
                         index = i;
                         return true;
                     }
                 }
+                index = numSlots;
                 return false;
             }
 
             @Override
             public Tuple next() {
-                return hasNext() ? tuples[index++] : null;
+                return hasNext() ? readTuple(index++) : null;
             }
         };
     }
 
 }
-
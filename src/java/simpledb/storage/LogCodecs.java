@@ -0,0 +1,378 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * 日志中页面镜像的编码.
+ * <p>
+ * 每种 Page 和 PageId 注册一个一字节的类型标记和对应的解码器, 日志里只写标记, 不写类名, 恢复时也不需要反射.
+ * 一个页面镜像的格式:
+ *
+ * <pre>
+ * page tag    u8
+ * id tag      u8
+ * id length   u8     PageId.serialize() 的整数个数 n
+ * id          int * n
+ * data length int
+ * crc32c      int    覆盖上面所有字段和页面数据
+ * data        byte * data length
+ * </pre>
+ * <p>
+ * 整个镜像先在内存中编码好一次写出, 读取时头部和数据各一次读取.
+ * <p>
+ * 注册时允许差量的页面类型 (HeapPage, SlottedHeapPage, PaxHeapPage, BTreeLeafPage) 还可以写成差量镜像: page tag 的最高位置 1,
+ * data 部分是若干个 (offset int, length int, bytes) 区间, 解码时把这些字节覆盖到基础页面上.
+ * 更新记录的前后两个差量镜像使用相同的区间, 分别保存修改前和修改后的字节.
+ */
+public final class LogCodecs {
+    /**
+     * 由 PageId.serialize() 的结果重建 PageId
+     */
+    public interface PageIdCodec {
+        PageId decode(int[] args);
+    }
+
+    /**
+     * 由 PageId 和页面数据重建 Page
+     */
+    public interface PageCodec {
+        Page decode(PageId pid, byte[] data) throws IOException;
+    }
+
+    /**
+     * 解码差量镜像时提供基础页面的数据, 返回的数组会被修改
+     */
+    public interface BaseSource {
+        byte[] pageData(PageId pid) throws IOException;
+    }
+
+    private static final int HEADER = 3;
+    private static final int DELTA = 0x80;
+    /**
+     * 间隔小于它的两个修改区间合并成一个, 少写区间头
+     */
+    private static final int MERGE_GAP = 8;
+
+    private static final Map<Class<?>, Integer> pageTags = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Integer> idTags = new ConcurrentHashMap<>();
+    private static final PageCodec[] pageCodecs = new PageCodec[256];
+    private static final PageIdCodec[] idCodecs = new PageIdCodec[256];
+    private static final Set<Class<?>> deltaTypes = ConcurrentHashMap.newKeySet();
+
+    static
+    {
+        registerPageId(1, HeapPageId.class, a -> new HeapPageId(a[0], a[1]));
+        registerPageId(2, BTreePageId.class, a -> new BTreePageId(a[0], a[1], a[2]));
+
+        registerPage(1, HeapPage.class, (pid, data) -> new HeapPage((HeapPageId) pid, data), true);
+        registerPage(2, BTreeRootPtrPage.class, (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        registerPage(3, BTreeInternalPage.class, (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        registerPage(4, BTreeLeafPage.class, (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)), true);
+        registerPage(5, BTreeHeaderPage.class, (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        registerPage(6, SlottedHeapPage.class, (pid, data) -> new SlottedHeapPage((HeapPageId) pid, data), true);
+        registerPage(7, PaxHeapPage.class, (pid, data) -> new PaxHeapPage((HeapPageId) pid, data), true);
+    }
+
+    private LogCodecs() {
+    }
+
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    /**
+     * 注册一种 PageId, tag 取值 1..255, 不能重复
+     */
+    public static synchronized void registerPageId(int tag, Class<? extends PageId> type, PageIdCodec codec) {
+        checkTag(tag, idCodecs[tag & 0xff], idTags.containsKey(type));
+        idTags.put(type, tag);
+        idCodecs[tag] = codec;
+    }
+
+    /**
+     * 注册一种只写完整镜像的 Page
+     */
+    public static void registerPage(int tag, Class<? extends Page> type, PageCodec codec) {
+        registerPage(tag, type, codec, false);
+    }
+
+    /**
+     * 注册一种 Page, tag 取值 1..127, 不能重复
+     *
+     * @param delta 页面的修改是否可以按字节区间记录, 要求页面内容完全由 getPageData() 决定
+     */
+    public static synchronized void registerPage(int tag, Class<? extends Page> type, PageCodec codec, boolean delta) {
+        if (tag >= DELTA) throw new IllegalArgumentException("page tag must be in 1..127: " + tag);
+        checkTag(tag, pageCodecs[tag & 0xff], pageTags.containsKey(type));
+        pageTags.put(type, tag);
+        pageCodecs[tag] = codec;
+        if (delta) deltaTypes.add(type);
+    }
+
+    /**
+     * @return 页面是否可以写成差量镜像
+     */
+    public static boolean supportsDelta(Page p) {
+        return deltaTypes.contains(p.getClass());
+    }
+
+    private static void checkTag(int tag, Object registered, boolean typeRegistered) {
+        if (tag < 1 || tag > 255) throw new IllegalArgumentException("tag must be in 1..255: " + tag);
+        if (registered != null || typeRegistered)
+            throw new IllegalArgumentException("tag or type already registered: " + tag);
+    }
+
+    private static int tagOf(Map<Class<?>, Integer> tags, Class<?> type) {
+        Integer tag = tags.get(type);
+        if (tag == null) throw new IllegalArgumentException("no log codec registered for " + type.getName());
+        return tag;
+    }
+
+    /**
+     * 把页面镜像写到 out, 只调用一次 out.write
+     *
+     * @return 写出的字节数
+     */
+    public static int writePage(DataOutput out, Page p) throws IOException {
+        byte[] data = p.getPageData();
+        var buf = header(p, 0, data.length);
+        buf.put(data);
+        return finish(out, buf);
+    }
+
+    /**
+     * 把页面 ranges 区间内的字节写成差量镜像
+     *
+     * @param ranges {@link #diff} 的结果
+     * @return 写出的字节数
+     */
+    public static int writeDelta(DataOutput out, Page p, int[] ranges) throws IOException {
+        byte[] data = p.getPageData();
+        int length = 4;
+        for (int i = 0; i < ranges.length; i += 2)
+            length += 8 + ranges[i + 1];
+        var buf = header(p, DELTA, length);
+        buf.putInt(ranges.length / 2);
+        for (int i = 0; i < ranges.length; i += 2)
+        {
+            buf.putInt(ranges[i]);
+            buf.putInt(ranges[i + 1]);
+            buf.put(data, ranges[i], ranges[i + 1]);
+        }
+        return finish(out, buf);
+    }
+
+    /**
+     * 单独写一个 PageId (id tag, 整数个数, 整数), 用于检查点中的脏页表
+     */
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] id = pid.serialize();
+        var buf = ByteBuffer.allocate(2 + 4 * id.length);
+        buf.put((byte) tagOf(idTags, pid.getClass()));
+        buf.put((byte) id.length);
+        for (int v : id)
+            buf.putInt(v);
+        out.write(buf.array());
+    }
+
+    public static PageId readPageId(DataInput in) throws IOException {
+        int idTag = in.readUnsignedByte(), n = in.readUnsignedByte();
+        int[] id = new int[n];
+        for (int i = 0; i < n; i++)
+            id[i] = in.readInt();
+        PageIdCodec idCodec = idCodecs[idTag];
+        if (idCodec == null) throw new IOException("unknown log page id tag " + idTag);
+        return idCodec.decode(id);
+    }
+
+    /**
+     * 比较两个页面的数据
+     *
+     * @return 不同的字节区间 {offset0, length0, offset1, length1, ...}
+     */
+    public static int[] diff(byte[] before, byte[] after) {
+        if (before.length != after.length) throw new IllegalArgumentException("page size changed");
+        int[] ranges = new int[16];
+        int n = 0;
+        int i = 0;
+        while (i < after.length)
+        {
+            if (before[i] == after[i])
+            {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            // 向后扩展, 直到连续 MERGE_GAP 个字节相同
+            for (int j = end; j < after.length && j - end < MERGE_GAP; j++)
+                if (before[j] != after[j]) end = j + 1;
+            if (n == ranges.length) ranges = Arrays.copyOf(ranges, n * 2);
+            ranges[n++] = start;
+            ranges[n++] = end - start;
+            i = end;
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    private static ByteBuffer header(Page p, int flags, int length) {
+        PageId pid = p.getId();
+        int[] id = pid.serialize();
+        var buf = ByteBuffer.allocate(HEADER + 4 * id.length + 8 + length);
+        buf.put((byte) (tagOf(pageTags, p.getClass()) | flags));
+        buf.put((byte) tagOf(idTags, pid.getClass()));
+        buf.put((byte) id.length);
+        for (int v : id)
+            buf.putInt(v);
+        buf.putInt(length);
+        buf.putInt(0); // crc32c, 最后填写
+        return buf;
+    }
+
+    private static int finish(DataOutput out, ByteBuffer buf) throws IOException {
+        byte[] image = buf.array();
+        int crcAt = HEADER + 4 * (image[2] & 0xff) + 4;
+        buf.putInt(crcAt, checksum(image, crcAt));
+        out.write(image);
+        return image.length;
+    }
+
+    /**
+     * 从 in 读取一个完整的页面镜像
+     *
+     * @throws IOException 类型标记未注册, 校验和不一致, 或者是差量镜像
+     */
+    public static Page readPage(DataInput in) throws IOException {
+        return readPage(in, null);
+    }
+
+    /**
+     * 从 in 读取一个页面镜像, 差量镜像覆盖到 base 提供的基础页面上
+     *
+     * @throws IOException 类型标记未注册或者校验和不一致
+     */
+    public static Page readPage(DataInput in, BaseSource base) throws IOException {
+        return decode(readImage(in), base);
+    }
+
+    /**
+     * 读取一个页面镜像并校验, 但不解码页面: 并行重做时由读日志的线程读取, 按 PageId 分给解码的线程
+     *
+     * @throws IOException 类型标记未注册或者校验和不一致
+     */
+    public static Image readImage(DataInput in) throws IOException {
+        byte[] head = new byte[HEADER];
+        in.readFully(head);
+        int pageTag = head[0] & 0xff, idTag = head[1] & 0xff, n = head[2] & 0xff;
+        byte[] rest = new byte[HEADER + 4 * n + 8];
+        System.arraycopy(head, 0, rest, 0, HEADER);
+        in.readFully(rest, HEADER, rest.length - HEADER);
+        var buf = ByteBuffer.wrap(rest, HEADER, rest.length - HEADER);
+        int[] id = new int[n];
+        for (int i = 0; i < n; i++)
+            id[i] = buf.getInt();
+        int length = buf.getInt();
+        int crc = buf.getInt();
+        if (length < 0) throw new IOException("corrupt log page image: length " + length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+
+        var c = new CRC32C();
+        c.update(rest, 0, rest.length - 4);
+        c.update(data);
+        if ((int) c.getValue() != crc) throw new IOException("log page image checksum mismatch");
+
+        PageIdCodec idCodec = idCodecs[idTag];
+        if (idCodec == null || pageCodecs[pageTag & ~DELTA] == null)
+            throw new IOException("unknown log page tag " + pageTag + "/" + idTag);
+        return new Image(pageTag, idCodec.decode(id), data);
+    }
+
+    /**
+     * 由 {@link #readImage} 读出的镜像重建页面, 差量镜像覆盖到 base 提供的基础页面上
+     */
+    public static Page decode(Image image, BaseSource base) throws IOException {
+        byte[] data = image.data;
+        if ((image.pageTag & DELTA) != 0)
+        {
+            if (base == null) throw new IOException("delta page image needs a base page");
+            data = apply(base.pageData(image.pid), data);
+        }
+        return pageCodecs[image.pageTag & ~DELTA].decode(image.pid, data);
+    }
+
+    /**
+     * 校验过但还没有解码的页面镜像
+     */
+    public static final class Image {
+        private final int pageTag;
+        private final PageId pid;
+        private final byte[] data;
+
+        private Image(int pageTag, PageId pid, byte[] data) {
+            this.pageTag = pageTag;
+            this.pid = pid;
+            this.data = data;
+        }
+
+        public PageId pid() {
+            return pid;
+        }
+    }
+
+    private static byte[] apply(byte[] page, byte[] delta) throws IOException {
+        var buf = ByteBuffer.wrap(delta);
+        int n = buf.getInt();
+        for (int i = 0; i < n; i++)
+        {
+            int off = buf.getInt(), len = buf.getInt();
+            if (off < 0 || len < 0 || off + len > page.length)
+                throw new IOException("corrupt delta page image: range " + off + "+" + len);
+            buf.get(page, off, len);
+        }
+        return page;
+    }
+
+    /**
+     * 跳过一个页面镜像, 不校验也不解码
+     */
+    public static void skipPage(DataInput in) throws IOException {
+        byte[] head = new byte[HEADER];
+        in.readFully(head);
+        int n = head[2] & 0xff;
+        skipFully(in, 4 * n);
+        int length = in.readInt();
+        skipFully(in, 4 + length);
+    }
+
+    private static void skipFully(DataInput in, int n) throws IOException {
+        while (n > 0)
+        {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0)
+            {
+                in.readByte(); // 到达文件末尾时抛出 EOFException
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    // crc 字段之前的头部 + crc 字段之后的数据
+    private static int checksum(byte[] image, int crcAt) {
+        var c = new CRC32C();
+        c.update(image, 0, crcAt);
+        c.update(image, crcAt + 4, image.length - crcAt - 4);
+        return (int) c.getValue();
+    }
+}
@@ -4,13 +4,11 @@ import simpledb.common.Database;
 import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
-import java.io.EOFException;
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
 LogFile 实现了 SimpleDb 的恢复子系统。这堂课是能够根据需要写入不同的日志记录，但它是
@@ -41,11 +39,12 @@ LogFile 实现了 SimpleDb 的恢复子系统。这堂课是能够根据需要
  *
  * <ul>
  *
- * <li> 文件的第一个长整数表示文件的偏移量
- * 最后写入的检查点，如果没有检查点，则为 -1
+ * <li> 日志存放在固定大小的段文件中 (见 {@link LogSegments}), 记录的偏移 (LSN) 是所有段连起来之后的
+ * 逻辑偏移, 截断只删除整段, 不改变保留下来的记录的偏移. 清单文件 (构造函数的参数) 记录段大小,
+ * 第一个保留的段, 以及最后写入的检查点的偏移，如果没有检查点，则为 -1
  *
- * <li> 日志中的所有附加数据均由日志记录组成。日志
- * 记录是可变长度的。
+ * <li> 日志中的所有数据均由日志记录组成。日志
+ * 记录是可变长度的。日志末尾之后是预分配的 0, 类型为 0 的记录表示日志结束。
  *
  * <li> 每条日志记录都以整数类型和长整数开头
  * 交易编号。
@@ -61,7 +60,8 @@ LogFile 实现了 SimpleDb 的恢复子系统。这堂课是能够根据需要
  * <li>更新记录由两个条目组成，一个前图像和一个
  * 后图像。这些图像是序列化的 Page 对象，可以
  * 使用 LogFile.readPageData() 和 LogFile.writePageData() 访问
- * 方法。有关示例，请参见 LogFile.print()。
+ * 方法。有关示例，请参见 LogFile.print()。页面镜像的二进制格式
+ * (类型标记和 CRC32C 校验和) 见 {@link LogCodecs}。
  *
  * <li> CHECKPOINT 记录由当时的活动事务组成
  * 检查点被采取并且他们在磁盘上的第一条日志记录。格式
@@ -74,7 +74,7 @@ LogFile 实现了 SimpleDb 的恢复子系统。这堂课是能够根据需要
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments log;
     Boolean recoveryUndecided; // 没有调用recover()，也没有追加到日志
 
     static final int ABORT_RECORD = 1;
@@ -82,6 +82,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -92,6 +93,47 @@ public class LogFile {
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
 
+    /*
+    组提交: 每条记录写完后得到一个递增的序号, 需要持久化的线程等待 durableSeq 追上自己的序号.
+    第一个发现没有人在 fsync 的线程成为 leader, 最多等待 maxDelayNanos 或者攒够 maxBatch 个等待者,
+    然后在不持有 this 的情况下执行一次 fsync, 覆盖开始 fsync 之前写入的所有记录;
+    leader fsync 期间到来的线程排队, 由下一个 leader 一起持久化.
+     */
+    private volatile long appendSeq = 0; // written under this
+    private final Object syncLock = new Object();
+    private long durableSeq = 0; // protected by syncLock
+    private boolean syncing = false; // protected by syncLock
+    private boolean delaying = false; // leader 正在等待更多线程, protected by syncLock
+    private int waiting = 0; // protected by syncLock
+    private volatile long maxDelayNanos = 0;
+    private volatile int maxBatch = 64;
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncRequests = new LongAdder();
+
+    /*
+    物理逻辑日志: 检查点之后第一次修改一个页面时写完整镜像, 之后只写修改过的字节区间 (见 LogCodecs).
+    差量的 before 是页面最近一次提交时的内容, 所以一个事务对一个页面至多写一条差量记录,
+    同一事务再次记录这个页面时写完整镜像, 否则重做时会漏掉被改回去的区间.
+     */
+    private volatile boolean physiological = true;
+    private final Map<PageId, Long> loggedSinceCheckpoint = new HashMap<>(); // protected by this
+    private final LongAdder updateBytes = new LongAdder();
+
+    /*
+    脏页表: 日志中有更新但磁盘上可能还没有的页面 -> {recLSN, 最后一条更新记录的序号}.
+    recLSN 是这个页面第一条还没写回的更新记录的偏移, 写在检查点记录里, 恢复时从最小的 recLSN 开始重做.
+    页面写回时 (pageWritten) 只有写回的内容包含最后一条更新才删除表项, 否则保留, 多重做一些记录是安全的.
+     */
+    private final ConcurrentHashMap<PageId, long[]> dirtyPages = new ConcurrentHashMap<>();
+
+    // 检查点和截断互斥, 在 this 之前获取; 检查点记录写完到指针更新之间日志不能被截断
+    private final Object checkpointLock = new Object();
+
+    // 并行重做: 每个线程在内存中最多攒这么多个页面再批量写回
+    private static final int REDO_BATCH_PAGES = 256;
+    private volatile int redoThreads = Runtime.getRuntime().availableProcessors();
+    private final LongAdder checkpoints = new LongAdder();
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -105,8 +147,17 @@ public class LogFile {
      * @param f The log file's name
      */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param f           the log's manifest file; segments are stored next to it
+     * @param segmentSize size of each log segment file, used when a new log is
+     *                    started (an existing log keeps its own segment size)
+     */
+    public LogFile(File f, long segmentSize) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        log = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -128,11 +179,8 @@ public class LogFile {
         if (recoveryUndecided)
         {
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            log.reset();
+            currentOffset = log.getFilePointer();
         }
     }
 
@@ -164,12 +212,13 @@ public class LogFile {
 
                 // 必须在此处执行此操作，因为回滚仅适用于
                 //                 实时交易（需要 tidToFirstLogRecord）
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                log.writeInt(ABORT_RECORD);
+                log.writeLong(tid);
+                log.writeLong(currentOffset);
+                endRecord();
+                Long first = tidToFirstLogRecord.remove(tid);
+                if (first != null) undo(Set.of(tid), first);
                 force();
-                tidToFirstLogRecord.remove(tid);
             }
         }
     }
@@ -180,17 +229,23 @@ public class LogFile {
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this)
+        {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            log.writeInt(COMMIT_RECORD);
+            log.writeLong(tid.getId());
+            log.writeLong(currentOffset);
+            endRecord();
+            seq = appendSeq;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // 不持有 this 等待 fsync, 其他事务可以继续追加并加入同一次 fsync
+        sync(seq);
     }
 
     /**
@@ -200,10 +255,11 @@ public class LogFile {
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the sequence number of the record, see {@link #pageWritten}
      * @see Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before, Page after) throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+    public synchronized long logWrite(TransactionId tid, Page before, Page after) throws IOException {
+        Debug.log("WRITE, offset = " + log.getFilePointer());
         preAppend();
         /* update record conists of
 
@@ -213,106 +269,98 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        log.writeInt(UPDATE_RECORD);
+        log.writeLong(tid.getId());
 
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = log.getFilePointer();
+        Long last = loggedSinceCheckpoint.put(after.getId(), tid.getId());
+        if (physiological && last != null && last != tid.getId() && LogCodecs.supportsDelta(after))
+        {
+            int[] ranges = LogCodecs.diff(before.getPageData(), after.getPageData());
+            LogCodecs.writeDelta(log, before, ranges);
+            LogCodecs.writeDelta(log, after, ranges);
+        }
+        else
+        {
+            writePageData(log, before);
+            writePageData(log, after);
+        }
+        updateBytes.add(log.getFilePointer() - start);
+        long lsn = currentOffset;
+        log.writeLong(currentOffset);
+        endRecord();
+        long seq = appendSeq;
+        dirtyPages.compute(after.getId(), (pid, e) -> new long[]{e == null ? lsn : e[0], seq});
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return seq;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /**
+     * 页面已经写回磁盘, 写回的内容包含序号为 seq 的更新记录 (由 {@link #logWrite} 返回)
+     */
+    void pageWritten(PageId pid, long seq) {
+        dirtyPages.computeIfPresent(pid, (k, e) -> e[1] == seq ? null : e);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo)
+    /**
+     * 写回页面的已提交内容之前调用: 它包含的更新记录都要先写到磁盘 (WAL).
+     * 按行修改的页面在提交时先发布再强制写日志, 见 {@link AbstractTuplePage#commit}
+     */
+    void forcePage(PageId pid) throws IOException {
+        long[] e = dirtyPages.get(pid);
+        if (e == null) return;
+        synchronized (syncLock)
         {
-            raf.writeInt(j);
+            if (durableSeq >= e[1]) return;
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        sync(e[1]);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try
-        {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++)
-            {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /**
+     * @return number of pages in the dirty page table
+     */
+    public int getNumDirtyPages() {
+        return dirtyPages.size();
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    void writePageData(DataOutput out, Page p) throws IOException {
+        // 格式见 LogCodecs: 类型标记 + PageId + 页面数据 + CRC32C
+        LogCodecs.writePage(out, p);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    Page readPageData(DataInput in) throws IOException {
+        return LogCodecs.readPage(in, this::basePage);
+    }
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+    // 差量镜像的基础页面: 缓冲池中页面的已提交内容 (磁盘上可能还没写回), 不在缓冲池中时读磁盘
+    private byte[] basePage(PageId pid) {
+        Page p = Database.getBufferPool().peekPage(pid);
+        if (p != null) return p.getBeforeImage().getPageData();
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e)
-        {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+    /**
+     * Switch between physiological logging (the default: a full page image
+     * only for the first update of a page after a checkpoint, changed byte
+     * ranges afterwards) and full before/after images for every update.
+     */
+    public void setPhysiologicalLogging(boolean on) {
+        physiological = on;
+    }
 
+    /**
+     * @return bytes of page images written by update records
+     */
+    public long getUpdateBytes() {
+        return updateBytes.sum();
     }
 
     private void skipReadPage() {
         try
         {
-            String pageClassName = raf.readUTF();
-            String idClassName = raf.readUTF();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++)
-            {
-                idArgs[i] = raf.readInt();
-            }
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-        } catch (Exception ignore)
+            LogCodecs.skipPage(log);
+        } catch (IOException ignore)
         {
         }
     }
@@ -330,164 +378,146 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        log.writeInt(BEGIN_RECORD);
+        log.writeLong(tid.getId());
+        log.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * 模糊检查点: 只在写检查点记录时持有 this, 记录当时的活动事务表和脏页表, 不阻塞缓冲池.
+     * 之后由 {@link PageCleaner} 写回已提交的页面, 写完才把清单中的检查点指针指向新记录并截断日志;
+     * 在这之前崩溃的话, 恢复仍然使用上一个检查点.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool())
+        synchronized (checkpointLock)
         {
+            long startCpOffset = writeCheckpoint();
+            // 写回期间其他事务照常读写页面和追加日志
+            Database.getBufferPool().flushCommittedPages();
+            // 检查点记录先持久化, 指针才能指向它
+            force();
             synchronized (this)
             {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext())
-                {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                log.setCheckpoint(startCpOffset);
             }
+            checkpoints.increment();
+            truncate();
         }
+    }
 
-        logTruncate();
+    /**
+     * @return number of checkpoints completed
+     */
+    public long getNumCheckpoints() {
+        return checkpoints.sum();
+    }
+
+    private synchronized long writeCheckpoint() throws IOException {
+        //Debug.log("CHECKPOINT, offset = " + log.getFilePointer());
+        preAppend();
+        // 之后每个页面的第一次修改重新写完整镜像
+        loggedSinceCheckpoint.clear();
+        long startCpOffset = currentOffset;
+        log.writeInt(CHECKPOINT_RECORD);
+        log.writeLong(-1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        var active = new HashMap<>(tidToFirstLogRecord);
+        log.writeInt(active.size());
+        for (var e : active.entrySet())
+        {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            log.writeLong(e.getKey());
+            log.writeLong(e.getValue());
+        }
+
+        //write the dirty page table
+        var dirty = new HashMap<>(dirtyPages);
+        log.writeInt(dirty.size());
+        for (var e : dirty.entrySet())
+        {
+            LogCodecs.writePageId(log, e.getKey());
+            log.writeLong(e.getValue()[0]);
+        }
+
+        log.writeLong(currentOffset);
+        endRecord();
+        //Debug.log("CP OFFSET = " + currentOffset);
+        return startCpOffset;
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
      * consumption
      */
-    public synchronized void logTruncate() throws IOException {
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock)
+        {
+            truncate();
+        }
+    }
+
+    private synchronized void truncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = log.getCheckpoint();
+        if (cpLoc == NO_CHECKPOINT_ID) return;
 
         long minLogRecord = cpLoc;
+        log.seek(cpLoc);
+        int cpType = log.readInt();
+        @SuppressWarnings("unused") long cpTid = log.readLong();
 
-        if (cpLoc != -1L)
+        if (cpType != CHECKPOINT_RECORD)
         {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused") long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD)
-            {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            int numOutstanding = raf.readInt();
+        int numOutstanding = log.readInt();
 
-            for (int i = 0; i < numOutstanding; i++)
+        for (int i = 0; i < numOutstanding; i++)
+        {
+            @SuppressWarnings("unused") long tid = log.readLong();
+            long firstLogRecord = log.readLong();
+            if (firstLogRecord < minLogRecord)
             {
-                @SuppressWarnings("unused") long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord)
-                {
-                    minLogRecord = firstLogRecord;
-                }
+                minLogRecord = firstLogRecord;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true)
+        // 恢复从最小的 recLSN 开始重做, 这之后的记录也要保留
+        int numDirty = log.readInt();
+        for (int i = 0; i < numDirty; i++)
         {
-            try
-            {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type)
-                {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0)
-                        {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e)
-            {
-                break;
-            }
+            LogCodecs.readPageId(log);
+            minLogRecord = Math.min(minLogRecord, log.readLong());
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // we can truncate every segment before minLogRecord; offsets of the remaining records do not change
+        int removed = log.truncateBefore(minLogRecord);
+        log.seek(currentOffset);
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        Debug.log("TRUNCATING LOG; NEW START : " + log.start() + " SEGMENTS REMOVED: " + removed);
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /**
+     * Move truncated log segments into dir instead of deleting them;
+     * null (the default) deletes them.
+     */
+    public void setArchiveDirectory(File dir) {
+        log.setArchiveDirectory(dir);
+    }
+
+    /**
+     * @return number of log segment files currently in use
+     */
+    public int getNumSegments() {
+        return log.numSegments();
     }
 
     /**
@@ -507,87 +537,71 @@ public class LogFile {
                 preAppend();
                 if (tid == null) throw new NoSuchElementException("tid is null");
                 //                print();
-                rollback(tid.getId());
+                Long first = tidToFirstLogRecord.remove(tid.getId());
+                // 没有记录: 已经由 logAbort 回滚过, 或者这个事务没有写过日志
+                if (first != null) undo(Set.of(tid.getId()), first);
             }
         }
     }
 
-    private void rollback(long tid) throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool())
+    /**
+     * 从日志末尾向前扫描到偏移 stopAt, 撤销 losers 中还没有被补偿的更新.
+     * 每撤销一条更新写一条 CLR, 记录被撤销的更新的偏移和恢复用的 before 镜像;
+     * 向前扫描时先遇到 CLR 再遇到它补偿的更新, 所以重复回滚不会重复撤销. 调用者持有 this.
+     */
+    private void undo(Set<Long> losers, long stopAt) throws IOException {
+        Set<Long> compensated = new HashSet<>();
+        long pos = currentOffset;
+        while (pos > stopAt)
         {
-            synchronized (this)
+            log.seek(pos - LONG_SIZE);
+            long start = log.readLong();
+            log.seek(start);
+            int type = log.readInt();
+            long tid = log.readLong();
+            if (losers.contains(tid))
             {
-                preAppend();
-                long current = raf.getFilePointer();
-                var off = findBeginUnCommit(tid);
-                if (off == -1) return;
-                raf.seek(off);
-                int open = 0;
-                while (open != -1)
+                if (type == CLR_RECORD) compensated.add(log.readLong());
+                else if (type == UPDATE_RECORD && !compensated.contains(start))
                 {
-                    var type = raf.readInt();
-                    long cpTid = raf.readLong();
-                    switch (type)
+                    long imageAt = log.getFilePointer();
+                    Page before = readPageData(log);
+                    byte[] image;
+                    if (before instanceof AbstractTuplePage b && b.tupleLocks())
                     {
-                        case ABORT_RECORD ->
-                        {
-                            if (tid == cpTid)
-                            {
-                                if (open == 1) open = -1;
-                                else System.out.println("abort but open !=1");
-                            }
-                            raf.readLong();
-                        }
-                        case UPDATE_RECORD ->
-                        {
-                            var before = readPageData(raf);
-                            var after = readPageData(raf);
-                            raf.readLong();
-                            if (cpTid == tid)
-                            {
-                                if (open != 1) System.out.println("update but open !=1");
-                                else
-                                    Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(before.getBeforeImage());
-                            }
-                        }
-                        case BEGIN_RECORD ->
-                        {
-                            if (tid == cpTid)
-                            {
-                                if (open == 0) open = 1;
-                                else System.out.println("begin but not fitst");
-                            }
-                            raf.readLong();
-                        }
-                        case COMMIT_RECORD ->
-                        {
-                            if (tid == cpTid)
-                            {
-                                System.out.println("??????");
-                            }
-                            raf.readLong();
-                        }
-                        case CHECKPOINT_RECORD ->
-                        {
-                            int numTransactions = raf.readInt();
-                            while (numTransactions-- > 0)
-                            {
-                                long ttid = raf.readLong();
-                                long firstRecord = raf.readLong();
-                                if (tid == ttid)
-                                {
-                                    if (open == 1) open = -1;
-                                    else System.out.println("abort but open !=1");
-                                }
-                            }
-                            raf.readLong();
-                        }
-
+                        // 同一页上可能还有其他事务的行: 只撤销这条更新修改的行, CLR 记下撤销后的整页
+                        var after = (AbstractTuplePage) readPageData(log);
+                        before = b.undo(after, basePage(b.getId()));
+                        var bytes = new ByteArrayOutputStream();
+                        writePageData(new DataOutputStream(bytes), before);
+                        image = bytes.toByteArray();
+                        // base 可能包含刚发布还没强制写盘的提交
+                        forcePage(before.getId());
+                    }
+                    else
+                    {
+                        image = new byte[(int) (log.getFilePointer() - imageAt)];
+                        log.seek(imageAt);
+                        log.readFully(image);
                     }
+                    Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
+                    logCompensation(tid, start, image);
                 }
-                raf.seek(current);
             }
+            pos = start;
         }
+        log.seek(currentOffset);
+    }
+
+    // CLR: 被撤销的更新的偏移 + 原样复制的 before 镜像
+    private void logCompensation(long tid, long undone, byte[] image) throws IOException {
+        log.seek(currentOffset);
+        log.writeInt(CLR_RECORD);
+        log.writeLong(tid);
+        log.writeLong(undone);
+        log.write(image);
+        log.writeLong(currentOffset);
+        endRecord();
     }
 
     /**
@@ -595,11 +609,14 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try
         {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this)
+            {
+                log.close();
+            }
         } catch (IOException e)
         {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -611,6 +628,11 @@ public class LogFile {
      * Recover the database system by ensuring that the updates of
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
+     * <p>
+     * 分析: 从检查点记录读出活动事务和脏页表.
+     * 重做: 从最小的 recLSN (没有时是检查点) 向后扫描一遍, 重放所有更新和 CLR, 包括未提交事务的 (repeat history),
+     * 同时找出没有提交的事务. 页面镜像按 PageId 分给多个线程解码并批量写回, 见 {@link RedoWorkers}.
+     * 撤销: 从日志末尾向前扫描一遍, 撤销这些事务还没有被补偿的更新, 并写 CLR.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool())
@@ -618,232 +640,197 @@ public class LogFile {
             synchronized (this)
             {
                 recoveryUndecided = false;
-                // some code goes here
-                long current = raf.getFilePointer();
-                //                print();
-                raf.seek(0);
-                long recover = raf.readLong();
-                if (recover != -1) raf.seek(recover);
-                while (true)
+                long cp = log.getCheckpoint();
+                long redoFrom = cp == NO_CHECKPOINT_ID ? log.start() : cp;
+                long undoTo = redoFrom;
+                Set<Long> losers = new HashSet<>();
+                if (cp != NO_CHECKPOINT_ID)
                 {
-                    try
+                    log.seek(cp);
+                    if (log.readInt() != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    log.readLong();
+                    int numTransactions = log.readInt();
+                    while (numTransactions-- > 0)
                     {
-                        int cpType = raf.readInt();
-                        long cpTid = raf.readLong();
-
-                        switch (cpType)
-                        {
-                            case BEGIN_RECORD ->
-                            {
-                                var temp = raf.readLong();
-                                tidToFirstLogRecord.put(cpTid, temp);
-                            }
-                            case ABORT_RECORD ->
-                            {
-                                raf.readLong();
-                                //undo
-                                rollback(cpTid);
-                                //                                System.out.println("rollback " + cpTid + " ok");
-                                tidToFirstLogRecord.remove(cpTid);
-                            }
-                            case COMMIT_RECORD ->
-                            {
-                                raf.readLong();
-                                //redo
-                                redo(cpTid);
-                                //                                System.out.println("redo " + cpTid + " ok");
-                                tidToFirstLogRecord.remove(cpTid);
-                            }
-                            case CHECKPOINT_RECORD ->
-                            {
-                                int numTransactions = raf.readInt();
-                                while (numTransactions-- > 0)
-                                {
-                                    long ttid = raf.readLong();
-                                    long firstRecord = raf.readLong();
-                                    tidToFirstLogRecord.put(ttid, firstRecord);
-                                }
-                                raf.readLong();
-                            }
-                            case UPDATE_RECORD ->
-                            {
-                                //continue
-                              skipReadPage();
-                            skipReadPage();
-                                raf.readLong();
-                            }
-                        }
-
-                    } catch (EOFException e)
-                    {
-                        //                        e.printStackTrace();
-
-                        break;
+                        losers.add(log.readLong());
+                        undoTo = Math.min(undoTo, log.readLong());
                     }
-                }
-                raf.seek(current);
-                if (tidToFirstLogRecord.size() > 0)
-                {
-                    long cu = raf.getFilePointer();
-                    Set<Long> set = new HashSet<Long>(tidToFirstLogRecord.keySet());
-                    for (Long ttid : set)
+                    int numDirty = log.readInt();
+                    while (numDirty-- > 0)
                     {
-                        try
-                        {
-                            rollback(ttid);
-                            tidToFirstLogRecord.remove(ttid);
-                        } catch (IOException ee)
-                        {
-                            break;
-                        }
+                        LogCodecs.readPageId(log);
+                        redoFrom = Math.min(redoFrom, log.readLong());
                     }
-                    raf.seek(cu);
                 }
-                raf.seek(current);
+
+                long end = redo(redoFrom, losers);
+                // 丢掉末尾不完整的记录, CLR 和之后的记录接在最后一条完整记录后面
+                log.setLength(end);
+                currentOffset = end;
+                undo(losers, Math.min(undoTo, redoFrom));
+                tidToFirstLogRecord.clear();
+                force();
             }
         }
+    }
 
-
+    /**
+     * 从 from 开始向后重放所有页面镜像, 把没有提交的事务加入 losers
+     *
+     * @return 最后一条完整记录的结束偏移
+     */
+    private long redo(long from, Set<Long> losers) throws IOException {
+        var workers = new RedoWorkers(redoThreads, REDO_BATCH_PAGES, this::basePage);
+        try
+        {
+            return redo(from, losers, workers);
+        } finally
+        {
+            workers.finish();
+        }
     }
 
-    private void redo(long tid) throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool())
+    // 本线程顺序读日志, 校验镜像, 页面的解码和写回交给 workers
+    private long redo(long from, Set<Long> losers, RedoWorkers workers) throws IOException {
+        log.seek(from);
+        long end = from;
+        while (true)
         {
-            synchronized (this)
+            int type;
+            long tid;
+            LogCodecs.Image image = null;
+            try
             {
-                preAppend();
-                ArrayList<Page> listsInfo = new ArrayList<>();
-                long current = raf.getFilePointer();
-                var off = findBeginCommit(tid);
-                if (off == -1) throw new RuntimeException("off = -1 " + " tid=" + tid);
-                raf.seek(off);
-                int open = 0;
-                while (open != -1)
+                type = log.readInt();
+                tid = log.readLong();
+                switch (type)
                 {
-                    var type = raf.readInt();
-                    long cpTid = raf.readLong();
-                    switch (type)
+                    case BEGIN_RECORD, ABORT_RECORD, COMMIT_RECORD -> { }
+                    case UPDATE_RECORD ->
                     {
-                        case ABORT_RECORD ->
-                        {
-                            if (tid == cpTid)
-                            {
-                                System.out.println("???????");
-                            }
-                            raf.readLong();
-                        }
-                        case UPDATE_RECORD ->
-                        {
-                            var before = readPageData(raf);
-                            var after = readPageData(raf);
-                            raf.readLong();
-                            if (cpTid == tid)
-                            {
-                                if (open != 1) System.out.println("update but open !=1");
-                                else
-                                {
-                                    Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(after);
-                                    listsInfo.add(after);
-                                }
-                            }
-                        }
-                        case BEGIN_RECORD ->
-                        {
-                            if (tid == cpTid)
-                            {
-                                if (open == 0) open = 1;
-                                else System.out.println("begin but not fitst");
-                            }
-                            raf.readLong();
-                        }
-                        case COMMIT_RECORD ->
-                        {
-                            if (tid == cpTid)
-                            {
-                                if (open == 1) open = -1;
-                                else System.out.println("abort but open !=1");
-                            }
-                            raf.readLong();
-                            listsInfo.forEach(Page::setBeforeImage);
-                            listsInfo.clear();
-                        }
-                        case CHECKPOINT_RECORD ->
-                        {
-                            int numTransactions = raf.readInt();
-                            while (numTransactions-- > 0)
-                            {
-                                raf.readLong();
-                                raf.readLong();
-                            }
-                            raf.readLong();
-                        }
-
+                        skipPage();
+                        image = LogCodecs.readImage(log);
+                    }
+                    case CLR_RECORD ->
+                    {
+                        log.readLong();
+                        image = LogCodecs.readImage(log);
                     }
+                    case CHECKPOINT_RECORD -> skipCheckpoint();
+                    // 0 是预分配的空间, 其他值是崩溃时写了一半的记录
+                    default -> { return end; }
                 }
-                raf.seek(current);
+                if (log.readLong() != end) return end;
+            } catch (IOException e)
+            {
+                // 末尾写了一半的记录: 读到 EOF 或者镜像校验和不一致
+                return end;
             }
+            switch (type)
+            {
+                case BEGIN_RECORD, ABORT_RECORD -> losers.add(tid);
+                case COMMIT_RECORD -> losers.remove(tid);
+                case UPDATE_RECORD ->
+                {
+                    losers.add(tid);
+                    workers.submit(image);
+                }
+                case CLR_RECORD -> workers.submit(image);
+            }
+            end = log.getFilePointer();
         }
+    }
+
+    /**
+     * Set the number of threads that redo page images during {@link #recover()}.
+     * Images of the same page are always applied by the same thread, in log order.
+     */
+    public void setRedoThreads(int n) {
+        redoThreads = Math.max(1, n);
+    }
+
+    private void skipPage() throws IOException {
+        LogCodecs.skipPage(log);
+    }
 
+    private void skipCheckpoint() throws IOException {
+        int numTransactions = log.readInt();
+        log.skipBytes(numTransactions * 2 * LONG_SIZE);
+        int numDirty = log.readInt();
+        while (numDirty-- > 0)
+        {
+            LogCodecs.readPageId(log);
+            log.readLong();
+        }
     }
 
     /**
      * Print out a human readable represenation of the log
      */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+        long curOffset = log.getFilePointer();
 
-        raf.seek(0);
+        log.seek(log.start());
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("manifest: checkpoint record at offset " + log.getCheckpoint());
 
         while (true)
         {
             try
             {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = log.readInt();
+                long cpTid = log.readLong();
+                if (cpType == 0) break;
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((log.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((log.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType)
                 {
                     case BEGIN_RECORD:
                         System.out.println(" (BEGIN)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                     case ABORT_RECORD:
                         System.out.println(" (ABORT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                     case COMMIT_RECORD:
                         System.out.println(" (COMMIT)");
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
 
                     case CHECKPOINT_RECORD:
                         System.out.println(" (CHECKPOINT)");
-                        int numTransactions = raf.readInt();
-                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                        int numTransactions = log.readInt();
+                        System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                         while (numTransactions-- > 0)
                         {
-                            long tid = raf.readLong();
-                            long firstRecord = raf.readLong();
-                            System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                            long tid = log.readLong();
+                            long firstRecord = log.readLong();
+                            System.out.println((log.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                            System.out.println((log.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        }
+                        int numDirty = log.readInt();
+                        System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                        while (numDirty-- > 0)
+                        {
+                            PageId pid = LogCodecs.readPageId(log);
+                            System.out.println((log.getFilePointer()) + ": PAGE " + pid + " RECLSN: " + log.readLong());
                         }
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
                         break;
                     case UPDATE_RECORD:
                         System.out.println(" (UPDATE)");
 
-                        long start = raf.getFilePointer();
-                        Page before = readPageData(raf);
+                        long start = log.getFilePointer();
+                        Page before = readPageData(log);
 
-                        long middle = raf.getFilePointer();
-                        Page after = readPageData(raf);
+                        long middle = log.getFilePointer();
+                        Page after = readPageData(log);
 
                         System.out.println(start + ": before image table id " + before.getId().getTableId());
                         System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
@@ -851,10 +838,17 @@ public class LogFile {
 
                         System.out.println(middle + ": after image table id " + after.getId().getTableId());
                         System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                        System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                        System.out.println((middle + INT_SIZE) + " TO " + (log.getFilePointer()) + ": page data");
 
-                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
+                        break;
+                    case CLR_RECORD:
+                        System.out.println(" (CLR)");
+                        System.out.println(log.getFilePointer() + ": UNDONE RECORD: " + log.readLong());
+                        Page restored = readPageData(log);
+                        System.out.println(log.getFilePointer() + ": restored page " + restored.getId());
+                        System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                         break;
                 }
 
@@ -866,157 +860,118 @@ public class LogFile {
         }
 
         // Return the file pointer to its original position
-        raf.seek(curOffset);
+        log.seek(curOffset);
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Force every record written so far to disk. Concurrent callers share a
+     * single fsync, see {@link #setGroupCommit}.
+     */
+    public void force() throws IOException {
+        sync(appendSeq);
     }
 
-    private long findBeginUnCommit(long tid) throws IOException {
-        long current = raf.getFilePointer();
-        long last = -1L;
-        var first = tidToFirstLogRecord.get(tid);
-        try
-        {
-            if (first == null)
-            {
-                raf.seek(0);
-                var point = raf.readLong();
-                if (point != -1) raf.seek(point);
-            }
-            else
-            {
-                raf.seek(first);
-            }
-            oo:
-            while (true)
-            {
-                try
-                {
-                    int cpType = raf.readInt();
-                    long cpTid = raf.readLong();
-                    switch (cpType)
-                    {
-                        case BEGIN_RECORD:
-                            if (cpTid == tid) last = raf.readLong();
-                            else raf.readLong();
-                            break;
-                        case ABORT_RECORD:
-                            var t = raf.readLong();
-                            if (cpTid == tid) break oo;
-                            break;
-                        case COMMIT_RECORD:
-                            raf.readLong();
-                            if (cpTid == tid) last = -1L;
-                            break;
-                        case CHECKPOINT_RECORD:
-                            int numTransactions = raf.readInt();
-                            while (numTransactions-- > 0)
-                            {
-                                long ttid = raf.readLong();
-                                long firstRecord = raf.readLong();
-                                if (ttid == tid)
-                                {
-                                    last = firstRecord;
-                                    break oo;
-                                }
-                            }
-                            raf.readLong();
-                            break;
-                        case UPDATE_RECORD:
-                            skipReadPage();
-                            skipReadPage();
-                            raf.readLong();
-                            break;
-                    }
+    /**
+     * Configure group commit.
+     *
+     * @param maxDelayMicros how long the leader waits for more committers before
+     *                       forcing the log; 0 forces immediately, so only threads
+     *                       that arrive during an fsync are grouped
+     * @param maxBatch       the leader stops waiting once this many threads are queued
+     */
+    public void setGroupCommit(long maxDelayMicros, int maxBatch) {
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        this.maxBatch = Math.max(1, maxBatch);
+    }
 
-                } catch (EOFException e)
-                {
-                    //                    e.printStackTrace();
-                    break;
-                }
-            }
+    /**
+     * @return number of fsyncs performed on the log
+     */
+    public long getNumSyncs() {
+        return syncs.sum();
+    }
 
+    /**
+     * @return number of times a caller asked for the log to be forced
+     */
+    public long getNumSyncRequests() {
+        return syncRequests.sum();
+    }
 
-        } catch (IOException e)
-        {
-            throw new RuntimeException(e);
-        }
-        raf.seek(current);
-        return last;
+    // 一条记录写完: 更新记录链的偏移, 分配组提交序号; 调用者持有 this
+    private void endRecord() throws IOException {
+        currentOffset = log.getFilePointer();
+        appendSeq++;
     }
 
-    private long findBeginCommit(long tid) throws IOException {
-        long current = raf.getFilePointer();
-        long last = -1L;
-        var first = tidToFirstLogRecord.get(tid);
-        try
+    private void sync(long target) throws IOException {
+        syncRequests.increment();
+        // 持有 this 时其他线程无法追加记录, 等待只会白白增加延迟
+        boolean mayDelay = maxDelayNanos > 0 && !Thread.holdsLock(this);
+        while (true)
         {
-            if (first == null)
-            {
-                raf.seek(0);
-                var point = raf.readLong();
-                if (point != -1) raf.seek(point);
-            }
-            else
-            {
-                raf.seek(first);
-            }
-            oo:
-            while (true)
+            long upTo;
+            synchronized (syncLock)
             {
+                waiting++;
                 try
                 {
-                    int cpType = raf.readInt();
-                    long cpTid = raf.readLong();
-
-                    switch (cpType)
+                    while (durableSeq < target && syncing)
                     {
-                        case BEGIN_RECORD:
-                            if (cpTid == tid) last = raf.readLong();
-                            else raf.readLong();
-                            break;
-                        case ABORT_RECORD:
-                            var t = raf.readLong();
-                            if (cpTid == tid) last = -1L;
-                            break;
-                        case COMMIT_RECORD:
-                            raf.readLong();
-                            if (cpTid == tid) break oo;
-                            break;
-                        case CHECKPOINT_RECORD:
-                            int numTransactions = raf.readInt();
-                            while (numTransactions-- > 0)
-                            {
-                                long ttid = raf.readLong();
-                                long firstRecord = raf.readLong();
-                                if (ttid == tid) last = firstRecord;
-                            }
-                            raf.readLong();
-                            break;
-                        case UPDATE_RECORD:
-                            skipReadPage();
-                            skipReadPage();
-                            raf.readLong();
-                            break;
+                        // 只在 leader 等待时唤醒它, 否则等待者之间会互相唤醒, 让 leader 拿不到 syncLock
+                        if (delaying && waiting >= maxBatch) syncLock.notifyAll();
+                        syncLock.wait();
                     }
-
-                } catch (EOFException e)
+                } catch (InterruptedException e)
                 {
-                    //                    e.printStackTrace();
-                    break;
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for log force");
+                } finally
+                {
+                    waiting--;
                 }
+                if (durableSeq >= target) return;
+                // 成为 leader
+                syncing = true;
+                if (mayDelay) awaitBatch();
+                upTo = appendSeq;
             }
+            boolean ok = false;
+            try
+            {
+                // 分段 fdatasync, 不需要 this
+                log.force();
+                ok = true;
+            } finally
+            {
+                synchronized (syncLock)
+                {
+                    if (ok && upTo > durableSeq) durableSeq = upTo;
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+            syncs.increment();
+        }
+    }
 
-
-        } catch (IOException e)
+    // leader 等待更多线程排队, 最多 maxDelayNanos; 调用者持有 syncLock
+    private void awaitBatch() {
+        long deadline = System.nanoTime() + maxDelayNanos;
+        delaying = true;
+        try
         {
-            throw new RuntimeException(e);
+            long left;
+            while (waiting + 1 < maxBatch && (left = deadline - System.nanoTime()) > 0)
+                TimeUnit.NANOSECONDS.timedWait(syncLock, left);
+        } catch (InterruptedException e)
+        {
+            // 不再等待, 直接 fsync
+            Thread.currentThread().interrupt();
+        } finally
+        {
+            delaying = false;
         }
-        raf.seek(current);
-        return last;
     }
 
-
 }
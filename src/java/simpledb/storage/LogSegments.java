@@ -0,0 +1,475 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 分段的预写日志存储. 日志的逻辑地址 (LSN) 被切成固定大小的段文件 {@code <清单文件名>.<段号>},
+ * LSN = 段号 * 段大小 + 段内偏移; 截断时删除 (或者移到归档目录) 整段, 保留下来的记录的 LSN 不变.
+ * <p>
+ * 清单文件记录段大小, 第一个保留的段号和最后一个检查点的 LSN, 原地改写并 fsync.
+ * 段文件创建时就预分配到完整大小, 追加不会改变文件长度, 所以 {@link #force()} 只需要 fdatasync;
+ * 写入一个段时提前创建下一个段.
+ * <p>
+ * 和 RandomAccessFile 一样有一个隐式的读写位置. 读写由调用者串行化 (LogFile 的 this),
+ * 只有 {@link #force()} 可以和追加并发执行.
+ */
+final class LogSegments implements DataInput, DataOutput, Closeable {
+
+    static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+    static final long NO_CHECKPOINT = -1;
+
+    private static final int MANIFEST_MAGIC = 0x534c4f47;
+    private static final int MANIFEST_SIZE = 4 + 3 * 8;
+
+    private final File manifest;
+    private final RandomAccessFile manifestFile;
+    private long segmentSize;
+    private long firstSegment = 0;
+    private long checkpoint = NO_CHECKPOINT;
+    private volatile File archiveDir;
+
+    private final ConcurrentHashMap<Long, RandomAccessFile> segments = new ConcurrentHashMap<>();
+    private long pos;
+    private long end; // 逻辑末尾, 读不能超过它
+    private volatile long lastSegment; // 写过的最大段号
+    private volatile long unsynced; // 可能有没 fsync 的数据的最小段号, 只由 force 修改
+
+    private final byte[] scratch = new byte[8];
+    private final ByteBuffer scratchBuf = ByteBuffer.wrap(scratch);
+
+    /**
+     * 打开已有的日志; 清单不存在或者无效时创建一个段大小为 segmentSize 的空日志
+     */
+    LogSegments(File manifest, long segmentSize) throws IOException {
+        if (segmentSize < MANIFEST_SIZE) throw new IllegalArgumentException("segment size " + segmentSize);
+        this.manifest = manifest;
+        this.manifestFile = new RandomAccessFile(manifest, "rw");
+        this.segmentSize = segmentSize;
+        if (manifestFile.length() >= MANIFEST_SIZE && manifestFile.readInt() == MANIFEST_MAGIC)
+        {
+            this.segmentSize = manifestFile.readLong();
+            firstSegment = manifestFile.readLong();
+            checkpoint = manifestFile.readLong();
+            long seg = firstSegment;
+            while (segmentFile(seg).exists())
+                open(seg++);
+            end = seg * this.segmentSize;
+            lastSegment = Math.max(firstSegment, seg - 1);
+        }
+        else
+        {
+            // 没有日志, 清理清单没有记录的遗留段
+            reset();
+        }
+        pos = start();
+        unsynced = firstSegment;
+    }
+
+    /**
+     * 丢弃所有段 (包括清单没有记录的遗留段), 从 LSN 0 开始一个空日志
+     */
+    void reset() throws IOException {
+        for (var f : segments.values())
+            f.close();
+        segments.clear();
+        var prefix = Pattern.quote(manifest.getName()) + "\\.\\d+";
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        File[] stale = dir.listFiles((d, name) -> name.matches(prefix));
+        if (stale != null)
+            for (File f : stale)
+                f.delete();
+        firstSegment = 0;
+        checkpoint = NO_CHECKPOINT;
+        writeManifest();
+        pos = end = 0;
+        lastSegment = unsynced = 0;
+        channel(0, true);
+    }
+
+    /**
+     * @return 第一个保留的记录可能开始的 LSN
+     */
+    long start() {
+        return firstSegment * segmentSize;
+    }
+
+    int numSegments() {
+        return segments.size();
+    }
+
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * 持久化检查点指针; 调用者保证检查点记录已经 {@link #force()}
+     */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeManifest();
+    }
+
+    /**
+     * 截断时把段移到 dir 而不是删除; null 表示删除
+     */
+    void setArchiveDirectory(File dir) {
+        archiveDir = dir;
+    }
+
+    /**
+     * 删除或者归档所有完全位于 lsn 之前的段. 先持久化清单再删除文件, 崩溃后不会引用已经删除的段.
+     *
+     * @return 删除的段数
+     */
+    int truncateBefore(long lsn) throws IOException {
+        long first = Math.min(lsn, end) / segmentSize;
+        if (first <= firstSegment) return 0;
+        long old = firstSegment;
+        firstSegment = first;
+        writeManifest();
+        File dir = archiveDir;
+        if (dir != null) dir.mkdirs();
+        for (long seg = old; seg < first; seg++)
+        {
+            var f = segments.remove(seg);
+            if (f != null) f.close();
+            File file = segmentFile(seg);
+            if (dir != null)
+                Files.move(file.toPath(), new File(dir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            else
+                file.delete();
+        }
+        if (unsynced < first) unsynced = first;
+        return (int) (first - old);
+    }
+
+    long getFilePointer() {
+        return pos;
+    }
+
+    void seek(long lsn) {
+        pos = lsn;
+    }
+
+    long length() {
+        return end;
+    }
+
+    /**
+     * 把逻辑末尾设为 lsn: 清零之后的内容 (包括崩溃前写了一半的记录) 并重新预分配
+     */
+    void setLength(long lsn) throws IOException {
+        long seg = lsn / segmentSize;
+        for (var it = segments.keySet().iterator(); it.hasNext(); )
+        {
+            long s = it.next();
+            if (s <= seg) continue;
+            segments.get(s).close();
+            it.remove();
+            segmentFile(s).delete();
+        }
+        var f = segments.get(seg);
+        if (f == null)
+        {
+            channel(seg, true);
+        }
+        else
+        {
+            // 缩短再扩展, 被截掉的部分读出来是 0
+            f.setLength(lsn % segmentSize);
+            f.setLength(segmentSize);
+            channel(seg, true);
+        }
+        end = lsn;
+        if (pos > end) pos = end;
+        lastSegment = seg;
+    }
+
+    /**
+     * fdatasync 所有可能有未持久化数据的段. 可以和追加并发执行, 覆盖调用之前写完的所有数据.
+     */
+    void force() throws IOException {
+        long hi = lastSegment;
+        for (long seg = unsynced; seg <= hi; seg++)
+        {
+            var f = segments.get(seg);
+            if (f == null) continue;
+            try
+            {
+                f.getChannel().force(false);
+            } catch (ClosedChannelException e)
+            {
+                // 段在 fsync 期间被截断, 里面的记录已经不需要了
+            }
+        }
+        unsynced = hi;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (var f : segments.values())
+            f.close();
+        segments.clear();
+        manifestFile.close();
+    }
+
+    private File segmentFile(long seg) {
+        return new File(manifest.getPath() + "." + String.format("%08d", seg));
+    }
+
+    private RandomAccessFile open(long seg) throws IOException {
+        var f = new RandomAccessFile(segmentFile(seg), "rw");
+        // 预分配: 文件长度从此不变
+        if (f.length() < segmentSize) f.setLength(segmentSize);
+        var prev = segments.putIfAbsent(seg, f);
+        if (prev != null)
+        {
+            f.close();
+            return prev;
+        }
+        return f;
+    }
+
+    // 写入时提前创建下一个段, 读取时段不存在返回 null
+    private FileChannel channel(long seg, boolean write) throws IOException {
+        if (seg < firstSegment) throw new IOException("log segment " + seg + " has been truncated");
+        var f = segments.get(seg);
+        if (f == null)
+        {
+            if (!write && !segmentFile(seg).exists()) return null;
+            f = open(seg);
+        }
+        if (write && !segments.containsKey(seg + 1)) open(seg + 1);
+        return f.getChannel();
+    }
+
+    private void writeManifest() throws IOException {
+        var buf = ByteBuffer.allocate(MANIFEST_SIZE);
+        buf.putInt(MANIFEST_MAGIC).putLong(segmentSize).putLong(firstSegment).putLong(checkpoint);
+        manifestFile.seek(0);
+        manifestFile.write(buf.array());
+        manifestFile.getChannel().force(true);
+    }
+
+    // ---- DataInput ----
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (pos + len > end) throw new EOFException();
+        while (len > 0)
+        {
+            long seg = pos / segmentSize;
+            int at = (int) (pos % segmentSize);
+            int n = (int) Math.min(len, segmentSize - at);
+            var ch = channel(seg, false);
+            if (ch == null) throw new EOFException();
+            var buf = ByteBuffer.wrap(b, off, n);
+            while (buf.hasRemaining())
+                if (ch.read(buf, at + buf.position() - off) < 0) throw new EOFException();
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        int k = (int) Math.max(0, Math.min(n, end - pos));
+        pos += k;
+        return k;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        readFully(scratch, 0, 1);
+        return scratch[0];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        readFully(scratch, 0, 2);
+        return scratchBuf.getShort(0);
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        readFully(scratch, 0, 4);
+        return scratchBuf.getInt(0);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        readFully(scratch, 0, 8);
+        return scratchBuf.getLong(0);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * 同 {@link java.io.RandomAccessFile#readLine()}: 每个字节当作一个字符, 行以 \n, \r 或 \r\n 结束
+     *
+     * @return 一行, 不含行尾; 已经在末尾时返回 null
+     */
+    @Override
+    public String readLine() throws IOException {
+        if (pos >= end) return null;
+        var line = new StringBuilder();
+        while (pos < end)
+        {
+            int c = readUnsignedByte();
+            if (c == '\n') break;
+            if (c == '\r')
+            {
+                if (pos < end && peekByte() == '\n') pos++;
+                break;
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private int peekByte() throws IOException {
+        int c = readUnsignedByte();
+        pos--;
+        return c;
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    // ---- DataOutput ----
+
+    @Override
+    public void write(int b) throws IOException {
+        scratch[0] = (byte) b;
+        write(scratch, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0)
+        {
+            long seg = pos / segmentSize;
+            int at = (int) (pos % segmentSize);
+            int n = (int) Math.min(len, segmentSize - at);
+            var ch = channel(seg, true);
+            if (seg > lastSegment) lastSegment = seg;
+            var buf = ByteBuffer.wrap(b, off, n);
+            while (buf.hasRemaining())
+                ch.write(buf, at + buf.position() - off);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+        if (pos > end) end = pos;
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        scratchBuf.putShort(0, (short) v);
+        write(scratch, 0, 2);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        scratchBuf.putInt(0, v);
+        write(scratch, 0, 4);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        scratchBuf.putLong(0, v);
+        write(scratch, 0, 8);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            writeChar(s.charAt(i));
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(s);
+        write(bytes.toByteArray());
+    }
+}
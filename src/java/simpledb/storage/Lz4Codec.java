@@ -0,0 +1,174 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ4 块格式的压缩和解压, 纯 Java 实现, 用来压缩页面.
+ * <p>
+ * 压缩结果是一串 sequence, 每个 sequence:
+ *
+ * <pre>
+ * token        u8         高 4 位: 字面量长度, 低 4 位: 匹配长度 - 4; 取 15 时后面跟扩展字节
+ * literal len  u8 * n     每个字节加到长度上, 直到一个不是 255 的字节
+ * literals
+ * offset       u16 (LE)   匹配在已解压数据中往回的距离
+ * match len    u8 * n     同 literal len
+ * </pre>
+ * <p>
+ * 最后一个 sequence 只有字面量. 和 LZ4 一样, 最后 5 个字节总是字面量, 最后一个匹配至少在结尾前 12 个字节开始.
+ * 匹配只用 4 字节哈希表找最近一次出现的位置, 不做更深的搜索: 页面里的重复主要是补齐用的 0 和相同的整数, 足够了.
+ */
+public final class Lz4Codec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+
+    private static final ThreadLocal<int[]> tables = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    private Lz4Codec() {
+    }
+
+    /**
+     * @return 压缩 n 个字节最多需要的输出空间
+     */
+    public static int maxCompressedLength(int n) {
+        return n + n / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    // 写长度的扩展字节, 调用前已经从 len 中减去 15
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255)
+        {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literals, int literalLen, int offset, int matchLen) {
+        int token = op++;
+        int t = Math.min(literalLen, 15) << 4;
+        if (literalLen >= 15) op = writeLength(dst, op, literalLen - 15);
+        System.arraycopy(src, literals, dst, op, literalLen);
+        op += literalLen;
+        if (matchLen > 0)
+        {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int m = matchLen - MIN_MATCH;
+            t |= Math.min(m, 15);
+            if (m >= 15) op = writeLength(dst, op, m - 15);
+        }
+        dst[token] = (byte) t;
+        return op;
+    }
+
+    /**
+     * 压缩 src[0, n)
+     *
+     * @param dst 至少 {@link #maxCompressedLength}(n) 字节
+     * @return 压缩后的字节数
+     */
+    public static int compress(byte[] src, int n, byte[] dst) {
+        int[] table = tables.get();
+        Arrays.fill(table, 0);
+        int anchor = 0, ip = 0, op = 0;
+        int matchLimit = n - LAST_LITERALS;
+        while (ip < n - MF_LIMIT)
+        {
+            int v = readInt(src, ip);
+            int h = hash(v);
+            // 表中存位置 + 1, 0 表示空
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != v)
+            {
+                ip++;
+                continue;
+            }
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1])
+            {
+                ip--;
+                ref--;
+            }
+            int len = MIN_MATCH;
+            while (ip + len < matchLimit && src[ref + len] == src[ip + len])
+            {
+                len++;
+            }
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, len);
+            ip += len;
+            anchor = ip;
+        }
+        return writeSequence(dst, op, src, anchor, n - anchor, 0, 0);
+    }
+
+    /**
+     * 解压 src[off, off + len) 到 dst[dstOff, dstOff + n), 结果必须正好是 n 个字节
+     *
+     * @throws IOException 数据损坏
+     */
+    public static void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int n) throws IOException {
+        int ip = off, end = off + len, op = dstOff, limit = dstOff + n;
+        try
+        {
+            while (true)
+            {
+                int token = src[ip++] & 0xff;
+                int literalLen = token >>> 4;
+                if (literalLen == 15)
+                {
+                    int b;
+                    do
+                    {
+                        b = src[ip++] & 0xff;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                if (ip + literalLen > end || op + literalLen > limit) throw new IOException("corrupt compressed page");
+                System.arraycopy(src, ip, dst, op, literalLen);
+                ip += literalLen;
+                op += literalLen;
+                if (ip == end) break;
+                if (ip + 2 > end) throw new IOException("corrupt compressed page");
+
+                int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                int matchLen = token & 15;
+                if (matchLen == 15)
+                {
+                    int b;
+                    do
+                    {
+                        b = src[ip++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (offset == 0 || offset > op - dstOff || op + matchLen > limit) throw new IOException("corrupt compressed page");
+                int ref = op - offset;
+                // 距离小于长度时源和目标重叠, 要逐字节复制 (例如一串 0 的 offset 是 1)
+                if (offset >= matchLen) System.arraycopy(dst, ref, dst, op, matchLen);
+                else for (int i = 0; i < matchLen; i++)
+                    dst[op + i] = dst[ref + i];
+                op += matchLen;
+            }
+        } catch (ArrayIndexOutOfBoundsException e)
+        {
+            throw new IOException("corrupt compressed page", e);
+        }
+        if (op != limit) throw new IOException("corrupt compressed page: " + (op - dstOff) + " bytes instead of " + n);
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 基于内存映射的存储后端.
+ * <p>
+ * 文件按 64MB 分段映射, 分段只映射到当前文件末尾, 所以映射不会改变文件长度.
+ * 读写文件已有的部分只是对映射区的内存拷贝; 扩展文件的写通过 channel 完成,
+ * 之后最后一个分段在下次访问时重新映射. 文件长度缓存在内存中, 不需要系统调用.
+ */
+public class MappedPageStore implements PageStore {
+    private static final int REGION_SHIFT = 26;
+    private static final long REGION_SIZE = 1L << REGION_SHIFT;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private volatile long size;
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    public MappedPageStore(File f) throws IOException {
+        raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
+        size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        long end = Math.min(size, position + dst.remaining());
+        if (position >= end) return dst.hasRemaining() ? -1 : 0;
+        int total = 0;
+        while (position < end)
+        {
+            var r = region((int) (position >>> REGION_SHIFT), end);
+            int off = (int) (position & (REGION_SIZE - 1));
+            int len = (int) Math.min(end - position, r.capacity() - off);
+            dst.put(dst.position(), r, off, len);
+            dst.position(dst.position() + len);
+            position += len;
+            total += len;
+        }
+        return total;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        long end = position + src.remaining();
+        if (end > size)
+        {
+            synchronized (this)
+            {
+                while (src.hasRemaining())
+                {
+                    position += channel.write(src, position);
+                }
+                if (end > size) size = end;
+            }
+            return;
+        }
+        while (src.hasRemaining())
+        {
+            var r = region((int) (position >>> REGION_SHIFT), end);
+            int off = (int) (position & (REGION_SIZE - 1));
+            int len = Math.min(src.remaining(), r.capacity() - off);
+            r.put(off, src, src.position(), len);
+            src.position(src.position() + len);
+            position += len;
+        }
+    }
+
+    /**
+     * 返回第 i 个分段的映射, 保证它至少覆盖到 end (或分段末尾)
+     */
+    private MappedByteBuffer region(int i, long end) throws IOException {
+        long start = (long) i << REGION_SHIFT;
+        long need = Math.min(REGION_SIZE, end - start);
+        var rs = regions;
+        if (i < rs.length && rs[i] != null && rs[i].capacity() >= need) return rs[i];
+        synchronized (this)
+        {
+            rs = regions;
+            if (i < rs.length && rs[i] != null && rs[i].capacity() >= need) return rs[i];
+            if (i >= rs.length) rs = Arrays.copyOf(rs, i + 1);
+            else rs = rs.clone();
+            rs[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(REGION_SIZE, size - start));
+            regions = rs;
+            return rs[i];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        regions = new MappedByteBuffer[0];
+        raf.close();
+    }
+}
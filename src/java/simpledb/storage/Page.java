@@ -2,6 +2,9 @@ package simpledb.storage;
 
 import simpledb.transaction.TransactionId;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -50,12 +53,85 @@ public interface Page {
 
     /** Provide a representation of this page before any modifications were made
         to it.  Used by recovery.
+        <p>
+        If no before image was captured since the last commit, the page has
+        not been modified and the result is a copy of its current content.
     */
     Page getBeforeImage();
 
     /*
      * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * the current content becomes the before image; a captured copy is dropped.
      */
     void setBeforeImage();
+
+    /**
+     * Called by the BufferPool when a transaction gets write access to this
+     * page, before it can modify it: save the current content as the before
+     * image unless one is already held (see {@link BeforeImage}).
+     *
+     * @return true if a new before image was captured by this call
+     */
+    boolean captureBeforeImage();
+
+    /**
+     * @return the number of bytes held by a captured before image, or 0
+     */
+    int getBeforeImageSize();
+
+    /**
+     * @return true if tid has uncommitted changes on this page. A page
+     * written under a page X lock has a single writer, so any dirty page counts.
+     */
+    default boolean isDirtiedBy(TransactionId tid) {
+        return isDirty() != null;
+    }
+
+    /**
+     * Called by the BufferPool when tid commits: log tid's changes to this
+     * page and publish the result as the new before image. Pages shared by
+     * several writers must do both steps atomically.
+     *
+     * @return the sequence number of the UPDATE record, see {@link LogFile#logWrite}
+     */
+    default long commit(TransactionId tid, LogFile log) throws IOException {
+        long seq = log.logWrite(tid, getBeforeImage(), this);
+        setBeforeImage();
+        return seq;
+    }
+
+    /**
+     * @return true if the page holds changes that are not on disk yet. A page
+     * with uncommitted row changes stays dirty after it is written, but
+     * writing it again would only log the same changes twice.
+     */
+    default boolean needsFlush() {
+        return isDirty() != null;
+    }
+
+    /**
+     * Called by the BufferPool before a dirty page is written to disk: log
+     * the uncommitted changes it holds so they can be undone after a crash.
+     *
+     * @return the sequence number of the last UPDATE record written
+     */
+    default long logUncommitted(LogFile log) throws IOException {
+        return log.logWrite(isDirty(), getBeforeImage(), this);
+    }
+
+    /**
+     * Return the BufferPool frame holding this page's bytes, or null if the
+     * page keeps its contents on the Java heap.
+     */
+    default ByteBuffer getFrame() {
+        return null;
+    }
+
+    /**
+     * Copy this page's contents out of its BufferPool frame, so that the
+     * frame can be reused for another page. Called by the BufferPool when
+     * the page leaves the pool; pages without a frame ignore it.
+     */
+    default void detachFrame() {
+    }
 }
@@ -0,0 +1,220 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BufferPool 的后台写回线程.
+ * <p>
+ * 事务提交时只强制写日志 (NO FORCE), 被修改的页面交给 cleaner, 记为"已提交未写回".
+ * cleaner 在后台把这些页面的已提交内容 ({@link Page#getBeforeImage()}) 按表分组、按页号排序写回,
+ * 文件中相邻的页面合并成一次写 (见 {@link DbFile#writePages}), 让淘汰时总有干净的页面可选.
+ * 淘汰一个还没写回的页面时由 {@link #writeBack} 同步写回.
+ * <p>
+ * 写回的总是页面的已提交内容, 即使页面正在被另一个事务修改, 也不会把未提交的数据写到磁盘 (NO STEAL).
+ * 每次标记带一个递增的序号, 写回期间页面又被提交时, 标记不会被清除, 下一轮会再写一次.
+ * 所有写回都持有 {@link #writeLock}, 保证同一页面的旧内容不会覆盖新内容.
+ */
+public class PageCleaner {
+    /**
+     * 提交后等待多久再写回, 让连续提交的页面攒成一批
+     */
+    static final long DELAY_MILLIS = 10;
+
+    /**
+     * 所有缓冲池共享的 cleaner 线程; daemon 线程, 不会阻止 JVM 退出
+     */
+    private static final ScheduledExecutorService CLEANER = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "page-cleaner");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BufferPool pool;
+    /**
+     * 已提交但还没写回的页面 -> 提交时那条更新日志的序号, 写回后交给 {@link LogFile#pageWritten}
+     */
+    private final ConcurrentHashMap<PageId, Long> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    PageCleaner(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return 已提交但还没写回磁盘的页面数
+     */
+    public int getNumPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return cleaner 和淘汰一共写回的页面数
+     */
+    public long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    /**
+     * @return 写回时发起的写操作数, 相邻页面合并后小于 {@link #getPagesWritten()}
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * 页面的修改已经提交 (日志已强制写盘), 调用前必须已经发布新的 before image ({@link Page#commit})
+     */
+    void committed(PageId pid, long seq) {
+        pending.put(pid, seq);
+        if (scheduled.compareAndSet(false, true))
+            CLEANER.schedule(this::run, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isPending(PageId pid) {
+        return pending.containsKey(pid);
+    }
+
+    /**
+     * 页面离开缓冲池之前调用: 如果它还没写回, 现在写回
+     */
+    void writeBack(PageId pid) throws IOException {
+        writeLock.lock();
+        try
+        {
+            Long seq = pending.get(pid);
+            if (seq == null) return;
+            var page = pool.peekPage(pid);
+            if (page != null)
+            {
+                var image = page.getBeforeImage();
+                Database.getLogFile().forcePage(pid);
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+                pagesWritten.increment();
+                writes.increment();
+                Database.getLogFile().pageWritten(pid, seq);
+            }
+            pending.remove(pid, seq);
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 页面的当前内容已经由调用者写回, 或者页面被丢弃不再需要写回.
+     * 返回之后 cleaner 不会再写这个页面的旧内容.
+     */
+    void forget(PageId pid) {
+        writeLock.lock();
+        try
+        {
+            pending.remove(pid);
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    void lockWrites() {
+        writeLock.lock();
+    }
+
+    void unlockWrites() {
+        writeLock.unlock();
+    }
+
+    private void run() {
+        scheduled.set(false);
+        if (Database.getBufferPool() != pool)
+        {
+            // Database.reset() 模拟崩溃, 旧缓冲池里没写回的页面就此丢失, 由日志恢复
+            pending.clear();
+            return;
+        }
+        try
+        {
+            flush();
+        } catch (IOException | RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+        if (!pending.isEmpty() && scheduled.compareAndSet(false, true))
+            CLEANER.schedule(this::run, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 同步写回所有已提交的页面
+     */
+    void flush() throws IOException {
+        writeLock.lock();
+        try
+        {
+            Map<Integer, List<Page>> byTable = new HashMap<>();
+            Map<PageId, Long> seqs = new HashMap<>();
+            for (var e : pending.entrySet())
+            {
+                var page = pool.peekPage(e.getKey());
+                if (page == null)
+                {
+                    // 已经被淘汰 (淘汰前写回过) 或者被丢弃
+                    pending.remove(e.getKey(), e.getValue());
+                    continue;
+                }
+                seqs.put(e.getKey(), e.getValue());
+                byTable.computeIfAbsent(e.getKey().getTableId(), k -> new ArrayList<>()).add(page.getBeforeImage());
+            }
+            for (var e : byTable.entrySet())
+            {
+                DbFile f;
+                try
+                {
+                    f = Database.getCatalog().getDatabaseFile(e.getKey());
+                } catch (NoSuchElementException ex)
+                {
+                    // 表已经不在 catalog 中
+                    e.getValue().forEach(p -> pending.remove(p.getId()));
+                    continue;
+                }
+                // 先取镜像再强制写日志: 镜像里的提交都已经写了日志
+                for (Page p : e.getValue()) Database.getLogFile().forcePage(p.getId());
+                f.writePages(e.getValue());
+                pagesWritten.add(e.getValue().size());
+                writes.add(countRuns(e.getValue()));
+                for (Page p : e.getValue())
+                {
+                    Long seq = seqs.get(p.getId());
+                    Database.getLogFile().pageWritten(p.getId(), seq);
+                    pending.remove(p.getId(), seq);
+                }
+            }
+        } finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 页号连续的页面算一次写
+     */
+    private static int countRuns(List<Page> pages) {
+        int[] nos = pages.stream().mapToInt(p -> p.getId().getPageNumber()).sorted().toArray();
+        int runs = 0;
+        for (int i = 0; i < nos.length; i++)
+            if (i == 0 || nos[i] != nos[i - 1] + 1) runs++;
+        return runs;
+    }
+}
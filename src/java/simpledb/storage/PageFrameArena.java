@@ -0,0 +1,70 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 预先分配的堆外页帧池.
+ * <p>
+ * 页帧是从若干大块 direct {@link ByteBuffer} 中切出来的, 每块不超过 1GB, 所以缓冲池可以有数 GB 大,
+ * 而页面数据不占用 Java 堆, 也不会被 GC 扫描. 页帧用完时 {@link #acquire()} 返回 null,
+ * 调用方应退回到堆内缓冲区.
+ */
+public class PageFrameArena {
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final int pageSize;
+    private final int numFrames;
+
+    public PageFrameArena(int numFrames, int pageSize) {
+        this.pageSize = pageSize;
+        this.numFrames = numFrames;
+        int framesPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / pageSize);
+        for (int allocated = 0; allocated < numFrames; )
+        {
+            int n = Math.min(framesPerChunk, numFrames - allocated);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(n * pageSize);
+            for (int i = 0; i < n; i++)
+            {
+                free.offer(chunk.slice(i * pageSize, pageSize));
+            }
+            allocated += n;
+        }
+    }
+
+    /**
+     * @return 一个空闲页帧, 没有空闲页帧时返回 null
+     */
+    public ByteBuffer acquire() {
+        var frame = free.poll();
+        if (frame != null) frame.clear();
+        return frame;
+    }
+
+    /**
+     * 归还页帧. 调用方必须保证之后不再通过这个页帧读写.
+     */
+    public void release(ByteBuffer frame) {
+        if (frame == null) return;
+        free.offer(frame);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return 页帧总数
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * @return 当前空闲的页帧数
+     */
+    public int available() {
+        return free.size();
+    }
+}
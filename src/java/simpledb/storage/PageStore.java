@@ -0,0 +1,119 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * DbFile 的存储后端: 按字节偏移读写底层文件.
+ * <p>
+ * 所有读写都是定位(positional)的, 不共享文件指针, 多个线程可以并发读.
+ *
+ * @see HeapFile
+ * @see simpledb.index.BTreeFile
+ */
+public interface PageStore {
+
+    /**
+     * @return 文件当前的字节数
+     */
+    long size() throws IOException;
+
+    /**
+     * 从 position 开始读满 dst 的剩余空间, 文件末尾之后的部分不读.
+     *
+     * @return 读到的字节数, position 不小于文件长度时返回 -1
+     */
+    int read(long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * 把 src 的剩余内容写到 position 处, 必要时扩展文件
+     */
+    void write(long position, ByteBuffer src) throws IOException;
+
+    default void write(long position, byte[] src) throws IOException {
+        write(position, ByteBuffer.wrap(src));
+    }
+
+    /**
+     * 把 srcs 依次连续写到 position 处 (gathering write)
+     */
+    default void write(long position, ByteBuffer[] srcs) throws IOException {
+        for (ByteBuffer src : srcs)
+        {
+            int n = src.remaining();
+            write(position, src);
+            position += n;
+        }
+    }
+
+    /**
+     * 按文件偏移排序后写入一批页面, 首尾相接的页面合并成一次 {@link #write(long, ByteBuffer[])}
+     *
+     * @param offsetOf 页面在文件中的字节偏移
+     */
+    default void writePages(List<? extends Page> pages, ToLongFunction<PageId> offsetOf) throws IOException {
+        var sorted = new ArrayList<Page>(pages);
+        sorted.sort(Comparator.comparingLong(p -> offsetOf.applyAsLong(p.getId())));
+        var run = new ArrayList<ByteBuffer>();
+        long start = 0, end = 0;
+        for (Page p : sorted)
+        {
+            long off = offsetOf.applyAsLong(p.getId());
+            if (!run.isEmpty() && off != end)
+            {
+                write(start, run.toArray(new ByteBuffer[0]));
+                run.clear();
+            }
+            if (run.isEmpty()) start = end = off;
+            var data = ByteBuffer.wrap(p.getPageData());
+            end += data.remaining();
+            run.add(data);
+        }
+        if (!run.isEmpty()) write(start, run.toArray(new ByteBuffer[0]));
+    }
+
+    void close() throws IOException;
+
+    /**
+     * 内置的存储后端
+     */
+    enum Kind {
+        /**
+         * 基于 {@link java.nio.channels.FileChannel} 的定位读写, 每次读写一次系统调用;
+         * 每次都向文件询问长度, 允许其他写者追加文件
+         */
+        CHANNEL,
+        /**
+         * 基于 {@link java.nio.MappedByteBuffer} 的内存映射读写, 读页面只是一次内存拷贝.
+         * 文件长度缓存在内存中, 所以文件只能通过这个后端修改
+         */
+        MMAP,
+        /**
+         * 每个页面单独压缩后存放, 见 {@link CompressedPageStore}. 磁盘占用和扫描读盘量随压缩比减少,
+         * 代价是读写页面时的压缩和解压
+         */
+        COMPRESSED;
+
+        public PageStore open(File f) throws IOException {
+            return open(f, 0);
+        }
+
+        /**
+         * @param origin 第一个页面在文件中的偏移, 之前是文件头 (例如 BTreeFile 的根指针页);
+         *               只有按页面划分文件的后端需要知道
+         */
+        public PageStore open(File f, long origin) throws IOException {
+            return switch (this)
+                    {
+                        case CHANNEL -> new ChannelPageStore(f);
+                        case MMAP -> new MappedPageStore(f);
+                        case COMPRESSED -> new CompressedPageStore(f, origin);
+                    };
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 按列存放 (PAX) 的 HeapFile 页面: 槽位和 {@link HeapPage} 一样是定长的, 但同一列的值在页内连续存放,
+ * 只读取部分列时不需要经过其他列的字节.
+ * <p>
+ * 页面布局:
+ *
+ * <pre>
+ * bitmap   ceiling(slots / 8) 字节       和 HeapPage 相同, 所以可以共用空闲空间的判断
+ * stats    (min int, max int) * INT 列数  页内这一列的最小值和最大值, 页面为空时没有意义
+ * column 0 slots * len(0) 字节            第 s 个槽的值在 s * len(0)
+ * column 1 slots * len(1) 字节
+ * ...
+ * </pre>
+ * <p>
+ * 槽数为 floor((page size - stats) * 8 / (tuple size * 8 + 1)). 空页插入第一个元组时初始化 stats,
+ * 之后插入只会扩大范围; 删除不收缩范围, 所以 stats 总是包含页内所有的值, 但可能比实际的宽.
+ * STRING 列没有 stats.
+ * <p>
+ * 页面字节, 页帧和 before image 的处理见 {@link AbstractTuplePage}.
+ *
+ * @see HeapFile.Layout#PAX
+ */
+public class PaxHeapPage extends AbstractTuplePage {
+    private static final int STAT_SIZE = 2 * Type.INT_TYPE.getLen();
+
+    final int numSlots;
+    final int headerSize;
+    /**
+     * 每一列在页内的起点
+     */
+    private final int[] columnStart;
+    /**
+     * INT 列的 stats 在页内的位置, 其他列为 -1
+     */
+    private final int[] statOffset;
+    private final int[] allColumns;
+
+    public PaxHeapPage(HeapPageId id, byte[] data) {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * 直接使用 data 作为页面内容, 不拷贝
+     */
+    public PaxHeapPage(HeapPageId id, ByteBuffer data) {
+        super(id, data);
+        this.numSlots = numSlots(td);
+        this.headerSize = (numSlots + 7) / 8;
+        int n = td.numFields();
+        this.columnStart = new int[n];
+        this.statOffset = new int[n];
+        this.allColumns = new int[n];
+        int stat = headerSize;
+        for (int i = 0; i < n; i++)
+        {
+            statOffset[i] = td.getFieldType(i) == Type.INT_TYPE ? stat : -1;
+            if (statOffset[i] >= 0) stat += STAT_SIZE;
+            allColumns[i] = i;
+        }
+        for (int i = 0; i < n; i++)
+        {
+            columnStart[i] = stat + numSlots * td.getFieldOffset(i);
+        }
+    }
+
+    @Override
+    protected PaxHeapPage newPage(ByteBuffer data) {
+        return new PaxHeapPage(pid, data);
+    }
+
+    @Override
+    protected boolean tupleLocks() {
+        return true;
+    }
+
+    @Override
+    protected int numSlots() {
+        return numSlots;
+    }
+
+    /**
+     * 把槽的各列拼成一条按 td 序列化的记录
+     */
+    @Override
+    protected byte[] record(int slot) {
+        return read(buf -> {
+            if (!HeapPage.isSlotUsed(buf, slot)) return null;
+            var record = new byte[td.getSize()];
+            for (int i = 0; i < td.numFields(); i++)
+            {
+                buf.get(valueOffset(i, slot), record, td.getFieldOffset(i), td.getFieldType(i).getLen());
+            }
+            return record;
+        });
+    }
+
+    @Override
+    protected void setRecord(int slot, byte[] record) {
+        if (record != null)
+        {
+            put(slot, record, isEmpty(data, headerSize));
+            return;
+        }
+        markSlotUsed(slot, false);
+        for (int i = 0; i < td.numFields(); i++)
+        {
+            data.put(valueOffset(i, slot), new byte[td.getFieldType(i).getLen()]);
+        }
+    }
+
+    private static int statsSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+        {
+            if (td.getFieldType(i) == Type.INT_TYPE) size += STAT_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * @return 元组描述为 td 的页面的槽数
+     */
+    static int numSlots(TupleDesc td) {
+        return (BufferPool.getPageSize() - statsSize(td)) * 8 / (td.getSize() * 8 + 1);
+    }
+
+    private int valueOffset(int column, int slot) {
+        return columnStart[column] + slot * td.getFieldType(column).getLen();
+    }
+
+    private static boolean isEmpty(ByteBuffer buf, int headerSize) {
+        for (int i = 0; i < headerSize; i++)
+        {
+            if (buf.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        int b = data.get(i / 8);
+        b = value ? b | (1 << (i % 8)) : b & ~(1 << (i % 8));
+        data.put(i / 8, (byte) b);
+    }
+
+    private byte[] encode(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) throw new DbException("tuple desc is mismatch");
+        var baos = new ByteArrayOutputStream(td.getSize());
+        var dos = new DataOutputStream(baos);
+        try
+        {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(dos);
+            dos.flush();
+        } catch (IOException e)
+        {
+            throw new DbException("can't serialize tuple: " + e.getMessage());
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * 把一条按 td 序列化的记录拆到各列的槽位上, 并更新 stats
+     */
+    private void put(int slot, byte[] record, boolean first) {
+        var rec = ByteBuffer.wrap(record);
+        for (int i = 0; i < td.numFields(); i++)
+        {
+            int off = td.getFieldOffset(i);
+            data.put(valueOffset(i, slot), record, off, td.getFieldType(i).getLen());
+            int stat = statOffset[i];
+            if (stat < 0) continue;
+            int v = rec.getInt(off);
+            if (first || v < data.getInt(stat)) data.putInt(stat, v);
+            if (first || v > data.getInt(stat + 4)) data.putInt(stat + 4, v);
+        }
+        markSlotUsed(slot, true);
+    }
+
+    @Override
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (insertTuples(List.of(t), 0) == 0) throw new DbException("Page is full");
+    }
+
+    @Override
+    public synchronized int insertTuples(List<Tuple> tuples, int from) throws DbException {
+        boolean first = isEmpty(data, headerSize);
+        int n = from;
+        for (int j = 0; j < numSlots && n < tuples.size(); j++)
+        {
+            if (HeapPage.isSlotUsed(data, j) || isReserved(j)) continue;
+            var t = tuples.get(n);
+            put(j, encode(t), first);
+            first = false;
+            t.setRecordId(new RecordId(pid, j));
+            n++;
+        }
+        return n - from;
+    }
+
+    @Override
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td) || t.getRecordId() == null || !t.getRecordId().getPageId().equals(pid))
+            throw new DbException("tuple not on this page");
+        int slot = t.getRecordId().getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !HeapPage.isSlotUsed(data, slot))
+            throw new DbException("tuple slot is already empty");
+        setRecord(slot, null);
+    }
+
+    /**
+     * 读一个槽的部分列, 槽为空时返回 null. 只拷出这些列的值
+     */
+    private Tuple readTuple(int slot, int[] columns, TupleDesc projected) {
+        return read(buf -> {
+            if (!HeapPage.isSlotUsed(buf, slot)) return null;
+            var record = new byte[projected.getSize()];
+            for (int i = 0; i < columns.length; i++)
+            {
+                int c = columns[i];
+                buf.get(valueOffset(c, slot), record, projected.getFieldOffset(i), td.getFieldType(c).getLen());
+            }
+            return new TupleView(projected, record, new RecordId(pid, slot));
+        });
+    }
+
+    public int getNumEmptySlots() {
+        int sum = 0;
+        for (int i = 0; i < numSlots; i++)
+        {
+            if (!isSlotUsed(i)) sum++;
+        }
+        return sum;
+    }
+
+    @Override
+    public boolean hasRoom() {
+        return getNumEmptySlots() != 0;
+    }
+
+    public boolean isSlotUsed(int slot) {
+        return read(buf -> HeapPage.isSlotUsed(buf, slot));
+    }
+
+    /**
+     * @return 第 column 列在页内的最小值; 不是 INT 列或者页面为空时返回 null
+     */
+    public IntField getMin(int column) {
+        return stat(column, 0);
+    }
+
+    /**
+     * @return 第 column 列在页内的最大值; 不是 INT 列或者页面为空时返回 null
+     */
+    public IntField getMax(int column) {
+        return stat(column, 4);
+    }
+
+    private IntField stat(int column, int which) {
+        if (statOffset[column] < 0) return null;
+        return read(buf -> isEmpty(buf, headerSize) ? null : new IntField(buf.getInt(statOffset[column] + which)));
+    }
+
+    /**
+     * 空页不可能满足; INT 列用 stats 判断, 其他列总是返回 true
+     */
+    @Override
+    public boolean mayMatch(int column, Predicate.Op op, Field operand) {
+        return read(buf -> {
+            if (isEmpty(buf, headerSize)) return false;
+            if (statOffset[column] < 0) return true;
+            var min = new IntField(buf.getInt(statOffset[column]));
+            var max = new IntField(buf.getInt(statOffset[column] + 4));
+            return switch (op)
+                    {
+                        case EQUALS, LIKE -> min.compare(Predicate.Op.LESS_THAN_OR_EQ, operand) && max.compare(Predicate.Op.GREATER_THAN_OR_EQ, operand);
+                        case NOT_EQUALS -> !(min.equals(operand) && max.equals(operand));
+                        case GREATER_THAN, GREATER_THAN_OR_EQ -> max.compare(op, operand);
+                        default -> min.compare(op, operand);
+                    };
+        });
+    }
+
+    @Override
+    public Iterator<Tuple> iterator() {
+        return iterator(allColumns, td);
+    }
+
+    /**
+     * 只从 columns 对应的列读取值, 其他列的字节不会被访问
+     */
+    @Override
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected) {
+        return new Iterator<>() {
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                for (int i = index; i < numSlots; i++)
+                {
+                    if (isSlotUsed(i))
+                    {
+                        index = i;
+                        return true;
+                    }
+                }
+                index = numSlots;
+                return false;
+            }
+
+            @Override
+            public Tuple next() {
+                // 判断和读取之间槽可能被清空, 读到 null 就继续找下一个
+                while (hasNext())
+                {
+                    Tuple t = readTuple(index++, columns, projected);
+                    if (t != null) return t;
+                }
+                return null;
+            }
+        };
+    }
+}
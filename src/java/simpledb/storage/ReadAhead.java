@@ -0,0 +1,262 @@
+package simpledb.storage;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * BufferPool 的异步预读.
+ * <p>
+ * 访问方法为每次扫描创建一个访问流 ({@link #sequential} 或 {@link #chained}),
+ * 每读到一页就通知它. 访问流连续 {@link #TRIGGER} 次看到"下一页"后认定为顺序访问,
+ * 把后面至多 {@link #getWindow()} 个页面交给后台 I/O 线程装入缓冲池; 窗口消费过半时再发起下一批.
+ * <p>
+ * 预读不获取任何锁, 只把磁盘上的页面放进缓冲池, 事务真正读取时仍然通过 {@link BufferPool#getPage} 加锁.
+ * 缓冲池满且全是脏页时预读直接放弃, 不会抛出异常.
+ *
+ * @see BufferPool#getReadAhead()
+ */
+public class ReadAhead {
+    /**
+     * 默认预读窗口(页)
+     */
+    public static final int DEFAULT_WINDOW = 8;
+    /**
+     * 连续多少次顺序访问之后开始预读
+     */
+    static final int TRIGGER = 2;
+
+    /**
+     * 所有缓冲池共享的后台 I/O 线程; daemon 线程, 不会阻止 JVM 退出
+     */
+    private static final ExecutorService IO = Executors.newFixedThreadPool(4, new ThreadFactory());
+
+    private final BufferPool pool;
+    private final int maxWindow;
+    private volatile int window;
+
+    /**
+     * 已经预读进缓冲池但还没有被事务读取过的页面
+     */
+    private final Set<PageId> unused = ConcurrentHashMap.newKeySet();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder wasted = new LongAdder();
+
+    /**
+     * @param maxWindow 窗口上限, 避免预读的页面把正在使用的页面挤出缓冲池
+     */
+    ReadAhead(BufferPool pool, int maxWindow) {
+        this.pool = pool;
+        this.maxWindow = Math.max(0, maxWindow);
+        setWindow(DEFAULT_WINDOW);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * 设置预读窗口, 超过上限时截断为上限; 0 表示关闭预读
+     */
+    public void setWindow(int pages) {
+        window = Math.max(0, Math.min(pages, maxWindow));
+    }
+
+    /**
+     * @return 后台装入缓冲池的页面数
+     */
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    /**
+     * @return 预读的页面中被事务读到的页面数
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return 预读的页面中还没被读到就被淘汰的页面数
+     */
+    public long getWasted() {
+        return wasted.sum();
+    }
+
+    /**
+     * @return 预读命中率 hits / issued, 没有预读时为 0
+     */
+    public double getHitRate() {
+        long n = issued.sum();
+        return n == 0 ? 0 : (double) hits.sum() / n;
+    }
+
+    public void resetStats() {
+        issued.reset();
+        hits.reset();
+        wasted.reset();
+    }
+
+    /**
+     * 页号连续的访问流, 例如 HeapFile 的顺序扫描
+     *
+     * @param pageAt   页号 -> PageId
+     * @param numPages 文件页数, 不会预读超过它的页面
+     */
+    public Sequential sequential(IntFunction<PageId> pageAt, int numPages) {
+        return new Sequential(pageAt, numPages);
+    }
+
+    /**
+     * 沿页面内指针前进的访问流, 例如 B+ 树叶子页的右兄弟链
+     *
+     * @param next 页面 -> 下一页, 没有下一页或者扫描不需要下一页时返回 null;
+     *             在后台线程中对未加锁的页面调用, 只能读取页面内容
+     */
+    public Chained chained(Function<Page, PageId> next) {
+        return new Chained(next);
+    }
+
+    /**
+     * 缓冲池命中
+     */
+    void onHit(PageId pid) {
+        if (!unused.isEmpty() && unused.remove(pid)) hits.increment();
+    }
+
+    /**
+     * 页面离开缓冲池
+     */
+    void onEvict(PageId pid) {
+        if (!unused.isEmpty() && unused.remove(pid)) wasted.increment();
+    }
+
+    private void submit(PageId pid) {
+        if (pid == null) return;
+        IO.execute(() -> load(pid));
+    }
+
+    private void submitChain(Page from, Function<Page, PageId> next, int count) {
+        IO.execute(() -> {
+            try
+            {
+                var p = from;
+                for (int i = 0; i < count && p != null; i++)
+                {
+                    var pid = next.apply(p);
+                    if (pid == null) return;
+                    load(pid);
+                    p = pool.peekPage(pid);
+                }
+            } catch (RuntimeException e)
+            {
+                // 页面没有加锁, 可能正被修改, 读到不一致的内容时放弃这一批
+            }
+        });
+    }
+
+    private void load(PageId pid) {
+        boolean added = unused.add(pid);
+        boolean loaded = false;
+        try
+        {
+            loaded = pool.prefetchPage(pid);
+        } catch (RuntimeException e)
+        {
+            // 预读只是提示, 表被删除、文件被截断之类的情况直接忽略
+        }
+        if (loaded) issued.increment();
+        else if (added) unused.remove(pid);
+    }
+
+    /**
+     * 页号连续的访问流, 只能在一个线程里使用
+     */
+    public final class Sequential {
+        private final IntFunction<PageId> pageAt;
+        private final int numPages;
+        private int last = -2;
+        private int run = 0;
+        private int issuedTo = -1;
+
+        private Sequential(IntFunction<PageId> pageAt, int numPages) {
+            this.pageAt = pageAt;
+            this.numPages = numPages;
+        }
+
+        /**
+         * 读到了第 pageNo 页
+         */
+        public void access(int pageNo) {
+            if (pageNo == last + 1) run++;
+            else
+            {
+                run = 1;
+                issuedTo = pageNo;
+            }
+            last = pageNo;
+            int w = window;
+            if (w == 0 || run < TRIGGER) return;
+            // 窗口还剩一半以上没有消费, 先不发起
+            if (issuedTo - pageNo > w / 2) return;
+            int to = Math.min(pageNo + w, numPages - 1);
+            for (int n = Math.max(issuedTo, pageNo) + 1; n <= to; n++)
+                submit(pageAt.apply(n));
+            issuedTo = Math.max(issuedTo, to);
+        }
+    }
+
+    /**
+     * 沿页面指针前进的访问流, 只能在一个线程里使用
+     */
+    public final class Chained {
+        private final Function<Page, PageId> next;
+        private PageId expected;
+        private int run = 0;
+        private int sinceIssue = 0;
+
+        private Chained(Function<Page, PageId> next) {
+            this.next = next;
+        }
+
+        /**
+         * 读到了页面 page
+         */
+        public void access(Page page) {
+            if (page.getId().equals(expected)) run++;
+            else
+            {
+                run = 1;
+                sinceIssue = Integer.MAX_VALUE;
+            }
+            expected = next.apply(page);
+            int w = window;
+            if (w == 0 || run < TRIGGER || expected == null) return;
+            // 后继页号只能从页面里读出, 每批沿链读 w 页; 消费过半后从当前页重新沿链预读, 已驻留的页面不会再读盘
+            if (sinceIssue < (w + 1) / 2)
+            {
+                sinceIssue++;
+                return;
+            }
+            sinceIssue = 1;
+            submitChain(page, next, w);
+        }
+    }
+
+    private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            var t = new Thread(r, "read-ahead-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
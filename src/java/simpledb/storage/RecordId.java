@@ -67,7 +67,7 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        return Integer.parseInt(String.valueOf(pid.hashCode()) + String.valueOf(Integer.hashCode(tupleno)));
+        return 31 * pid.hashCode() + tupleno;
     }
 
 }
@@ -0,0 +1,110 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 并行重做. 读日志的线程按 PageId 的哈希把校验过的页面镜像分给各个 worker,
+ * 同一个页面的镜像总是由同一个 worker 按日志顺序解码.
+ * <p>
+ * worker 在内存中保留每个页面最新的重做结果, 它也是这个页面下一个差量镜像的基础页面;
+ * 攒够 maxPages 个页面或者重做结束时, 按表批量写回 ({@link DbFile#writePages}).
+ */
+final class RedoWorkers {
+
+    private final ExecutorService[] workers;
+    private final List<Map<PageId, Page>> pages = new ArrayList<>();
+    private final LogCodecs.BaseSource base;
+    private final int maxPages;
+    private volatile Throwable failure;
+
+    /**
+     * @param base 不在 worker 内存中的页面的基础数据
+     */
+    RedoWorkers(int threads, int maxPages, LogCodecs.BaseSource base) {
+        this.workers = new ExecutorService[threads];
+        this.base = base;
+        this.maxPages = maxPages;
+        for (int i = 0; i < threads; i++)
+        {
+            var name = "redo-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                var t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+            pages.add(new HashMap<>());
+        }
+    }
+
+    void submit(LogCodecs.Image image) {
+        int i = Math.floorMod(image.pid().hashCode(), workers.length);
+        var mine = pages.get(i);
+        workers[i].execute(() -> {
+            if (failure != null) return;
+            try
+            {
+                Page p = LogCodecs.decode(image, pid -> {
+                    Page cur = mine.get(pid);
+                    return cur != null ? cur.getPageData() : base.pageData(pid);
+                });
+                mine.put(p.getId(), p);
+                if (mine.size() >= maxPages) flush(mine);
+            } catch (Throwable e)
+            {
+                failure = e;
+            }
+        });
+    }
+
+    /**
+     * 等待所有镜像处理完并写回磁盘, 然后结束 worker
+     *
+     * @throws IOException worker 解码或写回时遇到的第一个错误
+     */
+    void finish() throws IOException {
+        for (int i = 0; i < workers.length; i++)
+        {
+            var mine = pages.get(i);
+            workers[i].execute(() -> {
+                if (failure != null) return;
+                try
+                {
+                    flush(mine);
+                } catch (Throwable e)
+                {
+                    failure = e;
+                }
+            });
+            workers[i].shutdown();
+        }
+        try
+        {
+            for (var w : workers)
+                while (!w.awaitTermination(1, TimeUnit.SECONDS)) ;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for redo", e);
+        }
+        if (failure instanceof IOException e) throw e;
+        if (failure != null) throw new IOException("redo failed", failure);
+    }
+
+    private static void flush(Map<PageId, Page> mine) throws IOException {
+        Map<Integer, List<Page>> byTable = new HashMap<>();
+        for (Page p : mine.values())
+            byTable.computeIfAbsent(p.getId().getTableId(), k -> new ArrayList<>()).add(p);
+        for (var e : byTable.entrySet())
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(e.getValue());
+        mine.clear();
+    }
+}
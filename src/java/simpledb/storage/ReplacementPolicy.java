@@ -0,0 +1,78 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * BufferPool 的页面置换策略.
+ * <p>
+ * 每个驻留页面对应策略分配的一个 {@link Entry}. 命中路径只调用 {@link #touch},
+ * 实现必须保证它不需要全局锁; 其余方法 ({@link #admit}, {@link #remove}, {@link #victim})
+ * 由 BufferPool 在淘汰锁内串行调用.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * 策略挂在每个页帧上的状态
+     */
+    abstract class Entry {
+        final PageId pid;
+
+        protected Entry(PageId pid) {
+            this.pid = pid;
+        }
+
+        public PageId getPageId() {
+            return pid;
+        }
+    }
+
+    /**
+     * 一个新页面被装入缓冲池
+     *
+     * @return 该页面的策略状态, 之后的 touch/remove 都使用它
+     */
+    Entry admit(PageId pid);
+
+    /**
+     * 页面命中, 可能被多个线程并发调用
+     */
+    void touch(Entry entry);
+
+    /**
+     * 页面离开缓冲池(被淘汰或被 discard)
+     */
+    void remove(Entry entry);
+
+    /**
+     * 选择一个可淘汰的页面, 但并不移除它(移除由 {@link #remove} 完成).
+     *
+     * @param evictable 页面当前是否允许淘汰 (NO STEAL: 脏页不能淘汰)
+     * @return 被选中的页面, 没有可淘汰的页面时返回 null
+     */
+    PageId victim(Predicate<PageId> evictable);
+
+    /**
+     * 内置的置换策略
+     */
+    enum Kind {
+        /**
+         * 二次机会时钟算法
+         */
+        CLOCK,
+        /**
+         * 2Q: 新页面先进入 FIFO 的 A1in, 只有在 A1out 历史中再次被访问的页面才进入主队列,
+         * 大表顺序扫描不会冲掉热点页面
+         */
+        TWO_QUEUE;
+
+        public ReplacementPolicy create(int numPages) {
+            return switch (this)
+                    {
+                        case CLOCK -> new ClockReplacementPolicy();
+                        case TWO_QUEUE -> new TwoQueueReplacementPolicy(numPages);
+                    };
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * 槽目录格式的 HeapFile 页面, 记录是变长的.
+ * <p>
+ * 页面布局:
+ *
+ * <pre>
+ * slot count    u16                      槽目录的项数
+ * record start  u16                      记录区的起点, 0 表示页尾, 所以全零的新页就是空页
+ * garbage       u16                      记录区中已删除的记录占的字节数
+ * slots         (offset u16, length u16) * slot count, offset 为 0 表示空槽
+ * ...                                    空闲区
+ * records                                从页尾往前分配
+ * </pre>
+ * <p>
+ * INT 和 DOUBLE 字段按定长存放, STRING 字段只存 u16 长度和实际的字节, 不补齐到 {@link Type#STRING_LEN}.
+ * <p>
+ * 元组的 RecordId 是槽号, 整理页面 ({@link #compact()}) 只移动记录, 不改变槽号. 删除只清空槽,
+ * 记录占的空间算进 garbage; 插入时连续的空闲区不够而总的空闲字节够, 就先整理再插入.
+ * 目录末尾的空槽会被去掉, 中间的空槽留给之后的插入复用.
+ * <p>
+ * 页面字节, 页帧和 before image 的处理见 {@link AbstractTuplePage}.
+ *
+ * @see HeapFile.Layout#SLOTTED
+ */
+public class SlottedHeapPage extends AbstractTuplePage {
+    static final int HEADER_SIZE = 6;
+    static final int SLOT_SIZE = 4;
+
+    public SlottedHeapPage(HeapPageId id, byte[] data) {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * 直接使用 data 作为页面内容, 不拷贝
+     */
+    public SlottedHeapPage(HeapPageId id, ByteBuffer data) {
+        super(id, data);
+        if (BufferPool.getPageSize() > 1 << 16) throw new IllegalStateException("slotted pages need a page size of at most 64KB");
+    }
+
+    @Override
+    protected SlottedHeapPage newPage(ByteBuffer data) {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    private static int slotCount(ByteBuffer buf) {
+        return buf.getShort(0) & 0xffff;
+    }
+
+    private static int recordStart(ByteBuffer buf) {
+        int start = buf.getShort(2) & 0xffff;
+        return start == 0 ? BufferPool.getPageSize() : start;
+    }
+
+    private static int garbage(ByteBuffer buf) {
+        return buf.getShort(4) & 0xffff;
+    }
+
+    private static int slotOffset(ByteBuffer buf, int slot) {
+        return buf.getShort(HEADER_SIZE + slot * SLOT_SIZE) & 0xffff;
+    }
+
+    private static int slotLength(ByteBuffer buf, int slot) {
+        return buf.getShort(HEADER_SIZE + slot * SLOT_SIZE + 2) & 0xffff;
+    }
+
+    /**
+     * @return 可以用来放记录和新槽的字节数, 包括 garbage
+     */
+    private static int freeBytes(ByteBuffer buf) {
+        return recordStart(buf) - HEADER_SIZE - slotCount(buf) * SLOT_SIZE + garbage(buf);
+    }
+
+    private void setRecordStart(int start) {
+        data.putShort(2, (short) (start == BufferPool.getPageSize() ? 0 : start));
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        data.putShort(HEADER_SIZE + slot * SLOT_SIZE, (short) offset);
+        data.putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, (short) length);
+    }
+
+    // 第一个空槽, 没有时返回 slot count, 表示要新加一个槽
+    private static int freeSlot(ByteBuffer buf) {
+        int count = slotCount(buf);
+        for (int i = 0; i < count; i++)
+        {
+            if (slotOffset(buf, i) == 0) return i;
+        }
+        return count;
+    }
+
+    /**
+     * @return 元组 t 编码后的字节数
+     */
+    static int recordSize(TupleDesc td, Tuple t) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+        {
+            Type type = td.getFieldType(i);
+            size += type == Type.STRING_TYPE ? 2 + stringLength((StringField) t.getField(i)) : type.getLen();
+        }
+        return size;
+    }
+
+    /**
+     * @return 元组描述为 td 的最短记录的字节数 (所有字符串为空)
+     */
+    static int minRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+        {
+            Type type = td.getFieldType(i);
+            size += type == Type.STRING_TYPE ? 2 : type.getLen();
+        }
+        return size;
+    }
+
+    /**
+     * @return 一个空页最多能放的记录字节数 (加上一个槽)
+     */
+    static int capacity() {
+        return BufferPool.getPageSize() - HEADER_SIZE - SLOT_SIZE;
+    }
+
+    /**
+     * 只看页面开头的 {@link #HEADER_SIZE} 个字节判断能否再放下一条最短的记录, 不需要构造页面
+     */
+    static boolean hasRoom(ByteBuffer header, TupleDesc td) {
+        return freeBytes(header) >= minRecordSize(td) + SLOT_SIZE;
+    }
+
+    private static int stringLength(StringField f) {
+        return Math.min(Type.STRING_LEN, f.getValue().length());
+    }
+
+    private byte[] encode(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) throw new DbException("tuple desc is mismatch");
+        var baos = new ByteArrayOutputStream(recordSize(td, t));
+        var dos = new DataOutputStream(baos);
+        try
+        {
+            for (int i = 0; i < td.numFields(); i++)
+            {
+                if (td.getFieldType(i) == Type.STRING_TYPE)
+                {
+                    var f = (StringField) t.getField(i);
+                    int len = stringLength(f);
+                    dos.writeShort(len);
+                    dos.writeBytes(f.getValue().substring(0, len));
+                }
+                else t.getField(i).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e)
+        {
+            throw new DbException("can't serialize tuple: " + e.getMessage());
+        }
+        return baos.toByteArray();
+    }
+
+    private Tuple decode(ByteBuffer buf, int slot) {
+        var t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        int off = slotOffset(buf, slot);
+        for (int i = 0; i < td.numFields(); i++)
+        {
+            Type type = td.getFieldType(i);
+            if (type == Type.STRING_TYPE)
+            {
+                int len = Math.min(Type.STRING_LEN, buf.getShort(off) & 0xffff);
+                byte[] bs = new byte[len];
+                buf.get(off + 2, bs);
+                t.setField(i, new StringField(new String(bs), Type.STRING_LEN));
+                off += 2 + len;
+            }
+            else
+            {
+                t.setField(i, type.parse(buf, off));
+                off += type.getLen();
+            }
+        }
+        return t;
+    }
+
+    /**
+     * 读一个槽, 槽为空时返回 null
+     */
+    private Tuple readTuple(int slot) {
+        return read(buf -> slot < slotCount(buf) && slotOffset(buf, slot) != 0 ? decode(buf, slot) : null);
+    }
+
+    /**
+     * 放入一条编码好的记录, 放不下时返回 false
+     */
+    private boolean insert(byte[] record, Tuple t) {
+        int count = slotCount(data);
+        int slot = freeSlot(data);
+        int slots = slot == count ? count + 1 : count;
+        if (freeBytes(data) < record.length + (slots - count) * SLOT_SIZE) return false;
+        if (recordStart(data) - record.length < HEADER_SIZE + slots * SLOT_SIZE) compact();
+        int off = recordStart(data) - record.length;
+        data.put(off, record);
+        setRecordStart(off);
+        setSlot(slot, off, record.length);
+        data.putShort(0, (short) slots);
+        t.setRecordId(new RecordId(pid, slot));
+        return true;
+    }
+
+    @Override
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!insert(encode(t), t)) throw new DbException("Page is full");
+    }
+
+    @Override
+    public synchronized int insertTuples(List<Tuple> tuples, int from) throws DbException {
+        int n = from;
+        while (n < tuples.size() && insert(encode(tuples.get(n)), tuples.get(n)))
+        {
+            n++;
+        }
+        return n - from;
+    }
+
+    @Override
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td) || t.getRecordId() == null || !t.getRecordId().getPageId().equals(pid))
+            throw new DbException("tuple not on this page");
+        int slot = t.getRecordId().getTupleNumber();
+        if (slot < 0 || slot >= slotCount(data) || slotOffset(data, slot) == 0)
+            throw new DbException("tuple slot is already empty");
+        int off = slotOffset(data, slot), len = slotLength(data, slot);
+        data.put(off, new byte[len]);
+        // 在记录区开头的记录直接还给空闲区, 其他的等整理
+        if (off == recordStart(data)) setRecordStart(off + len);
+        else data.putShort(4, (short) (garbage(data) + len));
+        setSlot(slot, 0, 0);
+        int count = slotCount(data);
+        while (count > 0 && slotOffset(data, count - 1) == 0)
+        {
+            count--;
+        }
+        data.putShort(0, (short) count);
+    }
+
+    /**
+     * 把所有记录按原来的顺序紧挨着移到页尾, 清零空闲区, garbage 归零. 槽号不变.
+     */
+    synchronized void compact() {
+        byte[] copy = getPageData();
+        var old = ByteBuffer.wrap(copy);
+        int count = slotCount(old);
+        int[] live = IntStream.range(0, count)
+                .filter(s -> slotOffset(old, s) != 0)
+                .boxed()
+                .sorted((a, b) -> slotOffset(old, b) - slotOffset(old, a))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        int end = BufferPool.getPageSize();
+        for (int slot : live)
+        {
+            int len = slotLength(old, slot);
+            end -= len;
+            data.put(end, copy, slotOffset(old, slot), len);
+            setSlot(slot, end, len);
+        }
+        int dirEnd = HEADER_SIZE + count * SLOT_SIZE;
+        data.put(dirEnd, new byte[end - dirEnd]);
+        setRecordStart(end);
+        data.putShort(4, (short) 0);
+    }
+
+    @Override
+    public boolean hasRoom() {
+        return read(buf -> {
+            int newSlot = freeSlot(buf) == slotCount(buf) ? SLOT_SIZE : 0;
+            return freeBytes(buf) >= minRecordSize(td) + newSlot;
+        });
+    }
+
+    /**
+     * @return 可以用来放记录和新槽的字节数, 包括还没有整理的已删除记录
+     */
+    public int getFreeSpace() {
+        return read(SlottedHeapPage::freeBytes);
+    }
+
+    /**
+     * @return 槽目录的项数, 包括中间的空槽
+     */
+    public int getNumSlots() {
+        return read(SlottedHeapPage::slotCount);
+    }
+
+    public boolean isSlotUsed(int slot) {
+        return read(buf -> slot < slotCount(buf) && slotOffset(buf, slot) != 0);
+    }
+
+    @Override
+    public Iterator<Tuple> iterator() {
+        return new Iterator<>() {
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                for (int i = index, n = getNumSlots(); i < n; i++)
+                {
+                    if (isSlotUsed(i))
+                    {
+                        index = i;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Tuple next() {
+                // 判断和读取之间槽可能被清空, 读到 null 就继续找下一个
+                while (hasNext())
+                {
+                    Tuple t = readTuple(index++);
+                    if (t != null) return t;
+                }
+                return null;
+            }
+        };
+    }
+}
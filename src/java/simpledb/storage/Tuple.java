@@ -3,6 +3,7 @@ package simpledb.storage;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -15,7 +16,9 @@ public class Tuple implements Serializable {
     private static final long serialVersionUID = 1L;
     private TupleDesc td;
     private RecordId rid;
-    private ArrayList<Field> fields;
+    private final int numFields;
+    // 第一次 setField 时才分配, TupleView 只在字段被访问时才需要它
+    private Field[] fields;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -26,11 +29,7 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         // some code goes here
         this.td = td;
-        this.fields = new ArrayList<>(td.numFields());
-        for (int i = 0; i < td.numFields(); i++)
-        {
-            fields.add(null);
-        }
+        this.numFields = td.numFields();
     }
 
     /**
@@ -68,7 +67,12 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        fields.set(i, f);
+        if (fields == null)
+        {
+            Objects.checkIndex(i, numFields);
+            fields = new Field[numFields];
+        }
+        fields[i] = f;
     }
 
     /**
@@ -77,7 +81,8 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields.get(i);
+        Objects.checkIndex(i, numFields);
+        return fields == null ? null : fields[i];
     }
 
     /**
@@ -91,10 +96,10 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
         StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < fields.size(); i++)
+        for (int i = 0; i < numFields; i++)
         {
 //            sb.append(i).append(" ").append(fields.get(i).toString());
-            sb.append(fields.get(i).toString()).append(" ");
+            sb.append(getField(i).toString()).append(" ");
         }
         return sb.toString();
     }
@@ -104,7 +109,34 @@ public class Tuple implements Serializable {
      */
     public Iterator<Field> fields() {
         // some code goes here
-        return fields.iterator();
+        return values().iterator();
+    }
+
+    /**
+     * 所有字段的值, 都经过 {@link #getField}, 子类可以在这里才解码字段
+     */
+    private List<Field> values() {
+        var values = new ArrayList<Field>(numFields);
+        for (int i = 0; i < numFields; i++)
+        {
+            values.add(getField(i));
+        }
+        return values;
+    }
+
+    /**
+     * @param td      {@link TupleDesc#project} 的结果
+     * @param columns 要保留的字段下标
+     * @return 只包含这些字段的新元组, RecordId 不变. 只读取这些字段, 其余字段不会被解码
+     */
+    public Tuple project(TupleDesc td, int[] columns) {
+        var t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+        {
+            t.setField(i, getField(columns[i]));
+        }
+        t.setRecordId(rid);
+        return t;
     }
 
     /**
@@ -120,11 +152,11 @@ public class Tuple implements Serializable {
         if (this == o) return true;
         if (!(o instanceof Tuple)) return false;
         Tuple tuple = (Tuple) o;
-        return td.equals(tuple.td) && Objects.equals(fields, tuple.fields);
+        return td.equals(tuple.td) && Objects.equals(values(), tuple.values());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(td, fields);
+        return Objects.hash(td, values());
     }
 }
@@ -14,6 +14,8 @@ import java.util.Objects;
 public class TupleDesc implements Serializable {
 
     private ArrayList<TDItem> list = new ArrayList<TDItem>();
+    // 各字段在序列化元组中的偏移, 第一次用到时计算
+    private transient volatile int[] offsets;
 
     public TupleDesc(ArrayList<Type> types, ArrayList<String> names) {
         this(types.toArray(new Type[0]), names.toArray(new String[0]));
@@ -176,6 +178,25 @@ public class TupleDesc implements Serializable {
         throw new NoSuchElementException();
     }
 
+    /**
+     * @return the byte offset of the ith field within a serialized tuple
+     *         of this TupleDesc.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i < 0 || i >= list.size()) throw new NoSuchElementException();
+        int[] offs = offsets;
+        if (offs == null)
+        {
+            offs = new int[list.size()];
+            for (int j = 1; j < offs.length; j++)
+            {
+                offs[j] = offs[j - 1] + list.get(j - 1).fieldType.getLen();
+            }
+            offsets = offs;
+        }
+        return offs[i];
+    }
+
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
      * Note that tuples from a given TupleDesc are of a fixed size.
@@ -220,6 +241,21 @@ public class TupleDesc implements Serializable {
         return new TupleDesc(typeAr.toArray(Type[]::new), fieldAr.toArray(String[]::new));
     }
 
+    /**
+     * @param columns 字段下标, 按输出的顺序
+     * @return 只包含这些字段的 TupleDesc
+     */
+    public TupleDesc project(int[] columns) {
+        var typeAr = new Type[columns.length];
+        var fieldAr = new String[columns.length];
+        for (int i = 0; i < columns.length; i++)
+        {
+            typeAr[i] = getFieldType(columns[i]);
+            fieldAr[i] = getFieldName(columns[i]);
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+
     /**
      * Compares the specified object with this TupleDesc for equality. Two
      * TupleDescs are considered equal if they have the same number of items
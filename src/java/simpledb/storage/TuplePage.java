@@ -0,0 +1,94 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate;
+import simpledb.transaction.TransactionId;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * HeapFile 的数据页: 定长槽位的 {@link HeapPage}, 变长记录的 {@link SlottedHeapPage} 和按列存放的
+ * {@link PaxHeapPage} 都实现它, HeapFile 的插入, 删除和扫描只通过这些方法访问页面.
+ *
+ * @see HeapFile.Layout
+ */
+public interface TuplePage extends Page {
+    @Override
+    HeapPageId getId();
+
+    /**
+     * 插入一个元组, 并设置它的 RecordId
+     *
+     * @throws DbException 页面放不下或元组描述不一致
+     */
+    void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * 按顺序插入 tuples.get(from), tuples.get(from + 1), ..., 直到页面放不下下一个或者列表用完
+     *
+     * @return 插入的个数
+     */
+    int insertTuples(List<Tuple> tuples, int from) throws DbException;
+
+    /**
+     * @throws DbException 元组不在这个页面上
+     */
+    void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * 事务 tid 按行插入, 见 {@link #insertTuples(List, int)}. 第一次修改前保存 before image, 并记下插入的槽属于 tid,
+     * 提交和回滚时按行处理, 见 {@link AbstractTuplePage}
+     *
+     * @return 插入的个数
+     */
+    int insertTuples(TransactionId tid, List<Tuple> tuples, int from) throws DbException;
+
+    /**
+     * 事务 tid 按行删除, 见 {@link #insertTuples(TransactionId, List, int)}
+     *
+     * @throws DbException 元组不在这个页面上
+     */
+    void deleteTuple(TransactionId tid, Tuple t) throws DbException;
+
+    /**
+     * @return 能否再放下一个元组; 变长记录按最短的记录算, 只作为空闲空间表的提示
+     */
+    boolean hasRoom();
+
+    /**
+     * @return 页面上所有元组的迭代器, 不支持 remove
+     */
+    Iterator<Tuple> iterator();
+
+    /**
+     * 只读取部分字段的迭代器. 默认先读出整个元组再投影; 按列存放的页面只读需要的列.
+     * 返回的元组只用于读取, 它们的 TupleDesc 和表不同, 不能用来删除.
+     *
+     * @param columns   字段下标, 按输出的顺序
+     * @param projected td.project(columns), 由调用者算好, 每页不再重新构造
+     */
+    default Iterator<Tuple> iterator(int[] columns, TupleDesc projected) {
+        var it = iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Tuple next() {
+                var t = it.next();
+                return t == null ? null : t.project(projected, columns);
+            }
+        };
+    }
+
+    /**
+     * 页面上是否可能有元组的第 column 个字段满足 op operand. 返回 false 时扫描可以跳过整页;
+     * 默认没有统计信息, 总是返回 true
+     */
+    default boolean mayMatch(int column, Predicate.Op op, Field operand) {
+        return true;
+    }
+}
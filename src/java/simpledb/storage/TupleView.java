@@ -0,0 +1,76 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按需解码的元组: 保存定长记录的原始字节, 字段第一次被 {@link #getField} 访问时才解码成 Field 并缓存.
+ * <p>
+ * 字节是从页面拷出来的私有副本 (td.getSize() 字节), 之后页面被修改, 淘汰或者页帧被复用都不影响它.
+ * 谓词和连接条件可以用 {@link #compare} 和 {@link #getInt} 直接在字节上比较, 不创建 Field.
+ * 用 {@link #setField} 设置过的字段以设置的值为准.
+ *
+ * @see HeapPage#iterator()
+ */
+public class TupleView extends Tuple {
+    private static final long serialVersionUID = 1L;
+
+    // 解码用的元组描述; resetTupleDesc 只改名字, 不影响字段类型和偏移
+    private final TupleDesc layout;
+    private final byte[] record;
+
+    /**
+     * @param record 一条按 td 序列化的记录, 直接使用, 不拷贝
+     */
+    public TupleView(TupleDesc td, byte[] record, RecordId rid) {
+        super(td);
+        this.layout = td;
+        this.record = record;
+        setRecordId(rid);
+    }
+
+    @Override
+    public Field getField(int i) {
+        Field f = super.getField(i);
+        if (f == null)
+        {
+            f = layout.getFieldType(i).parse(ByteBuffer.wrap(record), layout.getFieldOffset(i));
+            super.setField(i, f);
+        }
+        return f;
+    }
+
+    /**
+     * @return 第 i 个字段在 {@link #getRecord()} 中的偏移
+     */
+    public int getFieldOffset(int i) {
+        return layout.getFieldOffset(i);
+    }
+
+    /**
+     * @return 只读的记录字节
+     */
+    public ByteBuffer getRecord() {
+        return ByteBuffer.wrap(record).asReadOnlyBuffer();
+    }
+
+    /**
+     * 不解码直接读 INT 字段
+     */
+    public int getInt(int i) {
+        if (layout.getFieldType(i) != Type.INT_TYPE) throw new IllegalArgumentException("field " + i + " is not an int");
+        Field f = super.getField(i);
+        return f != null ? ((IntField) f).getValue() : ByteBuffer.wrap(record).getInt(layout.getFieldOffset(i));
+    }
+
+    /**
+     * 和 getField(i).compare(op, operand) 结果相同, 但尽量直接比较字节
+     */
+    public boolean compare(int i, Predicate.Op op, Field operand) {
+        Field f = super.getField(i);
+        if (f != null) return f.compare(op, operand);
+        return layout.getFieldType(i).compare(ByteBuffer.wrap(record), layout.getFieldOffset(i), op, operand);
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * 2Q 置换策略 (Johnson &amp; Shasha), 主队列用 CLOCK 近似 LRU, 命中路径不加锁.
+ * <ul>
+ * <li> A1in: 第一次装入的页面, FIFO, 容量约为缓冲池的 1/4
+ * <li> A1out: 从 A1in 淘汰的页面号(不含数据), 容量约为缓冲池的 1/2
+ * <li> Am: 在 A1out 中再次被访问的页面, CLOCK
+ * </ul>
+ * 顺序扫描的页面只会经过 A1in, 不会冲掉 Am 中的 B+ 树内部节点等热点页面.
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+    private final ClockReplacementPolicy a1in = new ClockReplacementPolicy();
+    private final ClockReplacementPolicy am = new ClockReplacementPolicy();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final int kin;
+    private final int kout;
+
+    public TwoQueueReplacementPolicy(int numPages) {
+        this.kin = Math.max(1, numPages / 4);
+        this.kout = Math.max(1, numPages / 2);
+    }
+
+    @Override
+    public Entry admit(PageId pid) {
+        boolean hot = a1out.remove(pid);
+        // A1in 中的页面从不 touch, 访问位始终为 0, CLOCK 退化为 FIFO
+        var inner = hot ? am.admit(pid) : a1in.admit(pid);
+        return new TwoQueueEntry(pid, inner, hot);
+    }
+
+    @Override
+    public void touch(Entry entry) {
+        var e = (TwoQueueEntry) entry;
+        if (e.hot) am.touch(e.inner);
+    }
+
+    @Override
+    public void remove(Entry entry) {
+        var e = (TwoQueueEntry) entry;
+        if (e.hot) am.remove(e.inner);
+        else
+        {
+            a1in.remove(e.inner);
+            a1out.add(e.pid);
+            if (a1out.size() > kout)
+            {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public PageId victim(Predicate<PageId> evictable) {
+        PageId pid = null;
+        if (a1in.size() > kin || am.size() == 0) pid = a1in.victim(evictable);
+        if (pid == null) pid = am.victim(evictable);
+        if (pid == null) pid = a1in.victim(evictable);
+        return pid;
+    }
+
+    private static class TwoQueueEntry extends Entry {
+        final Entry inner;
+        final boolean hot;
+
+        TwoQueueEntry(PageId pid, Entry inner, boolean hot) {
+            super(pid);
+            this.inner = inner;
+            this.hot = hot;
+        }
+    }
+}
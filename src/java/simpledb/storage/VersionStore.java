@@ -0,0 +1,215 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 页面的已提交版本, 给只读的快照事务用.
+ * <p>
+ * 每次提交分配一个递增的时间戳, 快照事务开始时取当前的时间戳, 读页面时读时间戳不超过它的最新已提交版本,
+ * 不加锁, 也不会被写事务挡住. 页面的 before image 就是最新的已提交版本; 有快照在运行时,
+ * 提交覆盖 before image 之前先把旧的挂到这个页的版本链上. 快照结束时回收不会再被读到的版本.
+ * <p>
+ * 提交 (分配时间戳并发布版本) 和快照开始互斥, 快照开始时取到的时间戳之前的提交都已经完整发布.
+ * 没有快照时提交不保存旧版本.
+ */
+class VersionStore {
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private final AtomicLong clock = new AtomicLong();
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PageId, Chain> chains = new ConcurrentHashMap<>();
+
+    /**
+     * 页面加载器, 读不在版本链上的页面时从缓冲池取当前页面
+     */
+    interface Loader {
+        Page load(PageId pid) throws DbException;
+    }
+
+    void begin(TransactionId tid) {
+        commitLock.writeLock().lock();
+        try
+        {
+            snapshots.put(tid, clock.get());
+        } finally
+        {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    boolean isSnapshot(TransactionId tid) {
+        return !snapshots.isEmpty() && snapshots.containsKey(tid);
+    }
+
+    void end(TransactionId tid) {
+        if (snapshots.remove(tid) != null) prune();
+    }
+
+    /**
+     * 发布新的 before image, 见 {@link Page#commit}
+     */
+    interface Publisher {
+        /**
+         * @return 提交写的更新日志的序号
+         */
+        long publish(Page p) throws IOException;
+    }
+
+    /**
+     * 发布一次提交: 为每个页面调用 publish, 有快照在运行时先保存旧的 before image
+     *
+     * @return 每个页面的更新日志的序号
+     */
+    long[] commit(List<Page> dirty, Publisher publish) throws IOException {
+        commitLock.readLock().lock();
+        try
+        {
+            long ts = clock.incrementAndGet();
+            boolean keep = !snapshots.isEmpty();
+            var seqs = new long[dirty.size()];
+            for (int i = 0; i < seqs.length; i++)
+            {
+                var p = dirty.get(i);
+                if (!keep)
+                {
+                    chains.remove(p.getId());
+                    seqs[i] = publish.publish(p);
+                    continue;
+                }
+                while (true)
+                {
+                    var chain = chains.computeIfAbsent(p.getId(), k -> new Chain());
+                    synchronized (chain)
+                    {
+                        if (chain.removed) continue;
+                        seqs[i] = chain.commit(p, ts, publish);
+                    }
+                    break;
+                }
+            }
+            return seqs;
+        } finally
+        {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return 快照 tid 能看到的页面版本; 返回的页面只能读
+     */
+    Page read(TransactionId tid, PageId pid, Loader loader) throws DbException {
+        long snapshot = snapshots.get(tid);
+        while (true)
+        {
+            var chain = chains.computeIfAbsent(pid, k -> new Chain());
+            synchronized (chain)
+            {
+                // 刚被回收, 重新取
+                if (chain.removed) continue;
+                return chain.read(snapshot, pid, loader);
+            }
+        }
+    }
+
+    /**
+     * @return 版本链上保存的旧版本数
+     */
+    int numVersions() {
+        int n = 0;
+        for (var chain : chains.values())
+        {
+            synchronized (chain)
+            {
+                for (var v = chain.older; v != null; v = v.older) n++;
+            }
+        }
+        return n;
+    }
+
+    // 去掉所有快照都不会再读到的版本
+    private void prune() {
+        long oldest = Long.MAX_VALUE;
+        for (long s : snapshots.values()) oldest = Math.min(oldest, s);
+        for (var it = chains.values().iterator(); it.hasNext(); )
+        {
+            var chain = it.next();
+            synchronized (chain)
+            {
+                // 最新版本对所有快照都可见: 以后再提交时, 旧版本的时间戳可以当作 0
+                if (chain.newestTs <= oldest)
+                {
+                    chain.removed = true;
+                    it.remove();
+                    continue;
+                }
+                for (var v = chain.older; v != null; v = v.older)
+                {
+                    if (v.ts <= oldest)
+                    {
+                        v.older = null;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Version {
+        final long ts;
+        final Page page;
+        Version older;
+
+        Version(long ts, Page page, Version older) {
+            this.ts = ts;
+            this.page = page;
+            this.older = older;
+        }
+    }
+
+    /**
+     * 一个页面的版本链, 由自身的监视器保护
+     */
+    private static final class Chain {
+        // 最新已提交版本的时间戳, 0 表示对所有快照都可见
+        long newestTs;
+        // 最新已提交版本的副本, 第一次被快照读到时才生成
+        Page newest;
+        // 更旧的版本, 时间戳从新到旧
+        Version older;
+        boolean removed;
+
+        long commit(Page p, long ts, Publisher publish) throws IOException {
+            var image = newest != null ? newest : p.getBeforeImage();
+            long seq = publish.publish(p);
+            older = new Version(newestTs, image, older);
+            newestTs = ts;
+            newest = null;
+            return seq;
+        }
+
+        Page read(long snapshot, PageId pid, Loader loader) throws DbException {
+            if (newestTs <= snapshot)
+            {
+                // 在监视器里取 before image, 不会和提交交错
+                if (newest == null)
+                {
+                    var page = loader.load(pid);
+                    if (page == null) return null;
+                    newest = page.getBeforeImage();
+                }
+                return newest;
+            }
+            for (var v = older; v != null; v = v.older)
+            {
+                if (v.ts <= snapshot) return v.page;
+            }
+            throw new IllegalStateException("no version of " + pid + " visible at " + snapshot);
+        }
+    }
+}
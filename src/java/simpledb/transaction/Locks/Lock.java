@@ -1,13 +0,0 @@
-package simpledb.transaction.Locks;
-
-import simpledb.transaction.TransactionAbortedException;
-import simpledb.transaction.TransactionId;
-
-public interface Lock {
-    void lock(TransactionId tid) throws TransactionAbortedException;
-
-    boolean tryLock(TransactionId tid) throws TransactionAbortedException;
-
-    void unlock(TransactionId tid);
-
-}
\ No newline at end of file
@@ -2,408 +2,562 @@ package simpledb.transaction.Locks;
 
 import simpledb.common.Permissions;
 import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import simpledb.utils.LogPrint;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * 锁管理器,基于PageID
+ * 锁管理器, 多粒度锁: 表, 页和元组上的锁 ({@link LockMode}).
+ * <p>
+ * 读页面先在表上加 IS 再在页上加 S, 已经持有表上的 S/SIX/X 时不再加页锁, 扫描整张表只需要一个表锁;
+ * 整页写先在表上加 IX 再在页上加 X. 元组锁 ({@link RecordId} 上的 S/X) 要先在页和表上加对应的意向锁,
+ * 持有页上的 IX 的多个事务可以同时修改同一页的不同行, 各自提交和按行回滚见 {@link simpledb.storage.AbstractTuplePage}.
+ * 页上的锁 (包括 IX) 是提交和回滚时找脏页的依据.
+ * <p>
+ * 锁表按键的哈希分成 {@link #PARTITIONS} 个分区, 每个分区一个监视器, 不同分区上的加锁放锁互不阻塞.
+ * 每个锁 ({@link LockHead}) 有一个持有者链表和一个 FIFO 等待队列: 新请求只有在队列为空并且和持有者相容时
+ * 直接授予, 否则排到队尾; 释放时从队头开始按顺序授予, 写锁不会被后来的读锁饿死. 升级请求排在队头.
+ * <p>
+ * 每个事务有一张 键 -> 请求 的表, 重复申请已经持有的锁只查这张表, 不进分区. 请求和锁对象在分区内回收复用,
+ * 表是开放寻址的 {@link OpenHashMap}, 不用等待时授予和释放锁都不分配对象.
+ * 需要等待时在 {@link WaitForGraph} 中登记持有者和排在前面的请求者, 由等待图检测死锁.
  */
 public class LockManager {
+    // 分区数, 必须是 2 的幂
+    static final int PARTITIONS = 64;
+    // 等待者定期醒来, 检查自己是否被等待图选为牺牲者
+    private static final long DETECT_MILLIS = 10L;
+    // 每个分区最多缓存的空闲对象数
+    private static final int MAX_FREE = 256;
+
+    private final Partition[] partitions = new Partition[PARTITIONS];
+    private final ConcurrentHashMap<TransactionId, TxnLocks> txns = new ConcurrentHashMap<>();
+    private final WaitForGraph waitForGraph = new WaitForGraph();
+
+    public LockManager() {
+        for (int i = 0; i < PARTITIONS; i++) partitions[i] = new Partition();
+    }
 
+    /**
+     * @return 等待图检测到的死锁数
+     */
+    public long getNumDeadlocks() {
+        return waitForGraph.getNumDeadlocks();
+    }
 
-    private final Map<PageId, Data> dataLockMap = Collections.synchronizedMap(new HashMap<>());
-    public final Map<TransactionId, Set<PageId>> tidLockMap = Collections.synchronizedMap(new HashMap<>());
+    public void getReadLock(PageId pid, TransactionId tid) throws TransactionAbortedException {
+        var table = whichTableLock(pid.getTableId(), tid);
+        if (table != null && table.covers(LockMode.S)) return;
+        getTableLock(pid.getTableId(), tid, LockMode.S.intention());
+        acquire(pid, tid, LockMode.S);
+    }
 
-    private Data getData(PageId pid) {
-        if (pid == null) return null;
-        if (dataLockMap.containsKey(pid)) return dataLockMap.get(pid);
-        else
-        {
-            synchronized (dataLockMap)
-            {
-                if (!dataLockMap.containsKey(pid))
-                {
-                    var data = new Data(pid);
-                    dataLockMap.put(pid, data);
-                    return data;
-                }
-                else return dataLockMap.get(pid);
-            }
-        }
+    public void getWriteLock(PageId pid, TransactionId tid) throws TransactionAbortedException {
+        getTableLock(pid.getTableId(), tid, LockMode.X.intention());
+        acquire(pid, tid, LockMode.X);
     }
 
-    private List<LockStatus> getLockStatus(PageId pid) {
-        return getData(pid).getLists();
+    /**
+     * 按行修改页面之前: 在表和页上加 mode 的意向锁, 之后再用 {@link #getTupleLock} 锁要修改的行
+     */
+    public void getPageIntentionLock(PageId pid, TransactionId tid, LockMode mode) throws TransactionAbortedException {
+        getTableLock(pid.getTableId(), tid, mode.intention());
+        acquire(pid, tid, mode.intention());
     }
 
-    public void getWriteLock(PageId pid, TransactionId tid) throws TransactionAbortedException {
-        var data = getData(pid);
-        var lockStatus = getLockStatus(pid);
-        LockStatus temp = null;
-        boolean has = false;
-        synchronized (tidLockMap)
-        {
-            if (!tidLockMap.containsKey(tid))
-            {
-                var newList = Collections.synchronizedSet(new HashSet<PageId>());
-                newList.add(pid);
-                tidLockMap.put(tid, newList);
-            }
-            else
-            {
-                var oldList = tidLockMap.get(tid);
-                oldList.add(pid);
-                //                tidLockMap.put(tid, oldList);
-            }
-        }
-        synchronized (lockStatus)//锁链遍历查找
-        {
-            for (LockStatus ls : lockStatus)
-            {
-                synchronized (ls)
-                {
-                    if (ls.tid.equals(tid))
-                    {
-                        temp = ls;
-                        has = true;
-                        break;
-                    }
-                }
-            }
-        }
+    /**
+     * 在元组上加 S/X. 页上已经持有覆盖它的锁时不再加, 否则先加页和表上的意向锁
+     */
+    public void getTupleLock(RecordId rid, TransactionId tid, LockMode mode) throws TransactionAbortedException {
+        var page = modeOf(rid.getPageId(), tid);
+        if (page != null && page.covers(mode)) return;
+        getPageIntentionLock(rid.getPageId(), tid, mode);
+        acquire(rid, tid, mode);
+    }
 
-        if (has)
-        {
-            synchronized (temp)
-            {
-                if (temp.isReadLock)
-                {
-                    TryLock(data, tid, temp, "[" + "pn=" + pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":已有读锁,申请写锁:", true);
-                    BlockLock(data, tid, temp, "[" + "pn=" + pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":已有读锁,阻塞申请写锁:", true);
-                }
-                else return;//            else System.out.println("已有写锁,申请写锁");
-            }
-        }
-        else
-        {
-            temp = NewLock(data, tid, temp, "[" + "pn=" + pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":未持有锁,申请写锁:", true);
-            BlockLock(data, tid, temp, "[" + "pn=" + pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":未持有锁,阻塞申请写锁:", true);
-        }
+    public void getTableLock(int tableId, TransactionId tid, LockMode mode) throws TransactionAbortedException {
+        var table = whichTableLock(tableId, tid);
+        if (table != null && table.covers(mode)) return;
+        acquire(new TableKey(tableId), tid, mode);
+    }
+
+    /**
+     * 放掉页上的锁
+     */
+    public void releaseReadWriteLock(PageId pid, TransactionId tid) {
+        release(pid, tid);
+    }
 
-        synchronized (lockStatus)
+    /**
+     * 放掉事务还持有的所有锁, 包括表锁
+     */
+    public void releaseAll(TransactionId tid) {
+        var txn = txns.get(tid);
+        if (txn == null) return;
+        var reqs = new ArrayList<Request>();
+        synchronized (txn)
         {
-            if (has) lockStatus.set(lockStatus.indexOf(temp), temp);
-            else lockStatus.add(temp);
+            txn.grants.forEach((key, req) -> reqs.add(req));
+            txn.grants.clear();
+            txn.retireIfIdle(tid);
         }
+        for (var req : reqs) unlock(req);
     }
 
+    public boolean hasLock(PageId pid, TransactionId tid) {
+        return whichLock(pid, tid) != null;
+    }
 
-    public void getReadLock(PageId pid, TransactionId tid) throws TransactionAbortedException {
-        var data = getData(pid);
-        var lockStatus = getLockStatus(pid);
-        LockStatus temp = null;
-        boolean has = false;
-        synchronized (tidLockMap)
+    /**
+     * @return 页上的 S/SIX/X 对应的权限, 没有锁或者只有 IS/IX 时返回 null
+     */
+    public Permissions whichLock(PageId pid, TransactionId tid) {
+        var mode = modeOf(pid, tid);
+        if (mode == LockMode.X) return Permissions.READ_WRITE;
+        if (mode == LockMode.S || mode == LockMode.SIX) return Permissions.READ_ONLY;
+        return null;
+    }
+
+    /**
+     * @return 事务在页上持有的锁, 包括意向锁
+     */
+    public LockMode whichPageLock(PageId pid, TransactionId tid) {
+        return modeOf(pid, tid);
+    }
+
+    public boolean holdsTupleLock(RecordId rid, TransactionId tid, LockMode mode) {
+        var held = modeOf(rid, tid);
+        return held != null && held.covers(mode);
+    }
+
+    public LockMode whichTableLock(int tableId, TransactionId tid) {
+        var txn = txns.get(tid);
+        if (txn == null) return null;
+        synchronized (txn)
         {
-            if (!tidLockMap.containsKey(tid))
-            {
-                var newList = Collections.synchronizedSet(new HashSet<PageId>());
-                newList.add(pid);
-                tidLockMap.put(tid, newList);
-            }
-            else
-            {
-                var oldList = tidLockMap.get(tid);
-                synchronized (oldList)
-                {
-                    oldList.add(pid);
-                }
-                //                tidLockMap.put(tid, oldList);
-            }
+            // 用事务自己的探测键查, 不分配对象
+            txn.probe.tableId = tableId;
+            var req = txn.grants.get(txn.probe);
+            return req == null ? null : req.mode;
         }
-        synchronized (lockStatus)//锁链遍历查找
+    }
+
+    /**
+     * @return 事务在其上持有锁 (包括意向锁) 的页
+     */
+    public List<PageId> getPagesByTid(TransactionId tid) {
+        var pages = new ArrayList<PageId>();
+        var txn = txns.get(tid);
+        if (txn != null)
         {
-            for (LockStatus ls : lockStatus)
+            synchronized (txn)
             {
-                synchronized (ls)
-                {
-                    if (ls.tid.equals(tid))
-                    {
-                        temp = ls;
-                        has = true;
-                        break;
-                    }
-                }
+                txn.grants.forEach((key, req) -> {
+                    if (key instanceof PageId) pages.add((PageId) key);
+                });
             }
         }
-        if (!has)
+        return pages;
+    }
+
+    private Partition partition(Object key) {
+        int h = key.hashCode();
+        return partitions[(h ^ (h >>> 16)) & (PARTITIONS - 1)];
+    }
+
+    private LockMode modeOf(Object key, TransactionId tid) {
+        var txn = txns.get(tid);
+        if (txn == null) return null;
+        synchronized (txn)
         {
-            temp = NewLock(data, tid, temp, "[" + "pn=" + pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":未持有锁,申请读锁:", false);
-            BlockLock(data, tid, temp, "[" + "pn=" + pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":未持有锁,阻塞申请读锁:", false);
+            // 请求对象放锁后会被回收, 只能在事务的监视器里读
+            var req = txn.grants.get(key);
+            return req == null ? null : req.mode;
         }
-        else
-            //            if (temp.isWriteLock) //"已有写锁,申请读锁,测试要求不实现"
-            // else          System.out.println("已有读锁,申请读锁");
-            return;
-        synchronized (lockStatus)
+    }
+
+    private void release(Object key, TransactionId tid) {
+        var txn = txns.get(tid);
+        if (txn == null) return;
+        Request req;
+        synchronized (txn)
         {
-            if (has) lockStatus.set(lockStatus.indexOf(temp), temp);
-            else lockStatus.add(temp);
+            req = txn.grants.remove(key);
+            txn.retireIfIdle(tid);
         }
-
+        if (req != null) unlock(req);
     }
 
-
-    public void releaseReadWriteLock(PageId pid, TransactionId tid) {
-
-        var lockStatus = getLockStatus(pid);
-        synchronized (lockStatus)
+    private void unlock(Request req) {
+        var part = partition(req.key);
+        synchronized (part)
         {
-            for (LockStatus ls : lockStatus)
-            {
-                synchronized (ls)
-                {
-                    if (tid.equals(ls.tid))
-                    {
-                        //                        if (ls.gettedLock)
-                        {
-                            //                            ls.lock.unlock(tid);
-                            ls.d.unlock(tid);
-                            //?
-                            LogPrint.print("[" + "pn=" + pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + ":释放" + (ls.gettedLock && ls.isReadLock ? "读锁" : ls.gettedLock && ls.isWriteLock ? "写锁" : "未知锁"));
-                        }
-                        lockStatus.remove(ls);
-
-                        synchronized (tidLockMap.get(tid))
-                        {
-                            tidLockMap.get(tid).remove(pid);
-                        }
-                        break;
-                    }
-                }
-            }
+            var head = part.heads.get(req.key);
+            head.release(req);
+            part.freeRequest(req);
+            head.grantWaiters();
+            part.releaseIfIdle(head);
         }
     }
 
-    public boolean hasLock(PageId pid, TransactionId tid) {
-        var lockStatus = getLockStatus(pid);
-        synchronized (lockStatus)
+    private void acquire(Object key, TransactionId tid, LockMode mode) throws TransactionAbortedException {
+        TxnLocks txn;
+        Request held;
+        while (true)
         {
-            for (LockStatus ls : lockStatus)
+            txn = txns.computeIfAbsent(tid, t -> new TxnLocks());
+            synchronized (txn)
             {
-                synchronized (ls)
-                {
-                    if (tid.equals(ls.tid))
-                    {
-                        if (ls.gettedLock) return true;
-                        break;
-                    }
-                }
+                // 刚被释放线程从表里摘掉, 重新取一个
+                if (txn.retired) continue;
+                held = txn.grants.get(key);
+                if (held != null && held.mode.covers(mode)) return;
+                txn.pending++;
             }
+            break;
         }
-        return false;
-    }
-
-    public Permissions whichLock(PageId pid, TransactionId tid) {
 
-        var lockStatus = getLockStatus(pid);
-        synchronized (lockStatus)
+        var part = partition(key);
+        LockHead head;
+        Request req = null;
+        boolean granted = false;
+        try
         {
-            for (LockStatus ls : lockStatus)
+            synchronized (part)
             {
-                synchronized (ls)
+                head = part.head(key);
+                if (held == null)
                 {
-                    if (tid.equals(ls.tid))
-                    {
-                        if (ls.gettedLock) return ls.isReadLock ? Permissions.READ_ONLY : Permissions.READ_WRITE;
-                        break;
-                    }
+                    req = part.newRequest(key, tid, mode);
+                    if (head.first == null && head.compatible(req)) head.grant(req);
+                    else head.enqueue(req);
+                }
+                else
+                {
+                    req = held;
+                    req.want = held.mode.join(mode);
+                    req.converting = true;
+                    if (head.compatible(req)) head.convert(req);
+                    else head.enqueueFirst(req);
                 }
             }
-        }
-        return null;
-    }
-
-    public List<PageId> getPagesByTid(TransactionId tid) {
-        //        List<PageId> pages = new ArrayList<PageId>();
-        //        synchronized (dataLockMap)
-        //        {
-        //            for (Data e : dataLockMap.values())
-        //            {
-        //                var lockStatus = e.getLists();
-        //                synchronized (lockStatus)
-        //                {
-        //                    for (LockStatus ls : lockStatus)
-        //                    {
-        //
-        //                        if (ls.gettedLock && ls.tid.equals(tid))
-        //                        {
-        //                            pages.add(e.getPid());
-        //                            break;
-        //                        }
-        //
-        //                    }
-        //                }
-        //            }
-        //        }
-        synchronized (tidLockMap)
+            if (req.waiting) await(part, head, req, held != null);
+            granted = true;
+        } finally
         {
-            ArrayList<PageId> newList = new ArrayList<>();
-            if (tidLockMap.containsKey(tid))
+            synchronized (txn)
             {
-                newList.addAll(tidLockMap.get(tid));
+                if (granted && held == null) txn.grants.put(key, req);
+                txn.pending--;
+                txn.retireIfIdle(tid);
             }
-            return newList;
         }
-        //        return pages;
     }
 
-    private void BlockLock(LockManager.Data data, TransactionId tid, LockStatus temp, String s, boolean write) throws TransactionAbortedException {
-        synchronized (temp)
+    /**
+     * 等到 req 被授予. 被选为牺牲者或者线程被中断时撤销请求, 撤销前刚好被授予的话照常返回
+     */
+    private void await(Partition part, LockHead head, Request req, boolean conversion) throws TransactionAbortedException {
+        var tid = req.tid;
+        try
         {
-            if (!temp.gettedLock)
+            while (true)
             {
-                try
+                List<TransactionId> blockers;
+                synchronized (part)
                 {
-                    if (temp.lock != null) temp.lock.lock(tid);
-                    if (write) temp.setWriteLock();
-                    else temp.setReadLock();
-                } finally
+                    if (!req.waiting) return;
+                    blockers = head.blockers(req);
+                }
+                waitForGraph.waitFor(tid, blockers);
+                synchronized (req)
                 {
-                    if (write) LogPrint.print(s + (temp.gettedLock && temp.isWriteLock ? "成功" : "失败"));
-                    else LogPrint.print(s + (temp.gettedLock && temp.isReadLock ? "成功" : "失败"));
+                    if (req.waiting) req.wait(DETECT_MILLIS);
                 }
             }
-        }
-
-    }
-
-    private void TryLock(LockManager.Data data, TransactionId tid, LockStatus temp, String s, boolean write) throws TransactionAbortedException {
-        LogPrint.print(s);
-        synchronized (temp)
+        } catch (InterruptedException e)
         {
-            if (write)
-            {
-                temp.setWriteLock();
-                LogPrint.print(s + (temp.gettedLock && temp.isWriteLock ? "成功" : "失败"));
-            }
-            else
-            {
-                temp.setReadLock();
-                LogPrint.print(s + (temp.gettedLock && temp.isReadLock ? "成功" : "失败"));
-            }
+            Thread.currentThread().interrupt();
+            if (!cancel(part, head, req, true)) throw new TransactionAbortedException();
+        } catch (TransactionAbortedException e)
+        {
+            if (!cancel(part, head, req, true)) throw e;
+        } catch (Throwable e)
+        {
+            // 比如测试里 Thread.stop 掉的等待者, 不能把请求留在队列里
+            cancel(part, head, req, conversion);
+            throw e;
+        } finally
+        {
+            waitForGraph.done(tid);
         }
     }
 
-    private LockStatus NewLock(LockManager.Data data, TransactionId tid, LockStatus temp, String s, boolean write) throws TransactionAbortedException {
-        LogPrint.print(s);
-        temp = new LockStatus(tid, data);
-        synchronized (temp)
+    /**
+     * 撤销等待中的请求
+     *
+     * @param keepGrant 撤销前已经被授予时是否保留
+     * @return 请求已经被授予并且保留
+     */
+    private boolean cancel(Partition part, LockHead head, Request req, boolean keepGrant) {
+        synchronized (part)
         {
-            if (write)
+            if (!req.waiting && keepGrant) return true;
+            if (req.waiting)
             {
-                temp.setWriteLock();
-                LogPrint.print(s + (temp.gettedLock && temp.isWriteLock ? "成功" : "失败"));
+                head.dequeue(req);
+                req.waiting = false;
+                // 升级失败, 事务仍持有原来的锁
+                if (req.converting)
+                {
+                    req.converting = false;
+                    req.want = null;
+                }
+                else part.freeRequest(req);
             }
             else
             {
-                temp.setReadLock();
-                LogPrint.print(s + (temp.gettedLock && temp.isReadLock ? "成功" : "失败"));
+                head.release(req);
+                part.freeRequest(req);
             }
+            head.grantWaiters();
+            part.releaseIfIdle(head);
+            return false;
         }
-        return temp;
     }
 
+    /**
+     * 表锁的键
+     */
+    private static final class TableKey {
+        int tableId;
 
-    private class LockStatus {
-        private TransactionId tid;
-        private LockManager.Data d;
-        private Lock lock;
-        private boolean isReadLock = false;
-        private boolean isWriteLock = false;
-        private boolean gettedLock = false;
-
-        public LockStatus(TransactionId tid, LockManager.Data d) {
-            this.tid = tid;
-            this.d = d;
-        }
-
-        @Override
-        public String toString() {
-            return "LockStatus{" + "tid=" + tid + (gettedLock ? (isReadLock ? "ReadLock" : isWriteLock ? "WriteLock" : "持有但未知") : "未持有锁") + '}';
+        TableKey(int tableId) {
+            this.tableId = tableId;
         }
 
         @Override
         public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof LockStatus)) return false;
-            LockStatus that = (LockStatus) o;
-            return tid.equals(that.tid) && d.equals(that.d);
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(tid, d);
+            return Integer.hashCode(tableId);
         }
+    }
 
+    /**
+     * 事务持有的锁, 用事务对象自身的监视器保护
+     */
+    private final class TxnLocks {
+        private final OpenHashMap<Object, Request> grants = new OpenHashMap<>();
+        private final TableKey probe = new TableKey(0);
+        // 正在申请锁的调用数, 不为 0 时不能从 txns 中摘掉
+        private int pending;
+        private boolean retired;
+
+        void retireIfIdle(TransactionId tid) {
+            if (grants.size() == 0 && pending == 0)
+            {
+                retired = true;
+                txns.remove(tid, this);
+            }
+        }
+    }
 
-        public synchronized void setReadLock() throws TransactionAbortedException {
-            LogPrint.print("[" + "pn=" + d.pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + "设置读锁前" + d.lock.toString());
-            var r = d.getRlock();
-            gettedLock = r.tryLock(tid);
-            lock = r;
-            isReadLock = true;
-            isWriteLock = false;
-            LogPrint.print("[" + "pn=" + d.pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + "设置读锁后" + d.lock.toString());
+    /**
+     * 一个事务对一个键的锁请求, 授予后就是持有记录
+     */
+    private static final class Request {
+        Object key;
+        TransactionId tid;
+        volatile LockMode mode;
+        // 升级的目标模式
+        LockMode want;
+        boolean converting;
+        volatile boolean waiting;
+        // 持有者链表
+        Request prev, next;
+        // 等待队列, 空闲链表也用 qnext
+        Request qprev, qnext;
+    }
+
+    /**
+     * 一个键上的锁
+     */
+    private static final class LockHead {
+        Object key;
+        // 每种模式的持有者数
+        final int[] counts = new int[LockMode.MODES.length];
+        Request holders;
+        Request first, last;
+        LockHead nextFree;
+
+        boolean compatible(Request req) {
+            var target = req.converting ? req.want : req.mode;
+            for (var m : LockMode.MODES)
+            {
+                int n = counts[m.ordinal()];
+                // 升级时不算自己原来的锁
+                if (req.converting && req.mode == m) n--;
+                if (n > 0 && !target.compatibleWith(m)) return false;
+            }
+            return true;
         }
 
-        public synchronized void setWriteLock() throws TransactionAbortedException {
-            LogPrint.print("[" + "pn=" + d.pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + "设置写锁前" + d.lock.toString());
-            var w = d.getWlock();
-            //单一读锁可升级为写锁
-            gettedLock = w.tryLock(tid);
-            //            if (gettedLock || lock == null)
-            //            {
-            lock = w;
-            isWriteLock = true;
-            isReadLock = false;
-            //            }
-            LogPrint.print(("[" + "pn=" + d.pid.getPageNumber() + ":" + "tid=" + tid.getId() % 100 + "]" + Thread.currentThread().getName() + "设置写锁后" + d.lock.toString()));
+        void grant(Request req) {
+            req.prev = null;
+            req.next = holders;
+            if (holders != null) holders.prev = req;
+            holders = req;
+            counts[req.mode.ordinal()]++;
+            req.waiting = false;
         }
 
-    }
+        void convert(Request req) {
+            counts[req.mode.ordinal()]--;
+            req.mode = req.want;
+            counts[req.mode.ordinal()]++;
+            req.want = null;
+            req.converting = false;
+            req.waiting = false;
+        }
 
-    private class Data {
-        private final ReadWriteLock lock = new FakeReadWriteLock();
-        private final List<LockStatus> lists = Collections.synchronizedList(new ArrayList<>());
-        private PageId pid = null;
+        void release(Request req) {
+            if (req.prev != null) req.prev.next = req.next;
+            else holders = req.next;
+            if (req.next != null) req.next.prev = req.prev;
+            req.prev = req.next = null;
+            counts[req.mode.ordinal()]--;
+        }
 
-        public Data(PageId pid) {
-            this.pid = pid;
+        void enqueue(Request req) {
+            req.waiting = true;
+            req.qnext = null;
+            req.qprev = last;
+            if (last != null) last.qnext = req;
+            else first = req;
+            last = req;
         }
 
-        public List<LockStatus> getLists() {
-            return lists;
+        void enqueueFirst(Request req) {
+            req.waiting = true;
+            req.qprev = null;
+            req.qnext = first;
+            if (first != null) first.qprev = req;
+            else last = req;
+            first = req;
         }
 
-        public PageId getPid() {
-            return pid;
+        void dequeue(Request req) {
+            if (req.qprev != null) req.qprev.qnext = req.qnext;
+            else first = req.qnext;
+            if (req.qnext != null) req.qnext.qprev = req.qprev;
+            else last = req.qprev;
+            req.qprev = req.qnext = null;
         }
 
-        public Lock getRlock() {
-            return lock.readLock();
+        /**
+         * 从队头开始按顺序授予, 遇到第一个不相容的请求就停下
+         */
+        void grantWaiters() {
+            Request req;
+            while ((req = first) != null && compatible(req))
+            {
+                dequeue(req);
+                if (req.converting) convert(req);
+                else grant(req);
+                synchronized (req)
+                {
+                    req.notify();
+                }
+            }
         }
 
-        public Lock getWlock() {
-            return lock.writeLock();
+        // req 在等待的事务: 其他持有者和排在它前面的请求者
+        List<TransactionId> blockers(Request req) {
+            var blockers = new ArrayList<TransactionId>();
+            for (var h = holders; h != null; h = h.next)
+            {
+                if (!h.tid.equals(req.tid)) blockers.add(h.tid);
+            }
+            for (var q = first; q != null && q != req; q = q.qnext)
+            {
+                if (!q.tid.equals(req.tid)) blockers.add(q.tid);
+            }
+            return blockers;
         }
+    }
 
-        public void unlock(TransactionId tid) {
-            lock.UnlockALL(tid);
+    /**
+     * 锁表的一个分区, 所有字段由分区的监视器保护
+     */
+    private static final class Partition {
+        final OpenHashMap<Object, LockHead> heads = new OpenHashMap<>();
+        private LockHead freeHeads;
+        private int numFreeHeads;
+        private Request freeRequests;
+        private int numFreeRequests;
+
+        LockHead head(Object key) {
+            var head = heads.get(key);
+            if (head != null) return head;
+            head = freeHeads;
+            if (head != null)
+            {
+                freeHeads = head.nextFree;
+                head.nextFree = null;
+                numFreeHeads--;
+            }
+            else head = new LockHead();
+            head.key = key;
+            heads.put(key, head);
+            return head;
+        }
+
+        void releaseIfIdle(LockHead head) {
+            if (head.holders != null || head.first != null) return;
+            heads.remove(head.key);
+            head.key = null;
+            if (numFreeHeads < MAX_FREE)
+            {
+                head.nextFree = freeHeads;
+                freeHeads = head;
+                numFreeHeads++;
+            }
+        }
+
+        Request newRequest(Object key, TransactionId tid, LockMode mode) {
+            var req = freeRequests;
+            if (req != null)
+            {
+                freeRequests = req.qnext;
+                req.qnext = null;
+                numFreeRequests--;
+            }
+            else req = new Request();
+            req.key = key;
+            req.tid = tid;
+            req.mode = mode;
+            return req;
+        }
+
+        void freeRequest(Request req) {
+            req.key = null;
+            req.tid = null;
+            req.want = null;
+            req.converting = false;
+            req.waiting = false;
+            if (numFreeRequests < MAX_FREE)
+            {
+                req.qnext = freeRequests;
+                freeRequests = req;
+                numFreeRequests++;
+            }
         }
     }
 }
-
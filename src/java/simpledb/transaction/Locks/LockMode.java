@@ -0,0 +1,55 @@
+package simpledb.transaction.Locks;
+
+/**
+ * 多粒度锁的模式: 表和页上可以加 IS/IX/S/SIX/X.
+ * <p>
+ * 在某一层加 S/X 之前要先在它的上层加对应的意向锁 IS/IX ({@link #intention()}).
+ * 同一个事务既要 S 又要 IX 时合成 SIX: 读整个对象, 同时只修改其中的一部分,
+ * 其他事务还能在下层加 IS 读, 不会因为读后写就把整个对象升级成 X.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    static final LockMode[] MODES = values();
+
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ {true, true, true, true, false},
+            /* IX  */ {true, true, false, false, false},
+            /* S   */ {true, false, true, false, false},
+            /* SIX */ {true, false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /**
+     * @return 不同事务能否同时持有 this 和 other
+     */
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return 同时满足 this 和 other 的最弱模式
+     */
+    public LockMode join(LockMode other) {
+        if (this == other || other == IS) return this;
+        if (this == IS) return other;
+        if (this == X || other == X) return X;
+        // 剩下 IX, S, SIX 中两个不同的模式
+        return SIX;
+    }
+
+    /**
+     * @return 持有 this 时是否不需要再申请 other
+     */
+    public boolean covers(LockMode other) {
+        return join(other) == this;
+    }
+
+    /**
+     * @return 在下层加 this 之前, 上层需要的意向锁
+     */
+    public LockMode intention() {
+        return this == IS || this == S ? IS : IX;
+    }
+}
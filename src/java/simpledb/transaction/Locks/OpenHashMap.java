@@ -0,0 +1,117 @@
+package simpledb.transaction.Locks;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * 开放寻址哈希表, 线性探测, 删除时把后面的项往前挪, 不留墓碑.
+ * <p>
+ * 插入和删除都不分配对象, 只有扩容时分配新数组. 不是线程安全的, 由使用者加锁.
+ */
+final class OpenHashMap<K, V> {
+    private Object[] keys;
+    private Object[] vals;
+    private int shift;
+    private int size;
+
+    OpenHashMap() {
+        this(16);
+    }
+
+    OpenHashMap(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(4, capacity - 1) << 1);
+        keys = new Object[cap];
+        vals = new Object[cap];
+        shift = 32 - Integer.numberOfTrailingZeros(cap);
+    }
+
+    // 斐波那契散列取高位, 分区已经用掉了 hashCode 的低位
+    private int home(Object key) {
+        return (key.hashCode() * 0x9E3779B9) >>> shift;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        int mask = keys.length - 1;
+        for (int i = home(key); keys[i] != null; i = (i + 1) & mask)
+        {
+            if (keys[i].equals(key)) return (V) vals[i];
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(K key, V val) {
+        if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = home(key);
+        for (; keys[i] != null; i = (i + 1) & mask)
+        {
+            if (keys[i].equals(key))
+            {
+                var old = (V) vals[i];
+                vals[i] = val;
+                return old;
+            }
+        }
+        keys[i] = key;
+        vals[i] = val;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(K key) {
+        int mask = keys.length - 1;
+        int i = home(key);
+        while (keys[i] != null && !keys[i].equals(key)) i = (i + 1) & mask;
+        if (keys[i] == null) return null;
+        var old = (V) vals[i];
+        // 空位后面同一探测链上的项, 如果它的起始位置不在 (i, j] 之间, 就挪到空位上
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask)
+        {
+            int k = home(keys[j]);
+            boolean stay = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (stay) continue;
+            keys[i] = keys[j];
+            vals[i] = vals[j];
+            i = j;
+        }
+        keys[i] = null;
+        vals[i] = null;
+        size--;
+        return old;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i] != null) action.accept((K) keys[i], (V) vals[i]);
+        }
+    }
+
+    void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(vals, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int cap) {
+        var oldKeys = keys;
+        var oldVals = vals;
+        keys = new Object[cap];
+        vals = new Object[cap];
+        shift = 32 - Integer.numberOfTrailingZeros(cap);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != null) put((K) oldKeys[i], (V) oldVals[i]);
+        }
+    }
+}
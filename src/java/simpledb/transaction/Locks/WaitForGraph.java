@@ -0,0 +1,75 @@
+package simpledb.transaction.Locks;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 等待图: 事务 -> 它正在等待的锁的持有者.
+ * <p>
+ * 事务开始等待 (以及被唤醒后仍然拿不到锁) 时更新它的出边, 并检查有没有经过它的环.
+ * 有环时选择环上最年轻 (id 最大, 做的工作通常最少) 的事务作为牺牲者:
+ * 牺牲者是当前事务就直接中断, 否则做标记, 牺牲者醒来检查时中断.
+ */
+public class WaitForGraph {
+    private final Map<TransactionId, Set<TransactionId>> edges = new HashMap<>();
+    private final Set<TransactionId> victims = new HashSet<>();
+    private final LongAdder deadlocks = new LongAdder();
+
+    /**
+     * tid 开始等待或者继续等待 holders 释放锁
+     *
+     * @throws TransactionAbortedException tid 被选为牺牲者
+     */
+    public synchronized void waitFor(TransactionId tid, Collection<TransactionId> holders) throws TransactionAbortedException {
+        if (victims.remove(tid))
+        {
+            edges.remove(tid);
+            throw new TransactionAbortedException();
+        }
+        edges.put(tid, new HashSet<>(holders));
+        var cycle = findCycle(tid);
+        if (cycle == null) return;
+        deadlocks.increment();
+        var victim = Collections.max(cycle, Comparator.comparingLong(TransactionId::getId));
+        // 去掉牺牲者的出边, 它醒来之前其他等待者不会再发现这个环
+        edges.remove(victim);
+        if (victim.equals(tid)) throw new TransactionAbortedException();
+        victims.add(victim);
+    }
+
+    /**
+     * tid 不再等待: 拿到了锁或者已经中断
+     */
+    public synchronized void done(TransactionId tid) {
+        edges.remove(tid);
+        victims.remove(tid);
+    }
+
+    /**
+     * @return 检测到的死锁数
+     */
+    public long getNumDeadlocks() {
+        return deadlocks.sum();
+    }
+
+    // 从 start 出发回到 start 的路径上的事务, 没有环时返回 null
+    private List<TransactionId> findCycle(TransactionId start) {
+        var path = new ArrayList<TransactionId>();
+        var visited = new HashSet<TransactionId>();
+        return dfs(start, start, path, visited) ? path : null;
+    }
+
+    private boolean dfs(TransactionId node, TransactionId start, List<TransactionId> path, Set<TransactionId> visited) {
+        path.add(node);
+        for (var next : edges.getOrDefault(node, Set.of()))
+        {
+            if (next.equals(start)) return true;
+            if (visited.add(next) && dfs(next, start, path, visited)) return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+}
@@ -174,6 +174,30 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() after an entry in the
+	 * middle of the page was deleted, leaving an empty slot between two entries
+	 */
+	@Test public void testReverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> forward = new ArrayList<>();
+		page.iterator().forEachRemaining(forward::add);
+		page.deleteKeyAndRightChild(forward.get(forward.size() / 2));
+
+		forward.clear();
+		page.iterator().forEachRemaining(forward::add);
+		Collections.reverse(forward);
+		List<BTreeEntry> reverse = new ArrayList<>();
+		page.reverseIterator().forEachRemaining(reverse::add);
+
+		assertEquals(forward.size(), reverse.size());
+		for (int i = 0; i < forward.size(); i++) {
+			assertEquals(forward.get(i).getKey(), reverse.get(i).getKey());
+			assertEquals(forward.get(i).getLeftChild(), reverse.get(i).getLeftChild());
+			assertEquals(forward.get(i).getRightChild(), reverse.get(i).getRightChild());
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,111 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BeforeImageTest extends TestUtil.CreateHeapFile {
+    private static final int TUPLES = 1000;
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < TUPLES; ++i)
+        {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext())
+        {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Reading pages never copies them, and committing releases the copies.
+     */
+    @Test public void readsDoNotCopy() throws Exception {
+        assertEquals(0, bp.getBeforeImageBytes());
+        long captures = bp.getNumBeforeImageCaptures();
+        TransactionId tid = new TransactionId();
+        assertEquals(TUPLES, count(tid));
+        assertEquals(0, bp.getBeforeImageBytes());
+        assertEquals(captures, bp.getNumBeforeImageCaptures());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The first write access copies the page once; commit drops the copy.
+     */
+    @Test public void captureOnWrite() throws Exception {
+        var pid = new HeapPageId(empty.getId(), 0);
+        TransactionId tid = new TransactionId();
+        long captures = bp.getNumBeforeImageCaptures();
+        Page page = bp.getPage(tid, pid, Permissions.READ_WRITE);
+        byte[] committed = page.getPageData();
+        assertEquals(BufferPool.getPageSize(), bp.getBeforeImageBytes());
+        assertEquals(BufferPool.getPageSize(), page.getBeforeImageSize());
+
+        bp.getPage(tid, pid, Permissions.READ_WRITE);
+        assertEquals(captures + 1, bp.getNumBeforeImageCaptures());
+
+        var t = ((HeapPage) page).iterator().next();
+        bp.deleteTuple(tid, t);
+        assertArrayEquals(committed, page.getBeforeImage().getPageData());
+        assertFalse(Arrays.equals(committed, page.getPageData()));
+
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getBeforeImageBytes());
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Abort restores the content captured before the first write.
+     */
+    @Test public void abortRestores() throws Exception {
+        var pid = new HeapPageId(empty.getId(), 0);
+        TransactionId tid = new TransactionId();
+        byte[] committed = bp.getPage(tid, pid, Permissions.READ_ONLY).getPageData();
+        var page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+        bp.transactionComplete(tid, false);
+        assertEquals(0, bp.getBeforeImageBytes());
+
+        tid = new TransactionId();
+        assertArrayEquals(committed, bp.getPage(tid, pid, Permissions.READ_ONLY).getPageData());
+        assertEquals(TUPLES, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BeforeImageTest.class);
+    }
+}
@@ -0,0 +1,173 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.BulkLoader;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = Utility.getTupleDesc(3);
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("bulk", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static List<List<Integer>> randomRows(int n, Random rnd) {
+        var rows = new ArrayList<List<Integer>>();
+        for (int i = 0; i < n; i++)
+        {
+            rows.add(List.of(rnd.nextInt(10000), i, -i));
+        }
+        return rows;
+    }
+
+    private static File csv(List<List<Integer>> rows) throws IOException {
+        File f = tempFile(".csv");
+        try (var w = new PrintWriter(new BufferedWriter(new FileWriter(f))))
+        {
+            for (var r : rows)
+                w.println(r.get(0) + "," + r.get(1) + "," + r.get(2));
+        }
+        return f;
+    }
+
+    private static List<Integer> keys(DbFile f) throws Exception {
+        var tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        var keys = new ArrayList<Integer>();
+        while (it.hasNext())
+        {
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return keys;
+    }
+
+    @Test public void heapFileFromCsv() throws Exception {
+        var rows = randomRows(2000, new Random(1));
+        HeapFile f = BulkLoader.loadHeapFile(BulkLoader.csv(csv(rows), TD, ','), tempFile(".dat"), "heap");
+
+        assertEquals(f.getId(), Database.getCatalog().getTableId("heap"));
+        int perPage = (BufferPool.getPageSize() * 8) / (TD.getSize() * 8 + 1);
+        assertEquals((2000 + perPage - 1) / perPage, f.numPages());
+        SystemTestUtil.matchTuples(f, rows);
+
+        TableStats stats = TableStats.getTableStats("heap");
+        assertEquals(2000, stats.totalTuples());
+        assertEquals(0.5, stats.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(1000)), 0.1);
+    }
+
+    @Test public void heapFileFromBinary() throws Exception {
+        var rows = randomRows(700, new Random(2));
+        File in = tempFile(".bin");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(in))))
+        {
+            for (var r : rows)
+            {
+                for (int v : r)
+                    out.writeInt(v);
+            }
+        }
+        HeapFile f = BulkLoader.loadHeapFile(BulkLoader.binary(in, TD), tempFile(".dat"), "binary");
+        SystemTestUtil.matchTuples(f, rows);
+    }
+
+    @Test(expected = IOException.class) public void malformedCsv() throws Exception {
+        File in = tempFile(".csv");
+        try (var w = new FileWriter(in))
+        {
+            w.write("1,2,3\n4,five,6\n");
+        }
+        BulkLoader.loadHeapFile(BulkLoader.csv(in, TD, ','), tempFile(".dat"), "bad");
+    }
+
+    /**
+     * A tree with a leaf level and an internal root, sorted through several spilled runs.
+     */
+    @Test public void bTreeFromCsv() throws Exception {
+        var rows = randomRows(60000, new Random(3));
+        BTreeFile f = BulkLoader.loadBTreeFile(BulkLoader.csv(csv(rows), TD, ','), tempFile(".dat"), "btree", 0, 1.0, 64 << 10);
+
+        assertEquals(f.getId(), Database.getCatalog().getTableId("btree"));
+        assertEquals(60000, TableStats.getTableStats("btree").totalTuples());
+        var tid = new TransactionId();
+        BTreeChecker.checkRep(f, tid, new HashMap<>(), true);
+        Database.getBufferPool().transactionComplete(tid);
+
+        var keys = keys(f);
+        var expected = new ArrayList<Integer>();
+        for (var r : rows)
+            expected.add(r.get(0));
+        expected.sort(null);
+        assertEquals(expected, keys);
+        SystemTestUtil.matchTuples(f, rows);
+    }
+
+    /**
+     * A lower fill factor leaves room in every page, so the tree has more pages
+     * and still accepts inserts.
+     */
+    @Test public void fillFactor() throws Exception {
+        var rows = randomRows(5000, new Random(4));
+        BTreeFile full = BulkLoader.loadBTreeFile(BulkLoader.csv(csv(rows), TD, ','), tempFile(".dat"), "full", 0, 1.0);
+        BTreeFile sparse = BulkLoader.loadBTreeFile(BulkLoader.csv(csv(rows), TD, ','), tempFile(".dat"), "sparse", 0, 0.6);
+        assertTrue(sparse.numPages() > full.numPages());
+
+        var tid = new TransactionId();
+        BTreeChecker.checkRep(sparse, tid, new HashMap<>(), true);
+        for (int i = 0; i < 200; i++)
+        {
+            Tuple t = Utility.getHeapTuple(new int[]{i * 50, 0, 0});
+            Database.getBufferPool().insertTuple(tid, sparse.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(5200, keys(sparse).size());
+    }
+
+    @Test public void emptyInput() throws Exception {
+        File in = tempFile(".csv");
+        BTreeFile f = BulkLoader.loadBTreeFile(BulkLoader.csv(in, TD, ','), tempFile(".dat"), "empty", 0, 1.0);
+        assertEquals(1, f.numPages());
+        var tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[]{1, 2, 3}));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(List.of(1), keys(f));
+
+        HeapFile h = BulkLoader.loadHeapFile(BulkLoader.csv(in, TD, ','), tempFile(".dat"), "emptyheap");
+        assertEquals(1, h.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
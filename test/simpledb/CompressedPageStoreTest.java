@@ -0,0 +1,271 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedPageStoreTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws IOException {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".map").deleteOnExit();
+        return f;
+    }
+
+    private static byte[] roundTrip(byte[] src) throws IOException {
+        var compressed = new byte[Lz4Codec.maxCompressedLength(src.length)];
+        int n = Lz4Codec.compress(src, src.length, compressed);
+        var out = new byte[src.length];
+        Lz4Codec.decompress(compressed, 0, n, out, 0, src.length);
+        assertArrayEquals(src, out);
+        return Arrays.copyOf(compressed, n);
+    }
+
+    /**
+     * Zeros and repeated values shrink a lot, random bytes survive unchanged.
+     */
+    @Test public void codec() throws Exception {
+        int size = BufferPool.getPageSize();
+        assertTrue(roundTrip(new byte[size]).length < 64);
+
+        var repeated = ByteBuffer.allocate(size);
+        for (int i = 0; repeated.remaining() >= 8; i++)
+            repeated.putInt(i % 3).putInt(42);
+        assertTrue(roundTrip(repeated.array()).length < size / 10);
+
+        var random = new byte[size];
+        new Random(1).nextBytes(random);
+        roundTrip(random);
+
+        roundTrip(new byte[0]);
+        roundTrip(new byte[]{1, 2, 3});
+    }
+
+    @Test(expected = IOException.class) public void corrupt() throws Exception {
+        var src = new byte[BufferPool.getPageSize()];
+        Arrays.fill(src, 100, 200, (byte) 7);
+        var compressed = roundTrip(src);
+        Lz4Codec.decompress(compressed, 0, compressed.length - 3, new byte[src.length], 0, src.length);
+    }
+
+    /**
+     * Reads and writes at any offset see the logical bytes, and the page map survives a reopen.
+     */
+    @Test public void readWrite() throws Exception {
+        File f = tempFile();
+        int size = BufferPool.getPageSize();
+        var store = new CompressedPageStore(f, 0);
+        assertEquals(-1, store.read(0, ByteBuffer.allocate(10)));
+
+        var bytes = new byte[size * 3];
+        new Random(2).nextBytes(bytes);
+        Arrays.fill(bytes, size, 2 * size, (byte) 0);
+        store.write(0, bytes);
+        // across a page boundary
+        var patch = new byte[]{9, 9, 9, 9, 9, 9};
+        store.write(size - 3, patch);
+        System.arraycopy(patch, 0, bytes, size - 3, patch.length);
+        assertEquals(3L * size, store.size());
+
+        var read = ByteBuffer.allocateDirect(size * 4);
+        assertEquals(3 * size, store.read(0, read));
+        var copy = new byte[3 * size];
+        read.flip().get(copy);
+        assertArrayEquals(bytes, copy);
+        store.close();
+
+        store = new CompressedPageStore(f, 0);
+        assertEquals(3L * size, store.size());
+        var part = ByteBuffer.allocate(10);
+        assertEquals(10, store.read(size - 5, part));
+        assertArrayEquals(Arrays.copyOfRange(bytes, size - 5, size + 5), part.array());
+        // a whole page into a heap buffer that already holds something
+        var page = ByteBuffer.allocate(size + 7).position(7);
+        assertEquals(size, store.read(0, page));
+        assertArrayEquals(Arrays.copyOf(bytes, size), Arrays.copyOfRange(page.array(), 7, size + 7));
+        store.close();
+    }
+
+    /**
+     * A rewrite that dies before its map entry is written leaves the previous version readable.
+     */
+    @Test public void tornRewrite() throws Exception {
+        File f = tempFile();
+        File map = new File(f.getPath() + ".map");
+        int size = BufferPool.getPageSize();
+        var first = new byte[size];
+        Arrays.fill(first, 0, size / 2, (byte) 1);
+        var second = new byte[size];
+        Arrays.fill(second, 0, size / 4, (byte) 2);
+
+        var store = new CompressedPageStore(f, 0);
+        store.write(0, first);
+        store.close();
+        byte[] mapBefore = Files.readAllBytes(map.toPath());
+        store = new CompressedPageStore(f, 0);
+        store.write(0, second);
+        store.close();
+        // the new bytes reached the data file, the map entry did not
+        Files.write(map.toPath(), mapBefore);
+
+        store = new CompressedPageStore(f, 0);
+        var read = ByteBuffer.allocate(size);
+        assertEquals(size, store.read(0, read));
+        assertArrayEquals(first, read.array());
+        // the space of the lost write is reused
+        long physical = store.physicalSize();
+        store.write(0, second);
+        store.write(0, first);
+        assertEquals(physical, store.physicalSize());
+        store.close();
+    }
+
+    /**
+     * A conversion interrupted after replacing the data file finishes on the next open.
+     */
+    @Test public void interruptedConversion() throws Exception {
+        File f = tempFile();
+        int size = BufferPool.getPageSize();
+        var bytes = new byte[size * 2];
+        Arrays.fill(bytes, size, size + 100, (byte) 5);
+        Files.write(f.toPath(), bytes);
+        new CompressedPageStore(f, 0).close();
+        File map = new File(f.getPath() + ".map");
+        File pending = new File(f.getPath() + ".tmp.map");
+        pending.deleteOnExit();
+        Files.move(map.toPath(), pending.toPath());
+
+        var store = new CompressedPageStore(f, 0);
+        var read = ByteBuffer.allocate(size * 2);
+        assertEquals(2 * size, store.read(0, read));
+        assertArrayEquals(bytes, read.array());
+        assertFalse(pending.exists());
+        store.close();
+    }
+
+    /**
+     * An all-zero page takes no space, and a rewritten page reuses freed space.
+     */
+    @Test public void space() throws Exception {
+        File f = tempFile();
+        int size = BufferPool.getPageSize();
+        var store = new CompressedPageStore(f, 0);
+        store.write(0, new byte[size * 100]);
+        assertEquals(100L * size, store.size());
+        assertEquals(0, store.physicalSize());
+
+        var random = new byte[size];
+        new Random(3).nextBytes(random);
+        store.write(0, random);
+        long grown = store.physicalSize();
+        store.write(0, new byte[size]);
+        store.write(5L * size, random);
+        assertEquals(grown, store.physicalSize());
+        store.close();
+    }
+
+    /**
+     * A heap file of repetitive tuples takes a fraction of its logical size on disk.
+     */
+    @Test public void heapFile() throws Exception {
+        File f = tempFile();
+        var td = Utility.getTupleDesc(2);
+        var file = new HeapFile(f, td, PageStore.Kind.COMPRESSED);
+        Database.getCatalog().addTable(file, "c");
+        var tid = new TransactionId();
+        var batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 3000; i++)
+            batch.add(Utility.getHeapTuple(new int[]{i, i % 10}));
+        Database.getBufferPool().insertTuples(tid, file.getId(), batch);
+        Database.getBufferPool().transactionComplete(tid);
+
+        int pages = file.numPages();
+        assertTrue(pages > 5);
+        assertTrue(f.length() * 3 < (long) pages * BufferPool.getPageSize());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        var it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext())
+        {
+            Tuple t = it.next();
+            assertEquals(((IntField) t.getField(0)).getValue() % 10, ((IntField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3000, count);
+    }
+
+    /**
+     * The root pointer page of a B+ tree is its own block ahead of the tree pages.
+     */
+    @Test public void btreeFile() throws Exception {
+        File f = tempFile();
+        var td = Utility.getTupleDesc(2);
+        var file = new BTreeFile(f, 0, td, PageStore.Kind.COMPRESSED);
+        Database.getCatalog().addTable(file);
+        var tid = new TransactionId();
+        for (int i = 0; i < 1000; i++)
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(new int[]{999 - i, i}));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        file = new BTreeFile(f, 0, td, PageStore.Kind.COMPRESSED);
+        Database.getCatalog().addTable(file);
+        tid = new TransactionId();
+        var it = file.iterator(tid);
+        it.open();
+        int expected = 0;
+        while (it.hasNext())
+            assertEquals(expected++, ((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, expected);
+    }
+
+    /**
+     * "compressed" after the column list picks the backend in a schema file, with or without a layout.
+     */
+    @Test public void loadSchema() throws Exception {
+        File schema = File.createTempFile("schema", ".txt");
+        schema.deleteOnExit();
+        try (var w = new FileWriter(schema))
+        {
+            w.write("zipped (a int, b string) slotted compressed\n");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        var catalog = Database.getCatalog();
+        var file = (HeapFile) catalog.getDatabaseFile(catalog.getTableId("zipped"));
+        assertEquals(HeapFile.Layout.SLOTTED, file.getLayout());
+        file.getFile().deleteOnExit();
+        new File(file.getFile().getPath() + ".map").deleteOnExit();
+        assertTrue(new File(file.getFile().getPath() + ".map").exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageStoreTest.class);
+    }
+}
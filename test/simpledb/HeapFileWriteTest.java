@@ -7,6 +7,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
@@ -90,6 +91,147 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts only visit pages the free-space map says have room, and deletes give the room back.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 1009; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 0) first = t;
+        }
+        assertEquals(3, empty.numPages());
+        assertEquals(1, empty.numFreePages());
+
+        empty.deleteTuple(tid, first);
+        assertEquals(2, empty.numFreePages());
+        Tuple t = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, empty.numFreePages());
+    }
+
+    /**
+     * The map is built from the page headers the first time the file is used.
+     */
+    @Test public void freeSpaceMapFromDisk() throws Exception {
+        int tableId = empty.getId();
+        int numTuples = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        byte[] full = new byte[BufferPool.getPageSize()];
+        Arrays.fill(full, 0, (int) Math.ceil(numTuples / 8.0), (byte) 0xFF);
+        empty.writePage(new HeapPage(new HeapPageId(tableId, 0), full));
+        empty.writePage(new HeapPage(new HeapPageId(tableId, 1), new byte[BufferPool.getPageSize()]));
+        empty.writePage(new HeapPage(new HeapPageId(tableId, 2), full));
+        assertEquals(1, empty.numFreePages());
+
+        Tuple t = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Reserved pages are not handed to other inserts until they are registered.
+     */
+    @Test public void reservePages() throws Exception {
+        // the file starts with one empty page
+        var pages = empty.reservePages(tid, 2);
+        assertEquals(2, pages.size());
+        assertEquals(1, pages.get(0).getId().getPageNumber());
+        assertEquals(3, empty.numPages());
+        assertEquals(1, empty.numFreePages());
+
+        Tuple t = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+
+        pages.get(0).insertTuple(Utility.getHeapTuple(1, 2));
+        empty.registerPages(pages);
+        assertEquals(3, empty.numFreePages());
+    }
+
+    /**
+     * A page filled by an aborted transaction has room again.
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            Database.getBufferPool().insertTuple(writer, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(0, empty.numFreePages());
+        Database.getBufferPool().transactionComplete(writer, false);
+        assertEquals(1, empty.numFreePages());
+
+        Tuple t = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * A batch fills the pages with room first, then appends just enough fresh pages.
+     */
+    @Test public void insertTuples() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        var batch = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 1200; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        var dirty = empty.insertTuples(tid, batch);
+        assertEquals(3, dirty.size());
+        assertEquals(3, empty.numPages());
+        assertEquals(0, batch.get(502).getRecordId().getPageId().getPageNumber());
+        assertEquals(503, batch.get(502).getRecordId().getTupleNumber());
+        assertEquals(1, batch.get(503).getRecordId().getPageId().getPageNumber());
+        assertEquals(2, batch.get(1199).getRecordId().getPageId().getPageNumber());
+        assertEquals(1, empty.numFreePages());
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(1201, count);
+    }
+
+    /**
+     * A page filled by another transaction while the insert waited for its lock is released
+     * without keeping a before-image.
+     */
+    @Test public void fullPageReleasedWithoutBeforeImage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        PageId p0 = new HeapPageId(empty.getId(), 0);
+        TransactionId setup = new TransactionId();
+        for (int i = 0; i < 503; ++i) {
+            bp.insertTuple(setup, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(setup);
+
+        TransactionId writer = new TransactionId();
+        bp.getPage(writer, p0, Permissions.READ_WRITE);
+        Tuple t = Utility.getHeapTuple(0, 2);
+        Thread inserter = new Thread(() -> {
+            try {
+                bp.insertTuple(tid, empty.getId(), t);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        inserter.start();
+        Thread.sleep(100);
+        assertTrue(inserter.isAlive());
+
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(writer);
+        inserter.join();
+
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        assertFalse(bp.holdsLock(tid, p0));
+        assertEquals(0, bp.getPageWithoutLock(p0).getBeforeImageSize());
+    }
+
     /**
      * JUnit suite target
      */
@@ -193,6 +193,34 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Lock requests are granted in arrival order: a reader that arrives after
+   * a blocked writer waits behind it instead of sharing the current read lock.
+   */
+  @Test public void waitingWriterBlocksLaterReaders() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(false, writer.acquired());
+    assertEquals(false, reader.acquired());
+
+    bp.unsafeReleasePage(tid1, p0);
+    Thread.sleep(TIMEOUT);
+    assertEquals(true, writer.acquired());
+    assertEquals(false, reader.acquired());
+
+    bp.unsafeReleasePage(tid2, p0);
+    Thread.sleep(TIMEOUT);
+    assertEquals(true, reader.acquired());
+  }
+
   /**
    * JUnit suite target
    */
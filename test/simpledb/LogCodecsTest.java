@@ -0,0 +1,121 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogCodecs;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class LogCodecsTest extends SimpleDbTestBase {
+    private HeapPage page;
+
+    @Before public void setUp() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        page = new HeapPage(new HeapPageId(-1, 3), HeapPageReadTest.EXAMPLE_DATA);
+    }
+
+    private static byte[] encode(Page p) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        LogCodecs.writePage(new DataOutputStream(bytes), p);
+        return bytes.toByteArray();
+    }
+
+    private static Page decode(byte[] image) throws IOException {
+        return LogCodecs.readPage(new DataInputStream(new ByteArrayInputStream(image)));
+    }
+
+    /**
+     * Unit test for LogCodecs: a page image round-trips without class names
+     */
+    @Test public void roundTrip() throws Exception {
+        byte[] image = encode(page);
+        // tags + id + length + checksum + data, no class names
+        assertEquals(3 + 2 * 4 + 8 + page.getPageData().length, image.length);
+
+        Page p = decode(image);
+        assertTrue(p instanceof HeapPage);
+        assertEquals(page.getId(), p.getId());
+        assertArrayEquals(page.getPageData(), p.getPageData());
+    }
+
+    /**
+     * Unit test for LogCodecs: a corrupted page image is rejected
+     */
+    @Test public void checksumMismatch() throws Exception {
+        byte[] image = encode(page);
+        image[image.length - 1] ^= 1;
+        try {
+            decode(image);
+            fail("corrupted image should not decode");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Unit test for LogCodecs.skipPage()
+     */
+    @Test public void skip() throws Exception {
+        byte[] image = encode(page);
+        var bytes = new ByteArrayOutputStream();
+        bytes.write(image);
+        bytes.write(image);
+        var in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        LogCodecs.skipPage(in);
+        assertEquals(page.getId(), LogCodecs.readPage(in).getId());
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * Unit test for LogCodecs delta images: only the changed bytes are
+     * written, and they are applied to the base page on decode
+     */
+    @Test public void delta() throws Exception {
+        byte[] data = page.getPageData();
+        byte[] changed = data.clone();
+        changed[100] ^= 1;
+        changed[103] ^= 1;
+        changed[2000] ^= 1;
+        HeapPage after = new HeapPage(page.getId(), changed);
+
+        int[] ranges = LogCodecs.diff(data, changed);
+        assertArrayEquals(new int[]{100, 4, 2000, 1}, ranges);
+
+        var bytes = new ByteArrayOutputStream();
+        int size = LogCodecs.writeDelta(new DataOutputStream(bytes), after, ranges);
+        assertTrue(size < 64);
+
+        var in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Page p = LogCodecs.readPage(in, pid -> data.clone());
+        assertArrayEquals(changed, p.getPageData());
+
+        try {
+            decode(bytes.toByteArray());
+            fail("a delta image needs a base page");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogCodecsTest.class);
+    }
+}
@@ -0,0 +1,329 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.Filter;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Locks.LockMode;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MultiGranularityLockingTest extends TestUtil.CreateHeapFile {
+    /**
+     * Time to wait before checking the state of lock contention, in ms
+     */
+    private static final int TIMEOUT = 100;
+
+    private PageId p0, p1, p2;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // two full pages and a third one with free slots
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i)
+        {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+
+        p0 = new HeapPageId(empty.getId(), 0);
+        p1 = new HeapPageId(empty.getId(), 1);
+        p2 = new HeapPageId(empty.getId(), 2);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+
+        bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Runs a lock request in another thread and waits up to TIMEOUT for it.
+     */
+    private Thread start(LockRequest request) throws Exception {
+        Thread t = new Thread(() -> {
+            try
+            {
+                request.run();
+            } catch (Exception ignored)
+            {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        t.join(TIMEOUT);
+        return t;
+    }
+
+    private boolean grantedWithinTimeout(LockRequest request) throws Exception {
+        return !start(request).isAlive();
+    }
+
+    private interface LockRequest {
+        void run() throws Exception;
+    }
+
+    @Test public void modes() {
+        assertTrue(LockMode.IS.compatibleWith(LockMode.IX));
+        assertTrue(LockMode.IS.compatibleWith(LockMode.S));
+        assertFalse(LockMode.IX.compatibleWith(LockMode.S));
+        assertFalse(LockMode.X.compatibleWith(LockMode.IS));
+        assertEquals(LockMode.IX, LockMode.IS.join(LockMode.IX));
+        assertEquals(LockMode.SIX, LockMode.S.join(LockMode.IX));
+        assertEquals(LockMode.X, LockMode.SIX.join(LockMode.X));
+        assertTrue(LockMode.SIX.compatibleWith(LockMode.IS));
+        assertFalse(LockMode.SIX.compatibleWith(LockMode.IX));
+        assertFalse(LockMode.SIX.compatibleWith(LockMode.S));
+        assertTrue(LockMode.X.covers(LockMode.S));
+        assertTrue(LockMode.SIX.covers(LockMode.S));
+        assertFalse(LockMode.IX.covers(LockMode.S));
+        assertEquals(LockMode.IS, LockMode.S.intention());
+        assertEquals(LockMode.IX, LockMode.X.intention());
+    }
+
+    /**
+     * Writing after a scan in the same transaction takes SIX on the table,
+     * which still lets other transactions read pages.
+     */
+    @Test public void writeAfterScanTakesSix() throws Exception {
+        DbFileIterator it = empty.iterator(tid1);
+        it.open();
+        it.close();
+        bp.getPage(tid1, p2, Permissions.READ_WRITE);
+        assertEquals(LockMode.SIX, bp.tableLock(tid1, empty.getId()));
+        assertEquals(Permissions.READ_WRITE, bp.whichLock(tid1, p2));
+
+        assertTrue(grantedWithinTimeout(() -> bp.getPage(tid2, p0, Permissions.READ_ONLY)));
+        assertFalse(grantedWithinTimeout(() -> bp.getPage(new TransactionId(), p1, Permissions.READ_WRITE)));
+    }
+
+    /**
+     * A transaction that already holds IX on the table scans it with page S locks,
+     * so writers to other pages are not blocked.
+     */
+    @Test public void scanAfterWriteTakesPageLocks() throws Exception {
+        bp.getPage(tid1, p2, Permissions.READ_WRITE);
+        DbFileIterator it = empty.iterator(tid1);
+        it.open();
+        assertTrue(it.hasNext());
+        it.next();
+        assertEquals(LockMode.IX, bp.tableLock(tid1, empty.getId()));
+        assertEquals(Permissions.READ_ONLY, bp.whichLock(tid1, p0));
+        assertFalse(bp.holdsLock(tid1, p1));
+
+        assertTrue(grantedWithinTimeout(() -> bp.getPage(tid2, p1, Permissions.READ_WRITE)));
+        it.close();
+    }
+
+    /**
+     * Delete declares IX on the scanned table before its child opens.
+     */
+    @Test public void deleteDeclaresIntentionBeforeScan() throws Exception {
+        Delete delete = new Delete(tid1, new Filter(
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(1)), new SeqScan(tid1, empty.getId())));
+        delete.open();
+        assertEquals(LockMode.IX, bp.tableLock(tid1, empty.getId()));
+        assertEquals(1, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        assertEquals(LockMode.IX, bp.tableLock(tid1, empty.getId()));
+    }
+
+    /**
+     * A page read takes an IS lock on the table, so writers to other pages are not blocked.
+     */
+    @Test public void pageLocksTakeIntentionLocks() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, bp.tableLock(tid1, empty.getId()));
+        assertTrue(grantedWithinTimeout(() -> bp.getPage(tid2, p1, Permissions.READ_WRITE)));
+        assertEquals(LockMode.IX, bp.tableLock(tid2, empty.getId()));
+        assertEquals(Permissions.READ_WRITE, bp.whichLock(tid2, p1));
+    }
+
+    /**
+     * A scan holds one S lock on the table instead of a lock per page,
+     * and keeps writers out of the whole table.
+     */
+    @Test public void scanTakesTableLock() throws Exception {
+        DbFileIterator it = empty.iterator(tid1);
+        it.open();
+        int n = 0;
+        while (it.hasNext())
+        {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(1025, n);
+        assertEquals(LockMode.S, bp.tableLock(tid1, empty.getId()));
+        assertFalse(bp.holdsLock(tid1, p0));
+        assertFalse(bp.holdsLock(tid1, p2));
+
+        assertTrue(grantedWithinTimeout(() -> bp.getPage(tid2, p0, Permissions.READ_ONLY)));
+        assertFalse(grantedWithinTimeout(() -> bp.getPage(new TransactionId(), p1, Permissions.READ_WRITE)));
+    }
+
+    /**
+     * Inserting probes full pages without locking them, and locks the new row
+     * rather than the whole page.
+     */
+    @Test public void insertLeavesNoLocksOnFullPages() throws Exception {
+        Tuple t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid1, t);
+        assertEquals(LockMode.IX, bp.tableLock(tid1, empty.getId()));
+        assertNull(bp.pageLock(tid1, p0));
+        assertNull(bp.pageLock(tid1, p1));
+        assertEquals(LockMode.IX, bp.pageLock(tid1, p2));
+        assertTrue(bp.holdsTupleLock(tid1, t.getRecordId(), Permissions.READ_WRITE));
+
+        bp.transactionComplete(tid1);
+        assertNull(bp.tableLock(tid1, empty.getId()));
+        assertNull(bp.pageLock(tid1, p2));
+        assertFalse(bp.holdsTupleLock(tid1, t.getRecordId(), Permissions.READ_WRITE));
+    }
+
+    private Tuple insert(TransactionId tid, int value) throws Exception {
+        Tuple t = Utility.getHeapTuple(value, 2);
+        bp.insertTuple(tid, empty.getId(), t);
+        return t;
+    }
+
+    private Tuple tupleOn(PageId pid, int slot) throws Exception {
+        TransactionId tid = new TransactionId();
+        Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+        for (int i = 0; i < slot; i++) it.next();
+        Tuple t = it.next();
+        bp.transactionComplete(tid);
+        return t;
+    }
+
+    // values of all committed tuples, read by a new transaction
+    private Set<Integer> values() throws Exception {
+        TransactionId tid = new TransactionId();
+        Set<Integer> values = new HashSet<>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext())
+        {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        return values;
+    }
+
+    /**
+     * Two transactions insert into the same page at the same time; one commits,
+     * the other aborts, and only the aborted row disappears.
+     */
+    @Test public void concurrentInsertsShareAPage() throws Exception {
+        Tuple a = insert(tid1, 5000);
+        Tuple[] b = new Tuple[1];
+        assertTrue(grantedWithinTimeout(() -> b[0] = insert(tid2, 5001)));
+        assertEquals(p2, a.getRecordId().getPageId());
+        assertEquals(p2, b[0].getRecordId().getPageId());
+        assertEquals(LockMode.IX, bp.pageLock(tid2, p2));
+
+        bp.transactionComplete(tid1, true);
+        bp.transactionComplete(tid2, false);
+        Set<Integer> values = values();
+        assertEquals(1026, values.size());
+        assertTrue(values.contains(5000));
+        assertFalse(values.contains(5001));
+    }
+
+    /**
+     * Two transactions delete different rows of one page at the same time;
+     * aborting one puts back only its own row.
+     */
+    @Test public void concurrentDeletesShareAPage() throws Exception {
+        Tuple a = tupleOn(p0, 0);
+        Tuple b = tupleOn(p0, 1);
+        bp.deleteTuple(tid1, a);
+        assertTrue(grantedWithinTimeout(() -> bp.deleteTuple(tid2, b)));
+
+        bp.transactionComplete(tid2, false);
+        bp.transactionComplete(tid1, true);
+        Set<Integer> values = values();
+        assertEquals(1024, values.size());
+        assertFalse(values.contains(((IntField) a.getField(0)).getValue()));
+        assertTrue(values.contains(((IntField) b.getField(0)).getValue()));
+    }
+
+    /**
+     * Writers of the same row still exclude each other, and a row deleted by a
+     * transaction that has not committed is not reused by other inserts.
+     */
+    @Test public void sameRowConflicts() throws Exception {
+        Tuple a = tupleOn(p0, 0);
+        bp.deleteTuple(tid1, a);
+        Thread blocked = start(() -> bp.deleteTuple(tid2, a));
+        assertTrue(blocked.isAlive());
+
+        TransactionId tid3 = new TransactionId();
+        Tuple t = insert(tid3, 5000);
+        assertEquals(p2, t.getRecordId().getPageId());
+        bp.transactionComplete(tid3, false);
+
+        bp.transactionComplete(tid1, false);
+        blocked.join();
+        bp.transactionComplete(tid2, false);
+        assertTrue(values().contains(((IntField) a.getField(0)).getValue()));
+    }
+
+    /**
+     * A page written to disk while two transactions hold rows on it is undone
+     * row by row from the log: aborting one keeps the other's row.
+     */
+    @Test public void rowUndoFromLog() throws Exception {
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        insert(t1.getId(), 5000);
+        assertTrue(grantedWithinTimeout(() -> insert(t2.getId(), 5001)));
+        bp.flushPages(t1.getId());
+
+        t1.abort();
+        Set<Integer> onDisk = new HashSet<>();
+        Iterator<Tuple> it = ((HeapPage) empty.readPage(p2)).iterator();
+        while (it.hasNext()) onDisk.add(((IntField) it.next().getField(0)).getValue());
+        assertFalse(onDisk.contains(5000));
+
+        t2.commit();
+        Set<Integer> values = values();
+        assertFalse(values.contains(5000));
+        assertTrue(values.contains(5001));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiGranularityLockingTest.class);
+    }
+}
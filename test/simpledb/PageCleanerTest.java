@@ -0,0 +1,92 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.PageCleaner;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+    private HeapFile file;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        file = SystemTestUtil.createRandomHeapFile(2, 0, null, tuples);
+    }
+
+    private void insert(Transaction t, int from, int count) throws Exception {
+        for (int i = from; i < from + count; i++)
+            Database.getBufferPool().insertTuple(t.getId(), file.getId(), Utility.getHeapTuple(i, 2));
+    }
+
+    private static List<List<Integer>> rows(int count) {
+        List<List<Integer>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            rows.add(List.of(i, i));
+        return rows;
+    }
+
+    /**
+     * Unit test for the NO FORCE commit: committed pages are written back in
+     * merged runs and survive a buffer pool reset
+     */
+    @Test public void commitThenFlush() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        PageCleaner cleaner = pool.getPageCleaner();
+
+        var t = new Transaction();
+        t.start();
+        insert(t, 0, 504 * 3);
+        t.commit();
+
+        pool.flushCommittedPages();
+        assertEquals(0, cleaner.getNumPending());
+        assertTrue(cleaner.getPagesWritten() >= 3);
+        // three adjacent pages must not take three writes
+        assertTrue(cleaner.getWrites() < cleaner.getPagesWritten());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(file, rows(504 * 3));
+    }
+
+    /**
+     * Unit test for abort: a page that holds committed but unwritten changes
+     * is restored to its committed content instead of being re-read from disk
+     */
+    @Test public void abortKeepsCommittedChanges() throws Exception {
+        var t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 10);
+        t1.commit();
+
+        var t2 = new Transaction();
+        t2.start();
+        insert(t2, 10, 10);
+        t2.transactionComplete(true);
+
+        SystemTestUtil.matchTuples(file, rows(10));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(file, rows(10));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,268 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PaxHeapPageTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "grp", "name"});
+
+    private HeapFile file;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        file = new HeapFile(f, TD, HeapFile.Layout.PAX);
+        Database.getCatalog().addTable(file, "pax");
+        pid = new HeapPageId(file.getId(), 0);
+    }
+
+    private static Tuple tuple(int id, int grp, String name) {
+        var t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(grp));
+        t.setField(2, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private static List<Tuple> tuples(Iterator<Tuple> it) {
+        var list = new ArrayList<Tuple>();
+        while (it.hasNext())
+            list.add(it.next());
+        return list;
+    }
+
+    private static int intAt(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
+    /**
+     * Tuples survive a round trip through the page bytes, and each column is stored contiguously.
+     */
+    @Test public void roundTrip() throws Exception {
+        var page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(1, 10, "a"));
+        page.insertTuple(tuple(2, 20, "bb"));
+        page.insertTuple(tuple(3, 30, "ccc"));
+
+        var copy = new PaxHeapPage(pid, page.getPageData());
+        var read = tuples(copy.iterator());
+        assertEquals(3, read.size());
+        assertEquals(tuple(2, 20, "bb"), read.get(1));
+        assertEquals(new RecordId(pid, 1), read.get(1).getRecordId());
+
+        // the ids of slots 0, 1, 2 are next to each other, followed later by the groups
+        var bytes = ByteBuffer.wrap(page.getPageData());
+        int ids = -1;
+        for (int off = 0; off + 12 <= bytes.capacity(); off += 4)
+        {
+            if (bytes.getInt(off) == 1 && bytes.getInt(off + 4) == 2 && bytes.getInt(off + 8) == 3)
+            {
+                ids = off;
+                break;
+            }
+        }
+        assertTrue(ids > 0);
+        int groups = ids + 4 * (page.getNumEmptySlots() + 3);
+        assertEquals(10, bytes.getInt(groups));
+        assertEquals(20, bytes.getInt(groups + 4));
+    }
+
+    /**
+     * A projected iterator returns only the requested columns, in the requested order.
+     */
+    @Test public void projection() throws Exception {
+        var page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 10; i++)
+            page.insertTuple(tuple(i, i * 100, "n" + i));
+        int[] columns = {1, 0};
+        var projected = TD.project(columns);
+        var read = tuples(page.iterator(columns, projected));
+        assertEquals(10, read.size());
+        for (int i = 0; i < 10; i++)
+        {
+            var t = read.get(i);
+            assertEquals(2, t.getTupleDesc().numFields());
+            assertEquals("grp", t.getTupleDesc().getFieldName(0));
+            assertEquals(i * 100, intAt(t, 0));
+            assertEquals(i, intAt(t, 1));
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+    }
+
+    /**
+     * The header keeps the range of each int column; deletes never narrow it, an emptied page resets it.
+     */
+    @Test public void minMax() throws Exception {
+        var page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        assertNull(page.getMin(0));
+        assertFalse(page.mayMatch(0, Predicate.Op.NOT_EQUALS, new IntField(0)));
+
+        var a = tuple(5, -3, "a");
+        var b = tuple(9, 4, "b");
+        page.insertTuple(a);
+        page.insertTuple(b);
+        assertEquals(new IntField(5), page.getMin(0));
+        assertEquals(new IntField(9), page.getMax(0));
+        assertEquals(new IntField(-3), page.getMin(1));
+        assertNull(page.getMin(2));
+
+        assertTrue(page.mayMatch(0, Predicate.Op.EQUALS, new IntField(7)));
+        assertFalse(page.mayMatch(0, Predicate.Op.EQUALS, new IntField(10)));
+        assertFalse(page.mayMatch(0, Predicate.Op.GREATER_THAN, new IntField(9)));
+        assertTrue(page.mayMatch(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(9)));
+        assertFalse(page.mayMatch(0, Predicate.Op.LESS_THAN, new IntField(5)));
+        assertTrue(page.mayMatch(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(5)));
+        assertTrue(page.mayMatch(2, Predicate.Op.EQUALS, new StringField("z", Type.STRING_LEN)));
+
+        page.deleteTuple(b);
+        assertEquals(new IntField(9), page.getMax(0));
+        page.deleteTuple(a);
+        page.insertTuple(tuple(100, 0, "c"));
+        assertEquals(new IntField(100), page.getMin(0));
+        assertEquals(new IntField(100), page.getMax(0));
+    }
+
+    @Test(expected = DbException.class) public void deleteTwice() throws Exception {
+        var page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        var t = tuple(1, 1, "a");
+        page.insertTuple(t);
+        page.deleteTuple(t);
+        page.deleteTuple(t);
+    }
+
+    /**
+     * PAX pages have their own log tag and may be logged as deltas.
+     */
+    @Test public void logImage() throws Exception {
+        var page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(7, 7, "seven"));
+        var bytes = new ByteArrayOutputStream();
+        LogCodecs.writePage(new DataOutputStream(bytes), page);
+        Page p = LogCodecs.readPage(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(p instanceof PaxHeapPage);
+        assertArrayEquals(page.getPageData(), p.getPageData());
+        assertTrue(LogCodecs.supportsDelta(page));
+    }
+
+    private void load(int n) throws Exception {
+        var tid = new TransactionId();
+        var batch = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            batch.add(tuple(i, i % 7, "t" + i));
+        Database.getBufferPool().insertTuples(tid, file.getId(), batch);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A projected scan with a page filter skips the pages whose range excludes the predicate.
+     */
+    @Test public void filteredScan() throws Exception {
+        load(1000);
+        assertTrue(file.numPages() > 10);
+
+        var tid = new TransactionId();
+        var filter = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(950));
+        var it = file.iterator(tid, new int[]{0}, List.of(filter));
+        it.open();
+        int returned = 0, matched = 0;
+        while (it.hasNext())
+        {
+            var t = it.next();
+            assertEquals(1, t.getTupleDesc().numFields());
+            returned++;
+            if (filter.filter(t)) matched++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(50, matched);
+        // only the last page or two are read
+        int slots = 1000 / file.numPages() + 1;
+        assertTrue(returned <= 50 + 2 * slots);
+    }
+
+    /**
+     * An aggregate over a scan of one column gives the same answer as over the full table.
+     */
+    @Test public void aggregateOneColumn() throws Exception {
+        load(1000);
+        var tid = new TransactionId();
+        var scan = new SeqScan(tid, file.getId(), "p", new int[]{1});
+        assertEquals(1, scan.getTupleDesc().numFields());
+        assertEquals("p.grp", scan.getTupleDesc().getFieldName(0));
+        var sum = new Aggregate(scan, 0, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        sum.open();
+        int expected = 0;
+        for (int i = 0; i < 1000; i++)
+            expected += i % 7;
+        assertEquals(expected, intAt(sum.next(), 0));
+        assertFalse(sum.hasNext());
+        sum.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A PAX HeapFile inserts, scans and deletes through the buffer pool.
+     */
+    @Test public void heapFile() throws Exception {
+        load(1000);
+        var tid = new TransactionId();
+        var it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext())
+        {
+            Tuple t = it.next();
+            int id = intAt(t, 0);
+            assertEquals(tuple(id, id % 7, "t" + id), t);
+            if (id % 2 == 0) Database.getBufferPool().deleteTuple(tid, t);
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, count);
+        assertEquals(file.numPages(), file.numFreePages());
+    }
+
+    /**
+     * "pax" after the column list picks the format in a schema file.
+     */
+    @Test public void loadSchema() throws Exception {
+        File schema = File.createTempFile("schema", ".txt");
+        schema.deleteOnExit();
+        try (var w = new FileWriter(schema))
+        {
+            w.write("report (a int, b int, c string) pax\n");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        var catalog = Database.getCatalog();
+        assertEquals(HeapFile.Layout.PAX, ((HeapFile) catalog.getDatabaseFile(catalog.getTableId("report"))).getLayout());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxHeapPageTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.TwoQueueReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: a referenced page gets a second chance
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        var e0 = policy.admit(pid(0));
+        policy.admit(pid(1));
+        policy.admit(pid(2));
+        policy.touch(e0);
+
+        PageId victim = policy.victim(p -> true);
+        assertEquals(pid(1), victim);
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: pages that may not be evicted are skipped
+     */
+    @Test public void clockSkipsUnevictable() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        policy.admit(pid(0));
+        policy.admit(pid(1));
+
+        assertEquals(pid(1), policy.victim(p -> !p.equals(pid(0))));
+        assertNull(policy.victim(p -> false));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy.remove()
+     */
+    @Test public void clockRemove() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        var e0 = policy.admit(pid(0));
+        policy.admit(pid(1));
+        policy.remove(e0);
+
+        assertEquals(pid(1), policy.victim(p -> true));
+        assertNull(policy.victim(p -> p.equals(pid(0))));
+    }
+
+    /**
+     * Unit test for TwoQueueReplacementPolicy: a sequential scan does not
+     * evict pages that were re-referenced after leaving A1in
+     */
+    @Test public void twoQueueScanResistant() {
+        int capacity = 8;
+        ReplacementPolicy policy = new TwoQueueReplacementPolicy(capacity);
+        Map<PageId, ReplacementPolicy.Entry> resident = new HashMap<>();
+
+        // hot page: admitted, evicted to A1out, then admitted again into Am
+        resident.put(pid(0), policy.admit(pid(0)));
+        policy.remove(resident.remove(pid(0)));
+        resident.put(pid(0), policy.admit(pid(0)));
+
+        // a long scan through the pool
+        for (int i = 1; i < 100; i++)
+        {
+            if (resident.size() == capacity)
+            {
+                PageId victim = policy.victim(p -> true);
+                assertNotEquals(pid(0), victim);
+                policy.remove(resident.remove(victim));
+            }
+            resident.put(pid(i), policy.admit(pid(i)));
+            policy.touch(resident.get(pid(0)));
+        }
+        assertTrue(resident.containsKey(pid(0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
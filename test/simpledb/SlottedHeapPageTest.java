@@ -0,0 +1,232 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "name"});
+
+    private HeapFile file;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        file = new HeapFile(f, TD, HeapFile.Layout.SLOTTED);
+        Database.getCatalog().addTable(file, "slotted");
+        pid = new HeapPageId(file.getId(), 0);
+    }
+
+    private static Tuple tuple(int id, String name) {
+        var t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private static List<Tuple> tuples(SlottedHeapPage page) {
+        var list = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); )
+            list.add(it.next());
+        return list;
+    }
+
+    private static String name(Tuple t) {
+        return ((StringField) t.getField(1)).getValue();
+    }
+
+    /**
+     * Strings are stored at their own length and survive a round trip through the page bytes.
+     */
+    @Test public void variableLengthRoundTrip() throws Exception {
+        var page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(1, ""));
+        page.insertTuple(tuple(2, "ab"));
+        page.insertTuple(tuple(3, "x".repeat(Type.STRING_LEN)));
+        assertEquals(BufferPool.getPageSize() - 6 - 3 * 4 - (6 + 8 + 4 + Type.STRING_LEN + 2), page.getFreeSpace());
+
+        var copy = new SlottedHeapPage(pid, page.getPageData());
+        var read = tuples(copy);
+        assertEquals(3, read.size());
+        assertEquals("", name(read.get(0)));
+        assertEquals("ab", name(read.get(1)));
+        assertEquals(Type.STRING_LEN, name(read.get(2)).length());
+        assertEquals(new RecordId(pid, 1), read.get(1).getRecordId());
+    }
+
+    /**
+     * Short strings pack many more tuples into a page than fixed-size slots.
+     */
+    @Test public void denserThanFixedSlots() throws Exception {
+        var page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        var batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 1000; i++)
+            batch.add(tuple(i, "name" + i));
+        int n = page.insertTuples(batch, 0);
+        int fixed = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        assertTrue(n > 5 * fixed);
+        assertEquals(n, tuples(page).size());
+        assertFalse(page.hasRoom());
+    }
+
+    /**
+     * Deleted space is reclaimed by compaction, and the tuples that stay keep their record ids.
+     */
+    @Test public void compaction() throws Exception {
+        var page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        var batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 1000; i++)
+            batch.add(tuple(i, "v".repeat(20)));
+        int n = page.insertTuples(batch, 0);
+        for (int i = 0; i < n; i += 2)
+            page.deleteTuple(batch.get(i));
+        int free = page.getFreeSpace();
+        assertTrue(free >= n / 2 * 26);
+
+        // longer records only fit after the holes are merged; they reuse the empty slots
+        var longer = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            longer.add(tuple(-i, "w".repeat(40)));
+        int m = page.insertTuples(longer, 0);
+        assertEquals(free / 46, m);
+        assertEquals(n, page.getNumSlots());
+
+        var byId = new ArrayList<Tuple>();
+        for (var t : tuples(page))
+            if (((IntField) t.getField(0)).getValue() > 0) byId.add(t);
+        assertEquals(n / 2, byId.size());
+        for (var t : byId)
+        {
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals(batch.get(id).getRecordId(), t.getRecordId());
+            assertEquals(20, name(t).length());
+        }
+    }
+
+    /**
+     * Empty slots at the end of the directory are dropped.
+     */
+    @Test public void trailingSlotsTrimmed() throws Exception {
+        var page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        var a = tuple(1, "a");
+        var b = tuple(2, "b");
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.deleteTuple(b);
+        assertEquals(1, page.getNumSlots());
+        page.deleteTuple(a);
+        assertEquals(0, page.getNumSlots());
+        assertEquals(BufferPool.getPageSize() - 6, page.getFreeSpace());
+    }
+
+    @Test(expected = DbException.class) public void deleteTwice() throws Exception {
+        var page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        var t = tuple(1, "a");
+        page.insertTuple(t);
+        page.deleteTuple(t);
+        page.deleteTuple(t);
+    }
+
+    /**
+     * Slotted pages have their own log tag and may be logged as deltas.
+     */
+    @Test public void logImage() throws Exception {
+        var page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(7, "seven"));
+        var bytes = new ByteArrayOutputStream();
+        LogCodecs.writePage(new DataOutputStream(bytes), page);
+        Page p = LogCodecs.readPage(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(p instanceof SlottedHeapPage);
+        assertArrayEquals(page.getPageData(), p.getPageData());
+        assertTrue(LogCodecs.supportsDelta(page));
+    }
+
+    /**
+     * A slotted HeapFile inserts, scans and deletes through the buffer pool, in fewer pages than a fixed one.
+     */
+    @Test public void heapFile() throws Exception {
+        var tid = new TransactionId();
+        var batch = new ArrayList<Tuple>();
+        for (int i = 0; i < 5000; i++)
+            batch.add(tuple(i, "t" + i));
+        Database.getBufferPool().insertTuples(tid, file.getId(), batch);
+        Database.getBufferPool().insertTuple(tid, file.getId(), tuple(5000, "last"));
+        Database.getBufferPool().transactionComplete(tid);
+        int perPage = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        int fixedPages = (5001 + perPage - 1) / perPage;
+        assertTrue(file.numPages() < fixedPages / 5);
+
+        tid = new TransactionId();
+        var it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext())
+        {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals(id == 5000 ? "last" : "t" + id, name(t));
+            if (id % 2 == 0) Database.getBufferPool().deleteTuple(tid, t);
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(5001, count);
+        assertEquals(file.numPages(), file.numFreePages());
+    }
+
+    @Test(expected = DbException.class) public void tupleTooLarge() throws Exception {
+        var wide = new Type[BufferPool.getPageSize() / 4];
+        java.util.Arrays.fill(wide, Type.INT_TYPE);
+        var td = new TupleDesc(wide);
+        File f = File.createTempFile("wide", ".dat");
+        f.deleteOnExit();
+        var hf = new HeapFile(f, td, HeapFile.Layout.SLOTTED);
+        Database.getCatalog().addTable(hf, "wide");
+        var t = new Tuple(td);
+        for (int i = 0; i < wide.length; i++)
+            t.setField(i, new IntField(i));
+        hf.insertTuple(new TransactionId(), t);
+    }
+
+    /**
+     * The page format is picked per table by a trailing word in the schema file.
+     */
+    @Test public void loadSchema() throws Exception {
+        File schema = File.createTempFile("schema", ".txt");
+        schema.deleteOnExit();
+        try (var w = new FileWriter(schema))
+        {
+            w.write("plain (a int, b string)\n");
+            w.write("fixedtab (a int) fixed\n");
+            w.write("varlen (a int pk, b string) slotted\n");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        var catalog = Database.getCatalog();
+        assertEquals(HeapFile.Layout.FIXED, ((HeapFile) catalog.getDatabaseFile(catalog.getTableId("plain"))).getLayout());
+        assertEquals(HeapFile.Layout.FIXED, ((HeapFile) catalog.getDatabaseFile(catalog.getTableId("fixedtab"))).getLayout());
+        assertEquals(HeapFile.Layout.SLOTTED, ((HeapFile) catalog.getDatabaseFile(catalog.getTableId("varlen"))).getLayout());
+        assertEquals("a", catalog.getPrimaryKey(catalog.getTableId("varlen")));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,133 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.Locks.LockMode;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+    private static final int TUPLES = 600;
+
+    private PageId p0;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < TUPLES; ++i)
+        {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(tid);
+        p0 = new HeapPageId(empty.getId(), 0);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext())
+        {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private void insertOne(TransactionId tid) throws Exception {
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(-1, 2));
+    }
+
+    /**
+     * A snapshot reads the committed data even while a writer has an
+     * uncommitted row on the page, and takes no locks itself.
+     */
+    @Test(timeout = 10000) public void readsPastUncommittedWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        insertOne(writer);
+        // page 0 is full, the tuple goes to page 1
+        assertEquals(LockMode.IX, bp.pageLock(writer, new HeapPageId(empty.getId(), 1)));
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(TUPLES, count(reader));
+        assertFalse(bp.holdsLock(reader, p0));
+        assertNull(bp.tableLock(reader, empty.getId()));
+        bp.transactionComplete(reader, true);
+
+        bp.transactionComplete(writer, true);
+    }
+
+    /**
+     * A snapshot does not see commits made after it started, and does not block the writer.
+     */
+    @Test(timeout = 10000) public void ignoresLaterCommits() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(TUPLES, count(reader));
+
+        TransactionId writer = new TransactionId();
+        insertOne(writer);
+        bp.transactionComplete(writer, true);
+        assertTrue(bp.getNumPageVersions() > 0);
+        assertEquals(TUPLES, count(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(TUPLES + 1, count(later));
+        bp.transactionComplete(later, true);
+
+        bp.transactionComplete(reader, true);
+        assertEquals(0, bp.getNumPageVersions());
+    }
+
+    /**
+     * An aborted writer never becomes visible.
+     */
+    @Test(timeout = 10000) public void ignoresAbortedWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        insertOne(writer);
+        bp.transactionComplete(writer, false);
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(TUPLES, count(reader));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * Without snapshots running, commits keep no old versions.
+     */
+    @Test public void noVersionsWithoutSnapshots() throws Exception {
+        TransactionId writer = new TransactionId();
+        insertOne(writer);
+        bp.transactionComplete(writer, true);
+        assertEquals(0, bp.getNumPageVersions());
+    }
+
+    @Test(expected = DbException.class) public void snapshotIsReadOnly() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        bp.getPage(reader, p0, Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
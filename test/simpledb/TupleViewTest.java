@@ -0,0 +1,122 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class TupleViewTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+
+    private Tuple plain;
+    private TupleView view;
+
+    private static TupleView view(Tuple t) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        for (Iterator<Field> it = t.fields(); it.hasNext(); )
+            it.next().serialize(out);
+        return new TupleView(t.getTupleDesc(), bytes.toByteArray(), t.getRecordId());
+    }
+
+    private static Tuple tuple(int a, String b, int c) {
+        var t = new Tuple(TD);
+        t.setField(0, new IntField(a));
+        t.setField(1, new StringField(b, Type.STRING_LEN));
+        t.setField(2, new IntField(c));
+        return t;
+    }
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        plain = tuple(42, "hello", -7);
+        view = view(plain);
+    }
+
+    @Test public void decodesFields() {
+        assertEquals(new IntField(42), view.getField(0));
+        assertEquals(new StringField("hello", Type.STRING_LEN), view.getField(1));
+        assertEquals(-7, view.getInt(2));
+        assertEquals(4, view.getFieldOffset(1));
+        assertEquals(plain, view);
+        assertEquals(view, plain);
+        assertEquals(plain.hashCode(), view.hashCode());
+        assertEquals(plain.toString(), view.toString());
+    }
+
+    @Test public void setFieldWins() {
+        view.setField(2, new IntField(5));
+        assertEquals(5, view.getInt(2));
+        assertTrue(new Predicate(2, Predicate.Op.EQUALS, new IntField(5)).filter(view));
+    }
+
+    /**
+     * Predicates on the raw bytes agree with predicates on decoded fields.
+     */
+    @Test public void predicatesMatchFields() throws Exception {
+        Field[] ints = {new IntField(41), new IntField(42), new IntField(43)};
+        Field[] strings = {new StringField("hello", Type.STRING_LEN), new StringField("hell", Type.STRING_LEN),
+                new StringField("help", Type.STRING_LEN), new StringField("", Type.STRING_LEN)};
+        for (Predicate.Op op : Predicate.Op.values())
+        {
+            for (Field f : ints)
+            {
+                var p = new Predicate(0, op, f);
+                assertEquals(p.toString(), p.filter(plain), p.filter(view(plain)));
+            }
+            for (Field f : strings)
+            {
+                var p = new Predicate(1, op, f);
+                assertEquals(p.toString(), p.filter(plain), p.filter(view(plain)));
+            }
+        }
+        // non-ASCII bytes fall back to decoding
+        Tuple accent = tuple(0, "café", 0);
+        var p = new Predicate(1, Predicate.Op.EQUALS, accent.getField(1));
+        assertEquals(view(accent).getField(1).equals(accent.getField(1)), p.filter(view(accent)));
+    }
+
+    @Test public void joinOnBytes() throws Exception {
+        var other = view(tuple(1, "x", 42));
+        for (Predicate.Op op : Predicate.Op.values())
+        {
+            if (op == Predicate.Op.LIKE) continue;
+            var jp = new JoinPredicate(0, op, 2);
+            assertEquals(op.toString(), jp.filter(plain, tuple(1, "x", 42)), jp.filter(view, other));
+        }
+    }
+
+    /**
+     * Tuples read from a page own their bytes, so later changes to the page do not show through.
+     */
+    @Test public void independentOfPage() throws Exception {
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)), "view");
+        var page = new HeapPage(new HeapPageId(-1, 0), HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        assertTrue(first instanceof TupleView);
+        int value = ((IntField) first.getField(0)).getValue();
+        page.deleteTuple(first);
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0], value);
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][1], ((IntField) first.getField(1)).getValue());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleViewTest.class);
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.transaction.Locks.WaitForGraph;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WaitForGraphTest {
+
+    /**
+     * A chain of waiters without a cycle aborts nobody.
+     */
+    @Test public void noCycle() throws Exception {
+        WaitForGraph g = new WaitForGraph();
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        g.waitFor(t1, List.of(t2));
+        g.waitFor(t2, List.of(t3));
+        g.waitFor(t1, List.of(t2, t3));
+        assertEquals(0, g.getNumDeadlocks());
+    }
+
+    /**
+     * The waiter that closes a cycle is aborted when it is the youngest.
+     */
+    @Test public void youngestClosesCycle() throws Exception {
+        WaitForGraph g = new WaitForGraph();
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        g.waitFor(t1, List.of(t2));
+        try
+        {
+            g.waitFor(t2, List.of(t1));
+            fail("expected the youngest transaction to be aborted");
+        } catch (TransactionAbortedException expected)
+        {
+        }
+        assertEquals(1, g.getNumDeadlocks());
+        g.done(t2);
+        g.waitFor(t1, List.of(t2));
+    }
+
+    /**
+     * When an older transaction closes the cycle, the youngest one is
+     * aborted the next time it checks, and the older one keeps waiting.
+     */
+    @Test public void youngestWaiterIsVictim() throws Exception {
+        WaitForGraph g = new WaitForGraph();
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        g.waitFor(t3, List.of(t1));
+        g.waitFor(t2, List.of(t3));
+        g.waitFor(t1, List.of(t2));
+        assertEquals(1, g.getNumDeadlocks());
+        try
+        {
+            g.waitFor(t3, List.of(t1));
+            fail("expected t3 to be chosen as the victim");
+        } catch (TransactionAbortedException expected)
+        {
+        }
+        g.done(t3);
+        g.waitFor(t2, List.of(t3));
+        g.waitFor(t1, List.of(t2));
+        assertEquals(1, g.getNumDeadlocks());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitForGraphTest.class);
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded scan benchmark for the buffer pool hit path.
+ * <p>
+ * Builds a heap file that fits entirely in the buffer pool, warms the pool,
+ * then runs 1, 2, 4, ... threads that each repeatedly SeqScan the table with
+ * their own transaction. Every page access is a buffer pool hit, so the
+ * reported pages/second shows how well the hit path scales with threads.
+ * <p>
+ * Not a junit test; run with
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.BufferPoolScanBenchmark [maxThreads] [seconds]
+ * </pre>
+ */
+public class BufferPoolScanBenchmark {
+    private static final int ROWS = 200 * 504;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Database.reset();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, f.numPages() + 1));
+        scan(f, new TransactionId());
+
+        System.out.println("pages=" + f.numPages() + " seconds=" + seconds);
+        System.out.println("threads\tpages/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            System.out.println(threads + "\t" + run(f, threads, seconds));
+        }
+    }
+
+    private static long run(HeapFile f, int threads, int seconds) throws InterruptedException {
+        final AtomicLong pages = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+        {
+            Thread t = new Thread(() -> {
+                try
+                {
+                    start.await();
+                    while (System.nanoTime() < deadline)
+                    {
+                        TransactionId tid = new TransactionId();
+                        scan(f, tid);
+                        Database.getBufferPool().transactionComplete(tid);
+                        pages.addAndGet(f.numPages());
+                    }
+                } catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }, "scan-" + i);
+            workers.add(t);
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        long elapsed = System.nanoTime() - begin;
+        return pages.get() * 1_000_000_000L / elapsed;
+    }
+
+    private static void scan(HeapFile f, TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+    }
+}
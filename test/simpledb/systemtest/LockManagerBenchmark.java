@@ -0,0 +1,111 @@
+package simpledb.systemtest;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+import simpledb.transaction.Locks.LockManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded lock throughput benchmark for the lock manager.
+ * <p>
+ * Runs 1, 2, 4, ... threads against one LockManager, without a buffer pool.
+ * Each thread repeatedly runs a transaction that locks a batch of random
+ * pages (mostly shared, some exclusive), locks them all a second time to
+ * exercise the already-held path, then releases everything. Transactions
+ * aborted as deadlock victims release their locks and count nothing.
+ * The reported locks/second includes the re-acquisitions.
+ * <p>
+ * Not a junit test; run with
+ * <pre>
+ *     java -cp bin/src:bin/test:lib/* simpledb.systemtest.LockManagerBenchmark [maxThreads] [seconds] [pages]
+ * </pre>
+ * A small page count shows behaviour under contention, a large one shows
+ * the uncontended fast path.
+ */
+public class LockManagerBenchmark {
+    private static final int LOCKS_PER_TXN = 16;
+    private static final int WRITE_PERCENT = 10;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int numPages = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+
+        PageId[] pages = new PageId[numPages];
+        for (int i = 0; i < numPages; i++)
+            pages[i] = new HeapPageId(1, i);
+
+        System.out.println("pages=" + numPages + " seconds=" + seconds);
+        System.out.println("threads\tlocks/s\tdeadlocks");
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            LockManager lm = new LockManager();
+            long rate = run(lm, pages, threads, seconds);
+            System.out.println(threads + "\t" + rate + "\t" + lm.getNumDeadlocks());
+        }
+    }
+
+    private static long run(LockManager lm, PageId[] pages, int threads, int seconds) throws InterruptedException {
+        final AtomicLong locks = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+        {
+            Thread t = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                PageId[] mine = new PageId[LOCKS_PER_TXN];
+                boolean[] write = new boolean[LOCKS_PER_TXN];
+                long n = 0;
+                try
+                {
+                    start.await();
+                } catch (InterruptedException e)
+                {
+                    return;
+                }
+                while (System.nanoTime() < deadline)
+                {
+                    TransactionId tid = new TransactionId();
+                    for (int j = 0; j < LOCKS_PER_TXN; j++)
+                    {
+                        mine[j] = pages[rnd.nextInt(pages.length)];
+                        write[j] = rnd.nextInt(100) < WRITE_PERCENT;
+                    }
+                    try
+                    {
+                        for (int round = 0; round < 2; round++)
+                        {
+                            for (int j = 0; j < LOCKS_PER_TXN; j++)
+                            {
+                                if (write[j]) lm.getWriteLock(mine[j], tid);
+                                else lm.getReadLock(mine[j], tid);
+                            }
+                        }
+                        n += 2 * LOCKS_PER_TXN;
+                    } catch (TransactionAbortedException e)
+                    {
+                        // deadlock victim, nothing counted
+                    }
+                    lm.releaseAll(tid);
+                }
+                locks.addAndGet(n);
+            }, "locker-" + i);
+            workers.add(t);
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        long elapsed = System.nanoTime() - begin;
+        return locks.get() * 1_000_000_000L / elapsed;
+    }
+}
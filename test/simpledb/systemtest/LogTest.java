@@ -11,6 +11,8 @@ import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -436,6 +438,280 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestGroupCommit()
+            throws Exception {
+        setup();
+
+        // *** Test:
+        // concurrent committers share fsyncs, and group-committed
+        // transactions survive a crash
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(5000, 4);
+        doInsert(hf1, 1, 2);
+
+        int threads = 8, commits = 10;
+        long syncsBefore = log.getNumSyncs();
+        List<Thread> committers = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < threads; i++) {
+            Thread th = new Thread(() -> {
+                try {
+                    for (int j = 0; j < commits; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            committers.add(th);
+            th.start();
+        }
+        for (Thread th : committers)
+            th.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(log.getNumSyncs() - syncsBefore < threads * commits);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+
+    @Test public void TestBTreeCommitAbortCrash()
+            throws Exception {
+        setup();
+        File file3 = new File("simple3.db");
+        file3.delete();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file3.getAbsolutePath(), 2, 0);
+
+        // *** Test:
+        // B+ tree pages in the log can be decoded: redo a committed
+        // transaction and undo an uncommitted one that was flushed
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 600; i++) {
+            Database.getBufferPool().insertTuple(t1.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+            if (i == 300)
+                Database.getBufferPool().flushAllPages();
+        }
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 1000; i < 1100; i++)
+            Database.getBufferPool().insertTuple(t2.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        // crash(), reopening the B+ tree as well
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        bf = BTreeUtility.openBTreeFile(2, file3, 0);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            int v = ((IntField) it.next().getField(0)).getValue();
+            assertTrue("uncommitted key " + v + " survived recovery", v < 1000);
+            count++;
+        }
+        it.close();
+        t.commit();
+        assertEquals(600, count);
+        file3.delete();
+    }
+
+
+    @Test public void TestPhysiologicalLogging()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // only the first update of a page after a checkpoint logs full
+        // images; later updates log the changed bytes, which are redone
+        // and undone correctly
+        LogFile log = Database.getLogFile();
+        doInsert(hf1, 1, 2);
+
+        long before = log.getUpdateBytes();
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        assertTrue(log.getUpdateBytes() - before < BufferPool.getPageSize() / 8);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4);
+        abort(t2);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 5);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestCompensationRecoverTwice()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // undo writes compensation records, so recovering the same log
+        // twice (a crash during or right after recovery) neither loses
+        // committed rows nor resurrects rolled-back ones
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().flushCommittedPages();
+        assertEquals(0, Database.getLogFile().getNumDirtyPages());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        Database.getLogFile().logAbort(t1.getId());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 4);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint writes back committed pages but leaves the dirty
+        // pages of running transactions in the buffer pool; both survive
+        // a crash right after it
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Database.getBufferPool().flushCommittedPages();
+        int emptySlots = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, Database.getBufferPool().getPageCleaner().getNumPending());
+        assertEquals(emptySlots, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        t1.commit();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestSegmentTruncation()
+            throws IOException {
+        setup();
+
+        // *** Test:
+        // a checkpoint drops whole segments before the oldest record still
+        // needed; records spanning segment boundaries read back fine
+        File manifest = new File("seglog");
+        LogFile log = new LogFile(manifest, 1024);
+        Transaction open = new Transaction();
+        for (int i = 0; i < 100; i++)
+        {
+            Transaction t = new Transaction();
+            log.logXactionBegin(t.getId());
+            log.logCommit(t.getId());
+        }
+        log.logXactionBegin(open.getId());
+        for (int i = 0; i < 100; i++)
+        {
+            Transaction t = new Transaction();
+            log.logXactionBegin(t.getId());
+            log.logCommit(t.getId());
+        }
+        int before = log.getNumSegments();
+        log.logCheckpoint();
+        int kept = log.getNumSegments();
+        assertTrue(kept < before);
+
+        log.logCommit(open.getId());
+        log.logCheckpoint();
+        assertTrue(log.getNumSegments() < kept);
+        log.shutdown();
+
+        // reopen and recover: the retained records are intact
+        LogFile reopened = new LogFile(manifest, 1024);
+        reopened.recover();
+        Transaction t = new Transaction();
+        reopened.logXactionBegin(t.getId());
+        reopened.logCommit(t.getId());
+        reopened.shutdown();
+    }
+
+    @Test public void TestParallelRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // redo spread over several threads applies each page's full and
+        // delta images in log order
+        for (int i = 0; i < 20; i++)
+            doInsert(i % 2 == 0 ? hf1 : hf2, 100 + i, -1);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 200);
+        insertRow(hf2, t1, 201);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRedoThreads(4);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 20; i++)
+            look(i % 2 == 0 ? hf1 : hf2, t, 100 + i, true);
+        look(hf1, t, 200, false);
+        look(hf2, t, 201, false);
+        t.commit();
+    }
+
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
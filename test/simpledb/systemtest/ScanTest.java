@@ -49,6 +49,85 @@ public class ScanTest extends SimpleDbTestBase {
         validateScan(columnSizes, rowSizes);
     }
 
+    /** Scan a table much larger than an off-heap buffer pool, so frames get reused. */
+    @Test public void testOffHeap() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, null, tuples);
+        Database.resetBufferPool(8, BufferPool.DEFAULT_REPLACEMENT, true);
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        // evicted pages give their frames back: only the 8 resident pages hold one
+        BufferPool bp = Database.resetBufferPool(8, BufferPool.DEFAULT_REPLACEMENT, true);
+        bp.getReadAhead().setWindow(0);
+        assertEquals(9, bp.getNumFrames());
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(bp.getNumFrames() - 8, bp.getNumFreeFrames());
+        assertEquals(0, Database.resetBufferPool(8).getNumFrames());
+    }
+
+    /** Scan and append to a heap file stored through the memory-mapped backend. */
+    @Test public void testMappedBackend() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File file = SystemTestUtil.createRandomHeapFileUnopened(2, 3000, 1 << 16, null, tuples);
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2), PageStore.Kind.MMAP);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        SystemTestUtil.matchTuples(f, tuples);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; ++i) {
+            Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(i, 2));
+            tuples.add(List.of(i, i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** A raw heap file converted to the compressed backend scans the same and stays writable. */
+    @Test public void testCompressedBackend() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File file = SystemTestUtil.createRandomHeapFileUnopened(2, 3000, 1 << 16, null, tuples);
+        long raw = file.length();
+        new File(file.getPath() + ".map").deleteOnExit();
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2), PageStore.Kind.COMPRESSED);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        assertTrue(file.length() < raw);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; ++i) {
+            Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(i, 2));
+            tuples.add(List.of(i, i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** A cold sequential scan should be served mostly by read-ahead. */
+    @Test public void testReadAhead() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 200 * 504, null, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ReadAhead readAhead = Database.getBufferPool().getReadAhead();
+        assertEquals(ReadAhead.DEFAULT_WINDOW, readAhead.getWindow());
+        readAhead.setWindow(1000);
+        assertEquals(BufferPool.DEFAULT_PAGES / 4, readAhead.getWindow());
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(readAhead.getIssued() > 0);
+        assertTrue(readAhead.getHits() > 0);
+        assertTrue(readAhead.getHitRate() <= 1.0);
+
+        // window 0 turns read-ahead off
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        readAhead = Database.getBufferPool().getReadAhead();
+        readAhead.setWindow(0);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(0, readAhead.getIssued());
+    }
+
     /** Test that rewinding a SeqScan iterator works. */
     @Test public void testRewind() throws IOException, DbException, TransactionAbortedException {
         List<List<Integer>> tuples = new ArrayList<>();